@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay.benchmarks;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Writes a synthetic device storage tree shaped like the one the relay
+ * keeps for connected devices:
+ * {@code {callsign}/collections/{name}/collection.js} and
+ * {@code extra/tree.json}, with directory entries for every folder.
+ *
+ * File names are built from a skewed vocabulary, so a few words are very
+ * common and most are rare, like real collections. Word frequencies the
+ * benchmarks rely on are fixed: {@link #BROAD_TERM} is in about a third of
+ * the file names, {@link #SELECTIVE_TERM} in about one in a thousand and
+ * {@link #NO_MATCH_TERM} in none. The same seed always gives the same tree.
+ *
+ * Usage: {@code CorpusGenerator <directory> <devices> <collections> <files> [seed]}
+ *
+ * @author brito
+ */
+public class CorpusGenerator {
+
+    public static final String BROAD_TERM = "photo";
+    public static final String SELECTIVE_TERM = "aurora";
+    public static final String NO_MATCH_TERM = "zqxjvw";
+
+    private static final double BROAD_RATE = 0.33;
+    private static final double SELECTIVE_RATE = 0.001;
+
+    private static final String[] TOPICS = {
+        "radio", "beach", "winter", "city", "station", "logbook", "antenna", "summer", "holiday",
+        "guide", "map", "music", "report", "trail", "mountain", "river", "festival", "repeater",
+        "satellite", "weather", "harbor", "forest", "camp", "bridge", "market", "lighthouse",
+        "village", "storm", "meeting", "contest", "field", "island", "valley", "museum", "train"
+    };
+    private static final String[] KINDS = {
+        "video", "track", "notes", "recording", "scan", "sketch", "draft", "log", "plan", "list"
+    };
+    private static final String[] FOLDERS = {
+        "docs", "media", "photos", "tracks", "audio", "misc", "archive", "shared"
+    };
+    private static final String[] EXTENSIONS = {"jpg", "png", "mp3", "pdf", "md", "txt", "gpx", "mp4", "zip"};
+
+    private final Random random;
+
+    public CorpusGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: CorpusGenerator <directory> <devices> <collections> <files> [seed]");
+            System.exit(1);
+        }
+        Path root = Paths.get(args[0]);
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+        new CorpusGenerator(seed).generate(root, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]));
+        System.out.println("Corpus written to " + root.toAbsolutePath());
+    }
+
+    /**
+     * Generate a corpus in a new temporary directory (see {@link #delete})
+     */
+    public static Path generateTemp(int devices, int collections, int files) throws IOException {
+        Path root = Files.createTempDirectory("geogram-corpus");
+        new CorpusGenerator(1).generate(root, devices, collections, files);
+        return root;
+    }
+
+    /**
+     * Write devices * collections collections of the given number of files under root
+     */
+    public void generate(Path root, int devices, int collections, int files) throws IOException {
+        for (int d = 0; d < devices; d++) {
+            String callsign = String.format("X1%06X", d);
+            for (int c = 0; c < collections; c++) {
+                Path collection = root.resolve(callsign).resolve("collections").resolve("collection" + c);
+                Files.createDirectories(collection.resolve("extra"));
+                writeCollectionJs(collection.resolve("collection.js"), callsign, c);
+                writeTreeJson(collection.resolve("extra").resolve("tree.json"), files);
+            }
+        }
+    }
+
+    /**
+     * Delete a generated corpus
+     */
+    public static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private void writeCollectionJs(Path file, String callsign, int index) throws IOException {
+        JsonObject meta = new JsonObject();
+        meta.addProperty("id", callsign.toLowerCase() + "-" + index);
+        meta.addProperty("title", capitalize(word(TOPICS)) + " " + word(TOPICS) + " collection");
+        meta.addProperty("description", "Files about " + word(TOPICS) + " and " + word(TOPICS)
+                + " shared by " + callsign);
+        meta.addProperty("updated", "2025-" + String.format("%02d", 1 + random.nextInt(12)) + "-01");
+        JsonObject data = new JsonObject();
+        data.add("collection", meta);
+        Files.writeString(file, "window.COLLECTION_DATA = " + data + ";\n");
+    }
+
+    private void writeTreeJson(Path file, int files) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+             JsonWriter json = new JsonWriter(out)) {
+            json.beginArray();
+            Set<String> folders = new LinkedHashSet<>();
+            for (int i = 0; i < files; i++) {
+                String folder = folder();
+                if (folders.add(folder)) {
+                    writeEntry(json, folder, folder.substring(folder.lastIndexOf('/') + 1), "directory", null);
+                }
+                String name = fileName(i);
+                writeEntry(json, folder + "/" + name, name, "file", fileSize());
+            }
+            json.endArray();
+        }
+    }
+
+    private static void writeEntry(JsonWriter json, String path, String name, String type, Long size)
+            throws IOException {
+        json.beginObject();
+        json.name("path").value(path);
+        json.name("name").value(name);
+        json.name("type").value(type);
+        if (size != null) {
+            json.name("size").value(size);
+        }
+        json.endObject();
+    }
+
+    private String folder() {
+        String folder = FOLDERS[random.nextInt(FOLDERS.length)];
+        if (random.nextInt(3) == 0) {
+            folder += "/" + (2015 + random.nextInt(11));
+        }
+        if (random.nextInt(4) == 0) {
+            folder += "/" + word(TOPICS);
+        }
+        return folder;
+    }
+
+    private String fileName(int index) {
+        StringBuilder name = new StringBuilder();
+        double marker = random.nextDouble();
+        if (marker < SELECTIVE_RATE) {
+            name.append(SELECTIVE_TERM).append('_');
+        } else if (marker < BROAD_RATE) {
+            name.append(random.nextBoolean() ? capitalize(BROAD_TERM) : BROAD_TERM).append('_');
+        }
+        name.append(word(TOPICS)).append('_').append(word(KINDS));
+        if (random.nextBoolean()) {
+            name.append('_').append(word(TOPICS));
+        }
+        name.append('_').append(index);
+        return name.append('.').append(word(EXTENSIONS)).toString();
+    }
+
+    /**
+     * Sizes spread log-uniformly from 100 bytes to about 500MB
+     */
+    private long fileSize() {
+        return (long) Math.exp(Math.log(100) + random.nextDouble() * (Math.log(500e6) - Math.log(100)));
+    }
+
+    /**
+     * Skewed pick: low indexes are much more likely than high ones
+     */
+    private String word(String[] words) {
+        double skew = random.nextDouble();
+        return words[(int) (skew * skew * words.length)];
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
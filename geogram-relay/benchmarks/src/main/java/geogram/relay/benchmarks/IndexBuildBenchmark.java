@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay.benchmarks;
+
+import geogram.relay.CollectionSearcher;
+import geogram.relay.SearchIndex;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build the search index from a synthetic corpus on disk, and the
+ * resulting memory per file entry
+ *
+ * Each operation reads and parses every collection.js and tree.json and
+ * builds the in-memory index, like a relay starting without persisted
+ * segments. Memory is the index's own accounting of its file tables and
+ * posting arrays, reported next to the time as secondary results.
+ *
+ * @author brito
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexBuildBenchmark {
+
+    @Param("20")
+    public int devices;
+
+    @Param("3")
+    public int collections;
+
+    @Param("2000")
+    public int files;
+
+    private Path corpus;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = CorpusGenerator.generateTemp(devices, collections, files);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        CorpusGenerator.delete(corpus);
+    }
+
+    @Benchmark
+    public SearchIndex loadIndex(Memory memory) {
+        CollectionSearcher searcher = new CollectionSearcher(corpus.toString(), 1);
+        searcher.loadIndex();
+        searcher.shutdown();
+        memory.record(searcher.getIndex());
+        return searcher.getIndex();
+    }
+
+    /**
+     * Memory of the last built index, per indexed file entry
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Memory {
+        public long indexBytesPerFile;
+        public long fileTableBytesPerFile;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            indexBytesPerFile = 0;
+            fileTableBytesPerFile = 0;
+        }
+
+        void record(SearchIndex index) {
+            long entries = Math.max(1, index.getFileCount());
+            indexBytesPerFile = index.getResidentBytes() / entries;
+            fileTableBytesPerFile = index.getFileTableBytes() / entries;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay.benchmarks;
+
+import geogram.relay.RelayMessage;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the HTTP proxy path against a running relay
+ *
+ * Connects simulated devices that answer every HTTP_REQUEST after a fixed
+ * delay, then starts the requests to /device/{callsign}/... 100 at a time
+ * every 50 ms and reports how many the relay held in flight at once. A
+ * relay that parks a request thread per waiting request peaks near its
+ * thread pool size (250 for Jetty by default) and needs many delay rounds;
+ * one that waits asynchronously holds them all and finishes in little more
+ * than one delay, as long as the machine can take the requests in faster
+ * than the delay.
+ *
+ * Usage: {@code ProxyLoadBenchmark [relayUrl] [devices] [requests] [delayMs]},
+ * by default {@code http://localhost:8080 10 2000 5000}.
+ *
+ * @author brito
+ */
+public class ProxyLoadBenchmark {
+
+    // Requests started per ramp step, so connects do not overflow the accept backlog
+    private static final int RAMP_BATCH = 100;
+    private static final long RAMP_STEP_MILLIS = 50;
+
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final AtomicInteger peakInFlight = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        String relayUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        long delayMillis = args.length > 3 ? Long.parseLong(args[3]) : 5000;
+
+        ScheduledExecutorService responder = Executors.newScheduledThreadPool(4);
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        List<String> callsigns = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            String callsign = String.format("X1LD%04d", i);
+            connectDevice(client, relayUrl, callsign, responder, delayMillis);
+            callsigns.add(callsign);
+        }
+        Thread.sleep(1000);  // Let the hellos register
+
+        System.out.printf("%d requests over %d devices, device delay %d ms%n", requests, devices, delayMillis);
+        long start = System.nanoTime();
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            if (i > 0 && i % RAMP_BATCH == 0) {
+                Thread.sleep(RAMP_STEP_MILLIS);
+            }
+            String callsign = callsigns.get(i % devices);
+            HttpRequest request = HttpRequest.newBuilder(URI.create(relayUrl + "/device/" + callsign + "/load/" + i))
+                    .timeout(Duration.ofSeconds(120))
+                    .build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+
+        Map<String, Integer> outcomes = new TreeMap<>();
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            String outcome;
+            try {
+                outcome = String.valueOf(response.join().statusCode());
+            } catch (Exception e) {
+                outcome = e.getCause() != null ? e.getCause().getClass().getSimpleName() : e.toString();
+            }
+            outcomes.merge(outcome, 1, Integer::sum);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("Elapsed: %d ms (%.1f device delays)%n", elapsedMillis, (double) elapsedMillis / delayMillis);
+        System.out.printf("Throughput: %.0f requests/s%n", requests * 1000.0 / elapsedMillis);
+        System.out.printf("Peak requests waiting on devices: %d%n", peakInFlight.get());
+        System.out.printf("Outcomes: %s%n", outcomes);
+
+        responder.shutdownNow();
+        System.exit(0);
+    }
+
+    private static void connectDevice(HttpClient client, String relayUrl, String callsign,
+            ScheduledExecutorService responder, long delayMillis) throws Exception {
+        WebSocket.Listener listener = new WebSocket.Listener() {
+            private final StringBuilder text = new StringBuilder();
+
+            @Override
+            public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+                text.append(data);
+                if (last) {
+                    RelayMessage message = RelayMessage.fromJson(text.toString());
+                    text.setLength(0);
+                    if (RelayMessage.TYPE_HTTP_REQUEST.equals(message.type)) {
+                        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        responder.schedule(() -> respond(ws, message), delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+                ws.request(1);
+                return null;
+            }
+        };
+
+        String wsUrl = relayUrl.replaceFirst("^http", "ws") + "/";
+        WebSocket ws = client.newWebSocketBuilder().buildAsync(URI.create(wsUrl), listener).get();
+        String hello = "{\"type\":\"hello\",\"event\":{\"pubkey\":\"load" + callsign + "\",\"id\":\"load\","
+                + "\"sig\":\"load\",\"content\":\"load test\",\"tags\":[[\"callsign\",\"" + callsign + "\"]]}}";
+        send(ws, hello);
+    }
+
+    private static void respond(WebSocket ws, RelayMessage request) {
+        inFlight.decrementAndGet();
+        RelayMessage response = RelayMessage.createHttpResponse(request.requestId, 200,
+                "{\"Content-Type\":\"text/plain\"}", "ok " + request.path);
+        send(ws, response.toJson());
+    }
+
+    // A WebSocket allows one outstanding send at a time
+    private static void send(WebSocket ws, String json) {
+        synchronized (ws) {
+            ws.sendText(json, true).join();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay.benchmarks;
+
+import geogram.relay.CollectionSearcher;
+import geogram.relay.SearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search throughput and latency over a synthetic corpus
+ *
+ * Throughput is reported in searches per millisecond and latency as a
+ * sampled distribution (p50 .. p99.99), for a selective query (few hits),
+ * a broad one (a third of all files) and one without any hit. Run more
+ * client threads with JMH's {@code -t}.
+ *
+ * @author brito
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param("20")
+    public int devices;
+
+    @Param("3")
+    public int collections;
+
+    @Param("2000")
+    public int files;
+
+    @Param("1")
+    public int parallelism;  // Threads per query, see CollectionSearcher
+
+    @Param("50")
+    public int limit;
+
+    private Path corpus;
+    private CollectionSearcher searcher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = CorpusGenerator.generateTemp(devices, collections, files);
+        searcher = new CollectionSearcher(corpus.toString(), parallelism);
+        searcher.loadIndex();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        searcher.shutdown();
+        CorpusGenerator.delete(corpus);
+    }
+
+    @Benchmark
+    public List<SearchResult> selective() {
+        return searcher.search(CorpusGenerator.SELECTIVE_TERM, limit);
+    }
+
+    @Benchmark
+    public List<SearchResult> broad() {
+        return searcher.search(CorpusGenerator.BROAD_TERM, limit);
+    }
+
+    @Benchmark
+    public List<SearchResult> noMatch() {
+        return searcher.search(CorpusGenerator.NO_MATCH_TERM, limit);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of a {@link RelayMessage} for binary WebSocket frames
+ *
+ * Layout (big-endian):
+ * <pre>
+ *  0  u8   version (1)
+ *  1  u8   type code (index in TYPES)
+ *  2  u16  HTTP status code (HTTP_RESPONSE and HTTP_RESPONSE_START, otherwise 0)
+ *  4  u16  request id length
+ *  6  u16  reserved (0)
+ *  8  u32  meta length
+ * 12  u32  body length
+ * 16       request id (UTF-8), meta, body
+ * </pre>
+ * Meta is a JSON object holding the message's remaining small fields
+ * (method, path, headers, responseHeaders, ...), empty when there are none.
+ * The body travels as raw bytes: the HTTP body for HTTP_REQUEST and
+ * HTTP_RESPONSE, a piece of it for HTTP_REQUEST_CHUNK and
+ * HTTP_RESPONSE_CHUNK, the UTF-8 file content for COLLECTION_FILE_RESPONSE.
+ * Binary HTTP bodies therefore need no base64.
+ *
+ * Devices opt in through a {@code ["framing", "binary"]} tag of their hello
+ * event; the relay accepts binary frames from any device but only sends
+ * them to devices that opted in.
+ *
+ * @author brito
+ */
+public class BinaryFrame {
+
+    public static final String FRAMING_TAG = "framing";
+    public static final String FRAMING_BINARY = "binary";
+
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 16;
+
+    // Wire codes of message types; append only
+    private static final String[] TYPES = {
+        null,
+        RelayMessage.TYPE_REGISTER,
+        RelayMessage.TYPE_HTTP_REQUEST,
+        RelayMessage.TYPE_HTTP_RESPONSE,
+        RelayMessage.TYPE_PING,
+        RelayMessage.TYPE_PONG,
+        RelayMessage.TYPE_ERROR,
+        RelayMessage.TYPE_COLLECTIONS_REQUEST,
+        RelayMessage.TYPE_COLLECTIONS_RESPONSE,
+        RelayMessage.TYPE_COLLECTION_FILE_REQUEST,
+        RelayMessage.TYPE_COLLECTION_FILE_RESPONSE,
+        RelayMessage.TYPE_HTTP_RESPONSE_START,
+        RelayMessage.TYPE_HTTP_RESPONSE_CHUNK,
+        RelayMessage.TYPE_HTTP_RESPONSE_END,
+        RelayMessage.TYPE_HTTP_REQUEST_CHUNK,
+        RelayMessage.TYPE_HTTP_REQUEST_END,
+        RelayMessage.TYPE_HTTP_REQUEST_CREDIT,
+        RelayMessage.TYPE_HTTP_RESPONSE_CREDIT
+    };
+
+    // Fields carried by the header or the body rather than the meta object
+    private static final String[] FRAMED_FIELDS = {
+        "type", "requestId", "statusCode", "body", "responseBody", "fileContent", "isBase64"
+    };
+
+    private static final Gson GSON = new GsonBuilder().create();
+
+    private BinaryFrame() {
+    }
+
+    /**
+     * Encode a message with its body bytes (null for none)
+     */
+    public static ByteBuffer encode(RelayMessage message, byte[] body) {
+        int code = typeCode(message.type);
+        byte[] requestId = message.requestId != null
+                ? message.requestId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        JsonObject fields = GSON.toJsonTree(message).getAsJsonObject();
+        for (String field : FRAMED_FIELDS) {
+            fields.remove(field);
+        }
+        byte[] meta = fields.size() > 0 ? fields.toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int bodyLength = body != null ? body.length : 0;
+        if (requestId.length > 0xFFFF) {
+            throw new IllegalArgumentException("Request id too long");
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + requestId.length + meta.length + bodyLength);
+        frame.put((byte) VERSION);
+        frame.put((byte) code);
+        frame.putShort((short) (message.statusCode != null ? message.statusCode : 0));
+        frame.putShort((short) requestId.length);
+        frame.putShort((short) 0);
+        frame.putInt(meta.length);
+        frame.putInt(bodyLength);
+        frame.put(requestId);
+        frame.put(meta);
+        if (body != null) {
+            frame.put(body);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Decode a frame; an HTTP body is left as raw bytes in {@link RelayMessage#rawBody}
+     *
+     * @throws IllegalArgumentException if the frame is malformed or of an unknown version or type
+     */
+    public static RelayMessage decode(ByteBuffer frame) {
+        if (frame.remaining() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Binary frame shorter than its header");
+        }
+        int version = frame.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary frame version: " + version);
+        }
+        int code = frame.get() & 0xFF;
+        if (code == 0 || code >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown binary frame type: " + code);
+        }
+        int statusCode = frame.getShort() & 0xFFFF;
+        int requestIdLength = frame.getShort() & 0xFFFF;
+        frame.getShort();
+        long metaLength = frame.getInt() & 0xFFFFFFFFL;
+        long bodyLength = frame.getInt() & 0xFFFFFFFFL;
+        if (requestIdLength + metaLength + bodyLength != frame.remaining()) {
+            throw new IllegalArgumentException("Binary frame lengths do not match its size");
+        }
+
+        String requestId = requestIdLength > 0 ? string(frame, requestIdLength) : null;
+        RelayMessage message = metaLength > 0
+                ? GSON.fromJson(string(frame, (int) metaLength), RelayMessage.class) : new RelayMessage();
+        message.type = TYPES[code];
+        message.requestId = requestId;
+        if (RelayMessage.TYPE_HTTP_RESPONSE.equals(message.type)
+                || RelayMessage.TYPE_HTTP_RESPONSE_START.equals(message.type)) {
+            message.statusCode = statusCode;
+        }
+
+        byte[] body = new byte[(int) bodyLength];
+        frame.get(body);
+        if (RelayMessage.TYPE_COLLECTION_FILE_RESPONSE.equals(message.type)) {
+            message.fileContent = new String(body, StandardCharsets.UTF_8);
+        } else if (body.length > 0) {
+            message.rawBody = body;
+        }
+        return message;
+    }
+
+    private static int typeCode(String type) {
+        for (int code = 1; code < TYPES.length; code++) {
+            if (TYPES[code].equals(type)) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException("No binary code for message type: " + type);
+    }
+
+    private static String string(ByteBuffer frame, int length) {
+        String value;
+        if (frame.hasArray()) {
+            value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            frame.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
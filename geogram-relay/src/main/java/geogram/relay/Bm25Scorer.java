@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Field-weighted BM25 (BM25F) scorer prepared once per query
+ *
+ * Query terms are matched as token prefixes. Inverse document frequencies
+ * and average field lengths are aggregated over the collections of every
+ * device the query can reach before the search starts, so scores are
+ * comparable across collections and shards. Scoring a document only reads {@link TermIndex} arrays and the
+ * per-collection term ranges from {@link #resolve}; nothing is allocated
+ * per candidate.
+ *
+ * Scores are normalized by the best score the query could reach, which
+ * keeps them in [0, 1) like the rest of the relevance values.
+ *
+ * @author brito
+ */
+public class Bm25Scorer {
+
+    // Standard BM25 saturation and length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // Field boosts: name > title > description > metadata
+    private static final double[] BOOSTS = new double[TermIndex.FIELD_COUNT];
+    static {
+        BOOSTS[TermIndex.FIELD_NAME] = 3.0;
+        BOOSTS[TermIndex.FIELD_TITLE] = 2.0;
+        BOOSTS[TermIndex.FIELD_DESCRIPTION] = 1.0;
+        BOOSTS[TermIndex.FIELD_METADATA] = 0.5;
+    }
+
+    private static final int[] FILE_FIELDS = {TermIndex.FIELD_NAME, TermIndex.FIELD_METADATA};
+    private static final int[] COLLECTION_FIELDS = {TermIndex.FIELD_TITLE, TermIndex.FIELD_DESCRIPTION};
+
+    private final String[] terms;
+    private final double[] idf;
+    private final double[] averageLength = new double[TermIndex.FIELD_COUNT];
+    private final double maxScore;
+
+    private Bm25Scorer(String[] terms, Iterable<IndexedCollection> collections) {
+        this.terms = terms;
+        this.idf = new double[terms.length];
+
+        long docCount = 0;
+        long[] docFreq = new long[terms.length];
+        long[] fieldTokens = new long[TermIndex.FIELD_COUNT];
+        long[] fieldDocs = new long[TermIndex.FIELD_COUNT];
+
+        for (IndexedCollection collection : collections) {
+            TermIndex termIndex = collection.termIndex;
+            docCount += termIndex.getDocCount();
+            for (int field = 0; field < TermIndex.FIELD_COUNT; field++) {
+                fieldTokens[field] += termIndex.fieldTokenCount(field);
+                fieldDocs[field] += termIndex.fieldDocCount(field);
+            }
+            for (int t = 0; t < terms.length; t++) {
+                int start = termIndex.rangeStart(terms[t]);
+                docFreq[t] += termIndex.docFreq(start, termIndex.rangeEnd(terms[t], start));
+            }
+        }
+
+        double bestScore = 0;
+        for (int t = 0; t < terms.length; t++) {
+            long df = Math.min(docFreq[t], docCount);
+            // BM25 idf with the +1 variant, which never goes negative
+            idf[t] = Math.log(1.0 + (docCount - df + 0.5) / (df + 0.5));
+            bestScore += idf[t] * (K1 + 1);
+        }
+        for (int field = 0; field < TermIndex.FIELD_COUNT; field++) {
+            averageLength[field] = fieldDocs[field] > 0 && fieldTokens[field] > 0
+                    ? (double) fieldTokens[field] / fieldDocs[field] : 1.0;
+        }
+        this.maxScore = bestScore;
+    }
+
+    /**
+     * Prepare a scorer for a normalized query over the given collections
+     */
+    public static Bm25Scorer prepare(String normalizedQuery, Iterable<IndexedCollection> collections) {
+        Set<String> distinct = new LinkedHashSet<>(TermIndex.tokenize(normalizedQuery));
+        return new Bm25Scorer(distinct.toArray(new String[0]), collections);
+    }
+
+    /**
+     * Term id range [ranges[2t], ranges[2t + 1]) of each query term in a collection
+     */
+    public int[] resolve(TermIndex termIndex) {
+        int[] ranges = new int[terms.length * 2];
+        for (int t = 0; t < terms.length; t++) {
+            int start = termIndex.rangeStart(terms[t]);
+            ranges[2 * t] = start;
+            ranges[2 * t + 1] = termIndex.rangeEnd(terms[t], start);
+        }
+        return ranges;
+    }
+
+    /**
+     * Normalized score of a file document
+     */
+    public double scoreFile(TermIndex termIndex, int[] ranges, int doc) {
+        return score(termIndex, ranges, doc, FILE_FIELDS);
+    }
+
+    /**
+     * Normalized score of the collection document (title and description)
+     */
+    public double scoreCollection(TermIndex termIndex, int[] ranges) {
+        return score(termIndex, ranges, 0, COLLECTION_FIELDS);
+    }
+
+    private double score(TermIndex termIndex, int[] ranges, int doc, int[] fields) {
+        if (maxScore <= 0) {
+            return 0.0;
+        }
+
+        double score = 0.0;
+        for (int t = 0; t < terms.length; t++) {
+            int start = ranges[2 * t];
+            int end = ranges[2 * t + 1];
+            if (start == end) {
+                continue;
+            }
+
+            // Combine boosted, length-normalized term frequencies across fields before saturating
+            double weighted = 0.0;
+            for (int field : fields) {
+                int tf = termIndex.termFreq(field, doc, start, end);
+                if (tf > 0) {
+                    double length = termIndex.fieldLength(field, doc);
+                    weighted += BOOSTS[field] * tf / (1 - B + B * length / averageLength[field]);
+                }
+            }
+            if (weighted > 0) {
+                score += idf[t] * weighted * (K1 + 1) / (K1 + weighted);
+            }
+        }
+        return score / maxScore;
+    }
+
+    /**
+     * Highest normalized score a document of a collection can reach: a
+     * query term found in its dictionary adds less than idf * (k1 + 1)
+     */
+    public double upperBound(int[] ranges) {
+        if (maxScore <= 0) {
+            return 0.0;
+        }
+        double bound = 0.0;
+        for (int t = 0; t < terms.length; t++) {
+            if (ranges[2 * t] != ranges[2 * t + 1]) {
+                bound += idf[t] * (K1 + 1);
+            }
+        }
+        return bound / maxScore;
+    }
+
+    public int getTermCount() {
+        return terms.length;
+    }
+}
@@ -4,243 +4,1176 @@
  */
 package geogram.relay;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
 /**
  * Search engine for collections stored in the relay
  * Indexes and searches collection metadata and file trees
  *
+ * The index is built once from disk on startup and then kept up to date
+ * through {@link #indexCollectionFile}, so queries never touch disk.
+ * With persistence enabled, the index is also written to segment files
+ * and later restarts load those instead of scanning every collection.
+ *
+ * Each device is a shard of the {@link SearchIndex} that is read on first
+ * use (from segments, or from disk without persistence) and evicted when
+ * resident shards exceed the memory limit. A query only visits devices
+ * whose {@link ShardFilter} holds every trigram it needs.
+ *
  * @author brito
  */
 public class CollectionSearcher {
 
     private static final Logger LOG = LoggerFactory.getLogger(CollectionSearcher.class);
+
+    // Collection file names as sent by devices in COLLECTION_FILE_RESPONSE
+    public static final String COLLECTION_FILE = "collection.js";
+    public static final String TREE_FILE = "extra/tree.json";
+    public static final String DATA_FILE = "extra/data.js";
+
+    // Relevance tiers
+    private static final double EXACT_MATCH = 1.0;
+    private static final double PREFIX_MATCH = 0.9;
+    private static final double WORD_BOUNDARY_MATCH = 0.8;
+    private static final double FILTER_MATCH = 0.5;  // Boolean query hits matched by no ranking term
+
+    // Relevance = BM25F score blended with the positional tier of the best matching field
+    private static final double BM25_WEIGHT = 0.6;
+    private static final double TIER_WEIGHT = 1.0 - BM25_WEIGHT;
+
+    // Tier discount for matches found only in a secondary field
+    private static final double DESCRIPTION_TIER = 0.8;
+    private static final double METADATA_TIER = 0.5;
+
+    // Tier of a file found only by fuzzy matching, scaled down by the typos it needed
+    private static final double FUZZY_MATCH = 0.6;
+
+    // Tie-break sequence space reserved per device shard, based at its stable shard id
+    private static final int SHARD_SEQUENCE_BITS = 40;
+
     private final String deviceStoragePath;
+    private final SearchIndex index = new SearchIndex();
+
+    // Autocomplete trie, rebuilt in the background after index changes from
+    // term counts kept for every collection, resident or not
+    private volatile SuggestIndex suggestIndex = SuggestIndex.empty();
+    private final SuggestIndex.TermCounter suggestTerms = new SuggestIndex.TermCounter();
+    private final AtomicBoolean suggestDirty = new AtomicBoolean(false);
+
+    // Persisted index segments (null = in-memory only)
+    private volatile SegmentStore segmentStore;
+
+    // Pool used to fan a query out across device shards (null = sequential)
+    private final ForkJoinPool searchPool;
+    private final int parallelism;
 
     public CollectionSearcher(String deviceStoragePath) {
+        this(deviceStoragePath, 1);
+    }
+
+    /**
+     * @param parallelism Threads used per query (1 = sequential, 0 = one per CPU core)
+     */
+    public CollectionSearcher(String deviceStoragePath, int parallelism) {
         this.deviceStoragePath = deviceStoragePath;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.searchPool = this.parallelism > 1 ? new ForkJoinPool(this.parallelism) : null;
+        this.index.addListener(collection -> {
+            suggestTerms.put(collection.callsign, collection.collectionName, collection.suggestTerms());
+            suggestDirty.set(true);
+        });
+        this.index.setLoader(this::readDevice);
+        LOG.info("Collection search parallelism: {}", this.parallelism);
     }
 
     /**
-     * Search across all collections
+     * Persist the index as segment files so restarts do not re-parse every
+     * collection. Must be called before {@link #loadIndex}.
+     */
+    public void enablePersistence(int maxDeltaSegments) {
+        SegmentStore store = new SegmentStore(deviceStoragePath, maxDeltaSegments);
+        try {
+            store.open();
+        } catch (IOException e) {
+            LOG.error("Could not open search index segments, persistence disabled", e);
+            return;
+        }
+        segmentStore = store;
+        index.addListener(store::stage);
+        index.setLoader(store::loadDevice);
+    }
+
+    /**
+     * Limit the heap held by resident device shards (0 = keep every device resident)
+     */
+    public void setMemoryLimit(long bytes) {
+        index.setMemoryLimit(bytes);
+    }
+
+    /**
+     * Load a device's shard ahead of its first query, e.g. when it connects
+     */
+    public void preloadDevice(String callsign) {
+        index.preload(callsign);
+    }
+
+    /**
+     * Load the index from persisted segments when available, otherwise build
+     * it from devices/{callsign}/collections/{name} on disk
+     */
+    public void loadIndex() {
+        if (segmentStore != null && segmentStore.hasSegments() && loadSegments()) {
+            // Pick up anything that changed on disk while the relay was down, then
+            // build autocomplete off the startup path
+            Thread reconcile = new Thread(() -> {
+                reconcileWithDisk();
+                rebuildSuggestIndex();
+            }, "search-index-reconcile");
+            reconcile.setDaemon(true);
+            reconcile.start();
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        scanDisk(this::loadCollection);
+
+        LOG.info("Search index loaded: {} collections, {} files in {} ms",
+                index.getCollectionCount(), index.getFileCount(),
+                System.currentTimeMillis() - start);
+
+        if (segmentStore != null) {
+            try {
+                segmentStore.writeBase();
+            } catch (IOException e) {
+                LOG.error("Error writing search index segments", e);
+            }
+        }
+
+        rebuildSuggestIndex();
+    }
+
+    /**
+     * Register every persisted device as an unloaded shard; collections are
+     * decoded when a device is first searched
      *
-     * @param query Search query string
-     * @param limit Maximum number of results to return
-     * @return List of search results sorted by relevance
+     * @return false if the segments could not be read
      */
-    public List<SearchResult> search(String query, int limit) {
-        if (query == null || query.trim().isEmpty()) {
-            return Collections.emptyList();
+    private boolean loadSegments() {
+        long start = System.currentTimeMillis();
+        try {
+            for (String callsign : segmentStore.getCallsigns()) {
+                ShardFilter.Builder filter = new ShardFilter.Builder();
+                List<SearchIndex.CollectionInfo> collections = segmentStore.summarize(callsign, filter, suggestTerms);
+                index.addShard(callsign, collections, filter.build());
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Could not read search index segments, rebuilding from disk", e);
+            return false;
+        }
+
+        LOG.info("Search index restored from {} segments: {} devices, {} collections, {} files in {} ms",
+                segmentStore.getSegmentCount(), index.getShardCount(), index.getCollectionCount(),
+                index.getFileCount(), System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * Re-read collections whose files are newer than their indexed snapshot
+     * and drop collections that no longer exist on disk
+     */
+    private void reconcileWithDisk() {
+        long start = System.currentTimeMillis();
+        Set<String> present = new HashSet<>();
+        int[] reloaded = {0};
+
+        scanDisk((callsign, collectionName, collectionPath) -> {
+            present.add(callsign + "/" + collectionName);
+            SearchIndex.CollectionInfo indexed = index.getInfo(callsign, collectionName);
+            if (indexed == null || lastModified(collectionPath) > indexed.indexedAt) {
+                loadCollection(callsign, collectionName, collectionPath);
+                reloaded[0]++;
+            }
+        });
+
+        int removed = 0;
+        for (String callsign : index.getCallsigns()) {
+            for (String collectionName : new ArrayList<>(index.getCollectionNames(callsign))) {
+                if (!present.contains(callsign + "/" + collectionName)) {
+                    index.remove(callsign, collectionName);
+                    suggestTerms.remove(callsign, collectionName);
+                    segmentStore.stageRemoval(callsign, collectionName);
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            suggestDirty.set(true);
         }
 
-        String normalizedQuery = query.toLowerCase().trim();
-        List<SearchResult> results = new ArrayList<>();
+        LOG.info("Search index reconciled with disk: {} reloaded, {} removed in {} ms",
+                reloaded[0], removed, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Latest modification time of the indexed files of a collection (0 if none)
+     */
+    private static long lastModified(Path collectionPath) {
+        long latest = 0;
+        for (String fileName : new String[] {COLLECTION_FILE, TREE_FILE, DATA_FILE}) {
+            try {
+                latest = Math.max(latest, Files.getLastModifiedTime(collectionPath.resolve(fileName)).toMillis());
+            } catch (IOException e) {
+                // Missing file
+            }
+        }
+        return latest;
+    }
 
+    /**
+     * Write collections updated since the last flush to a delta segment
+     */
+    public void flushIndex() {
+        if (segmentStore == null) {
+            return;
+        }
+        try {
+            segmentStore.flush();
+        } catch (IOException e) {
+            LOG.error("Error flushing search index segments", e);
+        }
+    }
+
+    /**
+     * Visit every collection directory under devices/{callsign}/collections/
+     */
+    private void scanDisk(CollectionVisitor visitor) {
         try {
             Path devicesDir = Paths.get(deviceStoragePath);
             if (!Files.exists(devicesDir)) {
                 LOG.warn("Device storage path does not exist: {}", deviceStoragePath);
-                return results;
+                return;
             }
 
-            // Iterate through all device directories
+            // Iterate through all device directories (skipping .index and other hidden entries)
             try (Stream<Path> devicePaths = Files.list(devicesDir)) {
-                devicePaths.filter(Files::isDirectory).forEach(devicePath -> {
+                devicePaths.filter(Files::isDirectory)
+                        .filter(path -> !path.getFileName().toString().startsWith("."))
+                        .forEach(devicePath -> {
                     String callsign = devicePath.getFileName().toString();
                     Path collectionsDir = devicePath.resolve("collections");
 
                     if (Files.exists(collectionsDir) && Files.isDirectory(collectionsDir)) {
-                        searchDeviceCollections(callsign, collectionsDir, normalizedQuery, results);
+                        visitDeviceCollections(callsign, collectionsDir, visitor);
                     }
                 });
             }
 
         } catch (IOException e) {
-            LOG.error("Error during search", e);
+            LOG.error("Error building search index", e);
+        }
+    }
+
+    private interface CollectionVisitor {
+        void visit(String callsign, String collectionName, Path collectionPath);
+    }
+
+    /**
+     * Rebuild the autocomplete trie from file names and collection titles
+     * (read from the resident term counts, so no evicted device is loaded)
+     */
+    public void rebuildSuggestIndex() {
+        long start = System.currentTimeMillis();
+        suggestDirty.set(false);
+        suggestIndex = suggestTerms.build();
+
+        LOG.debug("Suggest index rebuilt: {} terms, {} nodes in {} ms",
+                suggestIndex.getTermCount(), suggestIndex.getNodeCount(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Rebuild the autocomplete trie if the index changed since the last build
+     */
+    public void refreshSuggestIndex() {
+        if (suggestDirty.get()) {
+            rebuildSuggestIndex();
         }
+    }
 
-        // Sort by relevance (descending) and limit results
-        return results.stream()
-                .sorted((a, b) -> Double.compare(b.relevance, a.relevance))
-                .limit(limit)
-                .collect(Collectors.toList());
+    /**
+     * Prefix completions over file names and collection titles
+     */
+    public List<SuggestIndex.Suggestion> suggest(String prefix, int limit) {
+        if (prefix == null || prefix.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        return suggestIndex.suggest(prefix.trim(), limit);
     }
 
     /**
-     * Search collections for a specific device
+     * Visit the collections of a specific device
      */
-    private void searchDeviceCollections(String callsign, Path collectionsDir,
-                                        String query, List<SearchResult> results) {
+    private void visitDeviceCollections(String callsign, Path collectionsDir, CollectionVisitor visitor) {
         try (Stream<Path> collectionPaths = Files.list(collectionsDir)) {
             collectionPaths.filter(Files::isDirectory).forEach(collectionPath -> {
                 String collectionName = collectionPath.getFileName().toString();
-                searchCollection(callsign, collectionName, collectionPath, query, results);
+                visitor.visit(callsign, collectionName, collectionPath);
             });
         } catch (IOException e) {
-            LOG.error("Error searching collections for device {}", callsign, e);
+            LOG.error("Error loading collections for device {}", callsign, e);
         }
     }
 
     /**
-     * Search within a single collection
+     * Load a single collection from disk into the index
+     */
+    private void loadCollection(String callsign, String collectionName, Path collectionPath) {
+        index.put(readCollection(callsign, collectionName, collectionPath));
+    }
+
+    /**
+     * Read every collection of a device from disk (shard loader without persistence)
+     */
+    private Collection<IndexedCollection> readDevice(String callsign) {
+        List<IndexedCollection> collections = new ArrayList<>();
+        Path collectionsDir = Paths.get(deviceStoragePath).resolve(callsign).resolve("collections");
+        if (Files.isDirectory(collectionsDir)) {
+            visitDeviceCollections(callsign, collectionsDir, (device, collectionName, collectionPath) ->
+                    collections.add(readCollection(device, collectionName, collectionPath)));
+        }
+        return collections;
+    }
+
+    /**
+     * Parse a collection's files from disk
      */
-    private void searchCollection(String callsign, String collectionName,
-                                 Path collectionPath, String query,
-                                 List<SearchResult> results) {
-        // Parse collection metadata
-        Path collectionFile = collectionPath.resolve("collection.js");
-        CollectionMetadata metadata = parseCollectionMetadata(collectionFile);
+    private IndexedCollection readCollection(String callsign, String collectionName, Path collectionPath) {
+        IndexedCollection collection = new IndexedCollection(callsign, collectionName);
+
+        Path collectionFile = collectionPath.resolve(COLLECTION_FILE);
+        if (Files.exists(collectionFile)) {
+            try {
+                collection = applyCollectionMetadata(collection, Files.readString(collectionFile));
+            } catch (IOException e) {
+                LOG.error("Error reading collection.js: {}", collectionFile, e);
+            }
+        }
 
-        if (metadata == null) {
+        Path treeJsonFile = collectionPath.resolve(TREE_FILE);
+        if (Files.exists(treeJsonFile)) {
+            try (Reader reader = Files.newBufferedReader(treeJsonFile)) {
+                collection = applyTreeJson(collection, reader);
+            } catch (IOException e) {
+                LOG.error("Error reading tree.json: {}", treeJsonFile, e);
+            }
+        }
+
+        Path dataFile = collectionPath.resolve(DATA_FILE);
+        if (Files.exists(dataFile)) {
+            try (Reader reader = Files.newBufferedReader(dataFile)) {
+                collection = applyDataJs(collection, reader);
+            } catch (IOException e) {
+                LOG.error("Error reading data.js: {}", dataFile, e);
+            }
+        }
+
+        if (!collection.hasMetadata()) {
             LOG.warn("Could not parse collection metadata: {}", collectionFile);
+        }
+        return collection;
+    }
+
+    /**
+     * Update the index with a collection file received from a device
+     *
+     * @param callsign       Device callsign
+     * @param collectionName Collection name
+     * @param fileName       File name as stored (e.g. "collection.js", "extra/tree.json", "extra/data.js")
+     * @param content        File content
+     */
+    public void indexCollectionFile(String callsign, String collectionName, String fileName, String content) {
+        if (!COLLECTION_FILE.equals(fileName) && !TREE_FILE.equals(fileName) && !DATA_FILE.equals(fileName)) {
             return;
         }
 
-        // Check if collection title or description matches
-        boolean collectionMatches = false;
-        double collectionRelevance = 0.0;
+        // Parsed outside any lock against the current snapshot; re-applied if a concurrent sync won
+        index.update(callsign, collectionName, collection -> {
+            if (COLLECTION_FILE.equals(fileName)) {
+                return applyCollectionMetadata(collection, content);
+            } else if (TREE_FILE.equals(fileName)) {
+                return applyTreeJson(collection, new StringReader(content));
+            }
+            return applyDataJs(collection, new StringReader(content));
+        });
+        LOG.debug("Indexed {} for {}/{}", fileName, callsign, collectionName);
+    }
+
+    /**
+     * Get the resident index
+     */
+    public SearchIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Search across all collections
+     *
+     * @param query Search query string
+     * @param limit Maximum number of results to return
+     * @return List of search results sorted by relevance
+     */
+    public List<SearchResult> search(String query, int limit) {
+        return search(new SearchRequest(query, limit));
+    }
+
+    /**
+     * Search with filters, facets, a search-after cursor, a deadline and/or
+     * progressive results, as set on the request
+     *
+     * @return List of search results sorted by relevance (partial if
+     *         {@link SearchRequest#truncated} is set afterwards)
+     * @throws IllegalArgumentException if the query syntax is malformed
+     */
+    public List<SearchResult> search(SearchRequest request) {
+        if (request.query == null || request.query.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String normalizedQuery = SearchQuery.normalize(request.query);
+        SearchQuery plan = SearchQuery.parse(normalizedQuery);
+        // Sorted so shards split the same way on every query; devices whose
+        // trigram filter rules the query out are never loaded
+        String[] callsigns = index.getCallsigns().stream()
+                .filter(request.filter::acceptsCallsign)
+                .filter(callsign -> mayMatch(callsign, normalizedQuery, plan, request))
+                .sorted()
+                .toArray(String[]::new);
+
+        // Term statistics over the devices the query can reach, gathered once so every shard scores alike
+        Bm25Scorer scorer = Bm25Scorer.prepare(plan != null ? plan.rankingText() : normalizedQuery,
+                index.getCollections(callsigns));
+        QueryContext context = new QueryContext(normalizedQuery, plan, scorer, request);
 
-        if (metadata.title != null && metadata.title.toLowerCase().contains(query)) {
-            collectionMatches = true;
-            collectionRelevance = calculateRelevance(metadata.title.toLowerCase(), query);
+        ShardHits hits;
+        if (searchPool != null && callsigns.length > 1) {
+            // Split into a few shards per worker so uneven devices still balance
+            int shardSize = Math.max(1, callsigns.length / (parallelism * 4));
+            hits = searchPool.invoke(new ShardSearchTask(callsigns, 0, callsigns.length, shardSize, context));
+        } else {
+            hits = context.newHits();
+            searchDevices(callsigns, 0, callsigns.length, context, hits);
         }
 
-        if (metadata.description != null && metadata.description.toLowerCase().contains(query)) {
-            collectionMatches = true;
-            double descRelevance = calculateRelevance(metadata.description.toLowerCase(), query);
-            collectionRelevance = Math.max(collectionRelevance, descRelevance * 0.8);
+        if (request.facets != null) {
+            request.facets.merge(hits.facets);
         }
+        return hits.top.toResults();
+    }
 
-        if (collectionMatches) {
-            results.add(new SearchResult(
-                callsign,
-                collectionName,
-                metadata.title,
-                metadata.description,
-                null,
-                null,
-                null,
-                null, // No file size for collections
-                "collection",
-                collectionRelevance
-            ));
+    /**
+     * False if the device's trigram filter shows it cannot hold a hit (fuzzy
+     * queries match other spellings, so they visit every device)
+     */
+    private boolean mayMatch(String callsign, String normalizedQuery, SearchQuery plan, SearchRequest request) {
+        ShardFilter filter = index.getFilter(callsign);
+        if (plan != null) {
+            return plan.mayMatch(callsign, filter);
         }
+        return request.fuzzy > 0 || filter.mightContain(normalizedQuery);
+    }
 
-        // Search file tree using tree.json
-        Path treeJsonFile = collectionPath.resolve("extra").resolve("tree.json");
+    /**
+     * Per-query state shared by every shard
+     */
+    private static class QueryContext {
+        final String query;
+        final SearchQuery plan;  // Compiled boolean query (null = plain substring query)
+        final Bm25Scorer scorer;
+        final SearchRequest request;
+        final SearchFilter filter;
 
-        if (Files.exists(treeJsonFile)) {
-            searchTreeJson(callsign, collectionName, metadata, treeJsonFile, query, results);
+        // Global running top-K used to decide which hits to stream (null when not streaming)
+        final TopKCollector streamed;
+
+        // One automaton per distinct query term in fuzzy mode (null = exact only, or a boolean query)
+        final LevenshteinAutomaton[] fuzzyTerms;
+        final int fuzzyEdits;  // Most edits a fuzzy hit can need across all terms
+
+        QueryContext(String query, SearchQuery plan, Bm25Scorer scorer, SearchRequest request) {
+            this.query = query;
+            this.plan = plan;
+            this.scorer = scorer;
+            this.request = request;
+            this.filter = request.filter;
+            this.streamed = request.listener != null ? newCollector() : null;
+
+            List<String> words = new ArrayList<>(new LinkedHashSet<>(TermIndex.tokenize(query)));
+            if (request.fuzzy > 0 && plan == null && !words.isEmpty()) {
+                fuzzyTerms = new LevenshteinAutomaton[words.size()];
+                int edits = 0;
+                for (int i = 0; i < fuzzyTerms.length; i++) {
+                    String word = words.get(i);
+                    fuzzyTerms[i] = new LevenshteinAutomaton(word, LevenshteinAutomaton.editsFor(word, request.fuzzy));
+                    edits += fuzzyTerms[i].maxEdits;
+                }
+                fuzzyEdits = edits;
+            } else {
+                fuzzyTerms = null;
+                fuzzyEdits = 0;
+            }
+        }
+
+        TopKCollector newCollector() {
+            TopKCollector collector = new TopKCollector(request.limit);
+            if (request.after != null) {
+                collector.setAfter(request.after.score, request.after.sequence);
+            }
+            return collector;
+        }
+
+        ShardHits newHits() {
+            return new ShardHits(newCollector(), request.facets != null ? new FacetCounts() : null);
+        }
+
+        /**
+         * True once the deadline has passed; the search then stops and is marked truncated
+         */
+        boolean expired() {
+            if (request.isExpired()) {
+                request.truncated = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Stream the hits of a finished device that are still in the running top-K
+         */
+        void publish(TopKCollector device) {
+            synchronized (streamed) {
+                List<SearchResult> batch = streamed.mergeKept(device);
+                if (!batch.isEmpty()) {
+                    request.listener.onResults(batch);
+                }
+            }
         }
     }
 
     /**
-     * Search within tree.json file (pure JSON format)
+     * Top-K hits of a shard plus its facet counts (null when not counting)
      */
-    private void searchTreeJson(String callsign, String collectionName,
-                               CollectionMetadata metadata, Path treeJsonFile,
-                               String query, List<SearchResult> results) {
-        try {
-            String content = Files.readString(treeJsonFile);
-            JsonArray treeData = JsonParser.parseString(content).getAsJsonArray();
+    private static class ShardHits {
+        final TopKCollector top;
+        final FacetCounts facets;
+
+        ShardHits(TopKCollector top, FacetCounts facets) {
+            this.top = top;
+            this.facets = facets;
+        }
+
+        void merge(ShardHits other) {
+            top.merge(other.top);
+            if (facets != null) {
+                facets.merge(other.facets);
+            }
+        }
+    }
+
+    /**
+     * Search the collections of callsigns[from..to) into one collector
+     */
+    private void searchDevices(String[] callsigns, int from, int to, QueryContext context, ShardHits hits) {
+        for (int i = from; i < to; i++) {
+            if (context.expired()) {
+                return;
+            }
+
+            // When streaming, each device is ranked on its own so it can be published once done
+            ShardHits device = context.streamed != null ? new ShardHits(context.newCollector(), hits.facets) : hits;
+            device.top.startSequence((long) index.getShardId(callsigns[i]) << SHARD_SEQUENCE_BITS);
+            for (IndexedCollection collection : index.getCollections(callsigns[i])) {
+                if (context.expired()) {
+                    break;
+                }
+                device.top.startCollection(collection.files.size());
+                searchCollection(collection, context, device);
+            }
+
+            if (device != hits) {
+                hits.top.merge(device.top);
+                context.publish(device.top);
+            }
+        }
+    }
+
+    /**
+     * Fork-join task searching a range of devices; leaves produce a local top-K
+     * and parents merge their children's heaps
+     */
+    private class ShardSearchTask extends RecursiveTask<ShardHits> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] callsigns;
+        private final int from;
+        private final int to;
+        private final int shardSize;
+        private final transient QueryContext context;  // Tasks are never serialized
+
+        ShardSearchTask(String[] callsigns, int from, int to, int shardSize, QueryContext context) {
+            this.callsigns = callsigns;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+            this.context = context;
+        }
+
+        @Override
+        protected ShardHits compute() {
+            if (to - from <= shardSize) {
+                ShardHits local = context.newHits();
+                searchDevices(callsigns, from, to, context, local);
+                return local;
+            }
+
+            int mid = (from + to) >>> 1;
+            ShardSearchTask left = new ShardSearchTask(callsigns, from, mid, shardSize, context);
+            ShardSearchTask right = new ShardSearchTask(callsigns, mid, to, shardSize, context);
+            left.fork();
+            ShardHits merged = right.compute();
+            merged.merge(left.join());
+            return merged;
+        }
+    }
+
+    /**
+     * Stop the search thread pool
+     */
+    public void shutdown() {
+        flushIndex();
+        if (searchPool != null) {
+            searchPool.shutdown();
+        }
+    }
+
+    /**
+     * Search within a single collection
+     *
+     * A collection or file is a hit when the query occurs in one of its
+     * fields; hits are ranked by BM25F blended with the positional tier of
+     * the best matching field.
+     */
+    private void searchCollection(IndexedCollection collection, QueryContext context, ShardHits hits) {
+        if (!collection.hasMetadata()) {
+            return;
+        }
+
+        // Skip a collection whose best possible hit could not enter the full
+        // heap (facet counts need every hit, so they disable the skip)
+        int[] ranges = context.scorer.resolve(collection.termIndex);
+        if (hits.facets == null && hits.top.isFull()
+                && blend(context.scorer.upperBound(ranges), EXACT_MATCH) < hits.top.threshold()) {
+            return;
+        }
+
+        if (context.plan != null) {
+            searchCollectionPlan(collection, context, hits, ranges);
+            return;
+        }
+
+        String query = context.query;
+        SearchFilter filter = context.filter;
+        TopKCollector collector = hits.top;
+
+        // Check if collection title or description matches (type/size filters only admit files)
+        double collectionTier = -1;
+        if (!filter.filesOnly()) {
+            int[] metadataCandidates = collection.metadataIndex.candidates(query);
+
+            if (isCandidate(metadataCandidates, IndexedCollection.DOC_TITLE)
+                    && collection.titleLower != null && collection.titleLower.contains(query)) {
+                collectionTier = calculateRelevance(collection.titleLower, query);
+            }
+
+            if (isCandidate(metadataCandidates, IndexedCollection.DOC_DESCRIPTION)
+                    && collection.descriptionLower != null && collection.descriptionLower.contains(query)) {
+                double descRelevance = calculateRelevance(collection.descriptionLower, query);
+                collectionTier = Math.max(collectionTier, descRelevance * DESCRIPTION_TIER);
+            }
+        }
+
+        if (collectionTier >= 0) {
+            double bm25 = context.scorer.scoreCollection(collection.termIndex, ranges);
+            collector.offer(blend(bm25, collectionTier), collection, TopKCollector.COLLECTION_DOC);
+            if (hits.facets != null) {
+                hits.facets.addCallsign(collection.callsign, 1);
+            }
+        }
+
+        // Search file names and their data.js metadata (not paths)
+        FileTable files = collection.files;
+        int[] candidates = union(collection.fileIndex.candidates(query),
+                collection.fileMetadataIndex.candidates(query));
+        int candidateCount = candidates != null ? candidates.length : files.size();
+
+        // Narrow the candidate set to the requested file type before verifying anything
+        if (filter.fileType != null) {
+            DocBitmap typeDocs = collection.facets.typeBitmap(filter.fileType);
+            if (typeDocs == null) {
+                return;
+            }
+            if (candidates == null) {
+                candidates = typeDocs.toArray();
+                candidateCount = candidates.length;
+            } else {
+                candidateCount = typeDocs.retain(candidates, candidateCount);
+            }
+        }
 
-            // Search through file entries
-            for (int i = 0; i < treeData.size(); i++) {
-                JsonObject fileEntry = treeData.get(i).getAsJsonObject();
+        // Verified hits are recorded in place (never ahead of i) for facet counting
+        int[] hitDocs = hits.facets != null ? (candidates != null ? candidates : new int[candidateCount]) : null;
+        int hitCount = 0;
 
-                String path = fileEntry.has("path") ? fileEntry.get("path").getAsString() : null;
-                String name = fileEntry.has("name") ? fileEntry.get("name").getAsString() : null;
-                String type = fileEntry.has("type") ? fileEntry.get("type").getAsString() : null;
-                Long size = fileEntry.has("size") && !fileEntry.get("size").isJsonNull() ?
-                    fileEntry.get("size").getAsLong() : null;
+        for (int i = 0; i < candidateCount; i++) {
+            int doc = candidates != null ? candidates[i] : i;
+            if (!filter.acceptsSize(files.sizeOf(doc))) {
+                continue;
+            }
+
+            // Trigram candidates are verified to keep exact substring semantics
+            double tier;
+            if (files.nameContains(doc, query)) {
+                tier = calculateRelevance(files.nameLower(doc), query);
+            } else if (files.metadataContains(doc, query)) {
+                tier = calculateRelevance(files.metadataLower(doc), query) * METADATA_TIER;
+            } else {
+                continue;
+            }
+
+            double bm25 = context.scorer.scoreFile(collection.termIndex, ranges, doc);
+            collector.offer(blend(bm25, tier), collection, doc);
+            if (hitDocs != null) {
+                hitDocs[hitCount++] = doc;
+            }
+        }
+
+        if (hits.facets != null) {
+            hits.facets.addFiles(collection, hitDocs, hitCount);
+        }
+
+        if (context.fuzzyTerms != null) {
+            searchFuzzyFiles(collection, context, hits, ranges);
+        }
+    }
+
+    /**
+     * Add files whose name holds every query term within the allowed edits,
+     * skipping those already found by the exact pass
+     *
+     * Each term's automaton is intersected with the collection's dictionary
+     * and the name postings of the accepted terms are merged, so the cost
+     * follows the number of near terms rather than the number of files.
+     */
+    private void searchFuzzyFiles(IndexedCollection collection, QueryContext context, ShardHits hits, int[] ranges) {
+        TermIndex termIndex = collection.termIndex;
+        SearchFilter filter = context.filter;
 
-                if (path == null || name == null) {
-                    continue;
+        // Docs matching all terms so far, sorted, with the edits they needed
+        long[] matched = null;
+        int matchedCount = 0;
+
+        for (LevenshteinAutomaton automaton : context.fuzzyTerms) {
+            FuzzyPostings found = new FuzzyPostings(termIndex);
+            termIndex.intersect(automaton, found);
+
+            // Sorting by doc then edits leaves the closest term first for each doc
+            long[] docs = found.hits;
+            Arrays.sort(docs, 0, found.count);
+            int docCount = 0;
+            for (int i = 0; i < found.count; i++) {
+                if (docCount == 0 || fuzzyDoc(docs[docCount - 1]) != fuzzyDoc(docs[i])) {
+                    docs[docCount++] = docs[i];
                 }
+            }
 
-                // Check if name matches query (filename only, not path)
-                String nameLower = name.toLowerCase();
-
-                if (nameLower.contains(query)) {
-                    double relevance = calculateRelevance(nameLower, query);
-
-                    results.add(new SearchResult(
-                        callsign,
-                        collectionName,
-                        metadata.title,
-                        metadata.description,
-                        path,
-                        name,
-                        type,
-                        size,
-                        "file",
-                        relevance
-                    ));
+            if (matched == null) {
+                matched = docs;
+                matchedCount = docCount;
+            } else {
+                matchedCount = intersectFuzzyHits(matched, matchedCount, docs, docCount);
+            }
+            if (matchedCount == 0) {
+                return;
+            }
+        }
+
+        DocBitmap typeDocs = null;
+        if (filter.fileType != null) {
+            typeDocs = collection.facets.typeBitmap(filter.fileType);
+            if (typeDocs == null) {
+                return;
+            }
+        }
+
+        int[] hitDocs = hits.facets != null ? new int[matchedCount] : null;
+        int hitCount = 0;
+        String query = context.query;
+        FileTable files = collection.files;
+
+        for (int i = 0; i < matchedCount; i++) {
+            int doc = fuzzyDoc(matched[i]);
+            if ((typeDocs != null && !typeDocs.contains(doc)) || !filter.acceptsSize(files.sizeOf(doc))) {
+                continue;
+            }
+            // Exact hits were already offered with their own tier
+            if (files.nameContains(doc, query) || files.metadataContains(doc, query)) {
+                continue;
+            }
+
+            double tier = FUZZY_MATCH * (1.0 - (double) fuzzyEdits(matched[i]) / (context.fuzzyEdits + 1));
+            double bm25 = context.scorer.scoreFile(collection.termIndex, ranges, doc);
+            hits.top.offer(blend(bm25, tier), collection, doc);
+            if (hitDocs != null) {
+                hitDocs[hitCount++] = doc;
+            }
+        }
+
+        if (hits.facets != null) {
+            hits.facets.addFiles(collection, hitDocs, hitCount);
+        }
+    }
+
+    /**
+     * Collects the name postings of the terms an automaton accepts
+     */
+    private static class FuzzyPostings implements LevenshteinAutomaton.TermVisitor {
+        final TermIndex termIndex;
+        long[] hits = new long[16];
+        int count;
+
+        FuzzyPostings(TermIndex termIndex) {
+            this.termIndex = termIndex;
+        }
+
+        @Override
+        public void onTerm(int term, int edits) {
+            for (int i = termIndex.namePostingStart(term); i < termIndex.namePostingEnd(term); i++) {
+                if (count == hits.length) {
+                    hits = Arrays.copyOf(hits, count * 2);
                 }
+                hits[count++] = encodeFuzzyHit(termIndex.namePosting(i), edits);
             }
+        }
+    }
+
+    // Fuzzy hits pack the doc in the high bits and its edits in the low byte, so they sort by doc
+    private static long encodeFuzzyHit(int doc, int edits) {
+        return ((long) doc << 8) | edits;
+    }
+
+    private static int fuzzyDoc(long hit) {
+        return (int) (hit >>> 8);
+    }
+
+    private static int fuzzyEdits(long hit) {
+        return (int) (hit & 0xFF);
+    }
+
+    /**
+     * Keep the docs of a[0..aCount) also in b[0..bCount), summing their edits (in place)
+     */
+    private static int intersectFuzzyHits(long[] a, int aCount, long[] b, int bCount) {
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < aCount && j < bCount) {
+            int docA = fuzzyDoc(a[i]);
+            int docB = fuzzyDoc(b[j]);
+            if (docA < docB) {
+                i++;
+            } else if (docB < docA) {
+                j++;
+            } else {
+                a[size++] = encodeFuzzyHit(docA, fuzzyEdits(a[i]) + fuzzyEdits(b[j]));
+                i++;
+                j++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Search a collection with a compiled boolean query; hits are ranked by
+     * BM25F over the query's terms blended with the best tier among them
+     */
+    private void searchCollectionPlan(IndexedCollection collection, QueryContext context, ShardHits hits,
+                                      int[] ranges) {
+        SearchQuery plan = context.plan;
+        SearchFilter filter = context.filter;
+
+        if (!filter.filesOnly() && plan.matchesCollection(collection)) {
+            double bm25 = context.scorer.scoreCollection(collection.termIndex, ranges);
+            hits.top.offer(blend(bm25, planCollectionTier(collection, plan)), collection,
+                    TopKCollector.COLLECTION_DOC);
+            if (hits.facets != null) {
+                hits.facets.addCallsign(collection.callsign, 1);
+            }
+        }
+
+        if (plan.estimate(collection) == 0) {
+            return;
+        }
+
+        DocBitmap typeDocs = null;
+        if (filter.fileType != null) {
+            typeDocs = collection.facets.typeBitmap(filter.fileType);
+            if (typeDocs == null) {
+                return;
+            }
+        }
+
+        FileTable files = collection.files;
+        int[] docs = plan.matchingFiles(collection);
+        int docCount = docs != null ? docs.length : files.size();
+        int[] hitDocs = hits.facets != null ? new int[docCount] : null;
+        int hitCount = 0;
+
+        for (int i = 0; i < docCount; i++) {
+            int doc = docs != null ? docs[i] : i;
+            if ((typeDocs != null && !typeDocs.contains(doc)) || !filter.acceptsSize(files.sizeOf(doc))) {
+                continue;
+            }
+
+            double bm25 = context.scorer.scoreFile(collection.termIndex, ranges, doc);
+            hits.top.offer(blend(bm25, planFileTier(files, doc, plan)), collection, doc);
+            if (hitDocs != null) {
+                hitDocs[hitCount++] = doc;
+            }
+        }
+
+        if (hits.facets != null) {
+            hits.facets.addFiles(collection, hitDocs, hitCount);
+        }
+    }
+
+    private static double planFileTier(FileTable files, int doc, SearchQuery plan) {
+        double tier = -1;
+        for (SearchQuery.Term term : plan.getRankingTerms()) {
+            if (term.field == SearchQuery.Field.TITLE) {
+                continue;
+            }
+            if (files.nameContains(doc, term.text)) {
+                tier = Math.max(tier, calculateRelevance(files.nameLower(doc), term.text));
+            } else if (term.field == SearchQuery.Field.ANY && files.metadataContains(doc, term.text)) {
+                tier = Math.max(tier, calculateRelevance(files.metadataLower(doc), term.text) * METADATA_TIER);
+            }
+        }
+        return tier >= 0 ? tier : FILTER_MATCH;
+    }
+
+    private static double planCollectionTier(IndexedCollection collection, SearchQuery plan) {
+        double tier = -1;
+        for (SearchQuery.Term term : plan.getRankingTerms()) {
+            if (term.field == SearchQuery.Field.NAME) {
+                continue;
+            }
+            if (collection.titleLower != null && collection.titleLower.contains(term.text)) {
+                tier = Math.max(tier, calculateRelevance(collection.titleLower, term.text));
+            } else if (term.field == SearchQuery.Field.ANY && collection.descriptionLower != null
+                    && collection.descriptionLower.contains(term.text)) {
+                tier = Math.max(tier, calculateRelevance(collection.descriptionLower, term.text) * DESCRIPTION_TIER);
+            }
+        }
+        return tier >= 0 ? tier : FILTER_MATCH;
+    }
+
+    private static double blend(double bm25, double tier) {
+        return BM25_WEIGHT * bm25 + TIER_WEIGHT * tier;
+    }
+
+    /**
+     * Union of two sorted candidate lists (null means all documents)
+     */
+    private static int[] union(int[] a, int[] b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.length == 0) {
+            return b;
+        }
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            result[size++] = next;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Check whether a collection has at least one hit for a query
+     * (used to invalidate cached results when the collection changes)
+     */
+    public boolean matches(IndexedCollection collection, String normalizedQuery) {
+        if (!collection.hasMetadata()) {
+            return false;
+        }
+
+        SearchQuery plan = SearchQuery.parse(normalizedQuery);
+        if (plan != null) {
+            if (plan.matchesCollection(collection)) {
+                return true;
+            }
+            int[] docs = plan.estimate(collection) > 0 ? plan.matchingFiles(collection) : new int[0];
+            return docs == null ? !collection.files.isEmpty() : docs.length > 0;
+        }
+
+        int[] metadataCandidates = collection.metadataIndex.candidates(normalizedQuery);
+        if (isCandidate(metadataCandidates, IndexedCollection.DOC_TITLE)
+                && collection.titleLower != null && collection.titleLower.contains(normalizedQuery)) {
+            return true;
+        }
+        if (isCandidate(metadataCandidates, IndexedCollection.DOC_DESCRIPTION)
+                && collection.descriptionLower != null && collection.descriptionLower.contains(normalizedQuery)) {
+            return true;
+        }
+
+        int[] candidates = union(collection.fileIndex.candidates(normalizedQuery),
+                collection.fileMetadataIndex.candidates(normalizedQuery));
+        int candidateCount = candidates != null ? candidates.length : collection.files.size();
+        for (int i = 0; i < candidateCount; i++) {
+            int doc = candidates != null ? candidates[i] : i;
+            if (collection.files.nameContains(doc, normalizedQuery)
+                    || collection.files.metadataContains(doc, normalizedQuery)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check a sorted candidate list from {@link TrigramIndex#candidates} (null means all documents)
+     */
+    private static boolean isCandidate(int[] candidates, int doc) {
+        return candidates == null || Arrays.binarySearch(candidates, doc) >= 0;
+    }
+
+    /**
+     * Stream tree.json entries (pure JSON format) into the collection's file list
+     */
+    private IndexedCollection applyTreeJson(IndexedCollection collection, Reader source) {
+        try {
+            // Carry data.js metadata over by path, since tree.json and data.js may arrive in either order
+            FileTable previous = collection.files;
+            Map<String, Integer> withMetadata = metadataDocsByPath(previous);
+            FileTable.Builder files = new FileTable.Builder();
+            TreeJsonReader.read(source, (path, name, type, size, mimeType, metadata) -> {
+                Integer known = mimeType == null && metadata == null ? withMetadata.get(path) : null;
+                if (known != null) {
+                    files.add(path, name, type, size, previous.mimeType(known), previous.metadata(known));
+                } else {
+                    files.add(path, name, type, size, mimeType, metadata);
+                }
+            });
+            return collection.withFiles(files.build());
 
-        } catch (IOException e) {
-            LOG.error("Error reading tree.json: {}", treeJsonFile, e);
         } catch (Exception e) {
-            LOG.error("Error parsing tree.json: {}", treeJsonFile, e);
+            LOG.error("Error parsing tree.json for {}/{}", collection.callsign, collection.collectionName, e);
+            return collection;
         }
     }
 
     /**
-     * Parse collection.js file to extract metadata
+     * Stream data.js entries (window.TREE_DATA = [...]) into the collection's
+     * file list; they carry the same fields as tree.json plus mimeType and metadata
      */
-    private CollectionMetadata parseCollectionMetadata(Path collectionFile) {
+    private IndexedCollection applyDataJs(IndexedCollection collection, Reader source) {
         try {
-            if (!Files.exists(collectionFile)) {
-                return null;
-            }
+            FileTable.Builder files = new FileTable.Builder();
+            TreeJsonReader.readScript(source, files::add);
+            return collection.withFiles(files.build());
 
-            String content = Files.readString(collectionFile);
+        } catch (Exception e) {
+            LOG.error("Error parsing data.js for {}/{}", collection.callsign, collection.collectionName, e);
+            return collection;
+        }
+    }
 
+    /**
+     * Docs of a file table that carry data.js fields, by path
+     */
+    private static Map<String, Integer> metadataDocsByPath(FileTable files) {
+        Map<String, Integer> docs = new HashMap<>();
+        if (files.hasMetadata()) {
+            for (int doc = 0; doc < files.size(); doc++) {
+                if (files.metadataLower(doc) != null) {
+                    docs.put(files.path(doc), doc);
+                }
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Parse collection.js content to extract metadata
+     */
+    private IndexedCollection applyCollectionMetadata(IndexedCollection collection, String content) {
+        try {
             // Extract JSON from JavaScript file
             // Format: window.COLLECTION_DATA = {...}
             int startIdx = content.indexOf('{');
             int endIdx = content.lastIndexOf('}');
 
             if (startIdx == -1 || endIdx == -1 || endIdx <= startIdx) {
-                return null;
+                return collection;
             }
 
             String json = content.substring(startIdx, endIdx + 1);
             JsonObject data = JsonParser.parseString(json).getAsJsonObject();
 
             if (!data.has("collection")) {
-                return null;
+                return collection;
             }
 
-            JsonObject collection = data.getAsJsonObject("collection");
+            JsonObject meta = data.getAsJsonObject("collection");
 
-            String id = collection.has("id") ? collection.get("id").getAsString() : null;
-            String title = collection.has("title") ? collection.get("title").getAsString() : null;
-            String description = collection.has("description") ? collection.get("description").getAsString() : null;
-            String updated = collection.has("updated") ? collection.get("updated").getAsString() : null;
+            String id = meta.has("id") ? meta.get("id").getAsString() : null;
+            String title = meta.has("title") ? meta.get("title").getAsString() : null;
+            String description = meta.has("description") ? meta.get("description").getAsString() : null;
+            String updated = meta.has("updated") ? meta.get("updated").getAsString() : null;
 
-            return new CollectionMetadata(id, title, description, updated);
+            return collection.withMetadata(id, title, description, updated);
 
-        } catch (IOException e) {
-            LOG.error("Error reading collection.js: {}", collectionFile, e);
-            return null;
         } catch (Exception e) {
-            LOG.error("Error parsing collection.js: {}", collectionFile, e);
-            return null;
+            LOG.error("Error parsing collection.js for {}/{}", collection.callsign, collection.collectionName, e);
+            return collection;
         }
     }
 
@@ -248,17 +1181,17 @@ public class CollectionSearcher {
      * Calculate relevance score based on query match
      * Returns a value between 0.0 and 1.0
      */
-    private double calculateRelevance(String text, String query) {
+    private static double calculateRelevance(String text, String query) {
         if (text.equals(query)) {
-            return 1.0; // Exact match
+            return EXACT_MATCH;
         }
 
         if (text.startsWith(query)) {
-            return 0.9; // Prefix match
+            return PREFIX_MATCH;
         }
 
-        if (text.contains(" " + query) || text.contains("/" + query) || text.contains("-" + query)) {
-            return 0.8; // Word boundary match
+        if (matchesAtWordBoundary(text, query)) {
+            return WORD_BOUNDARY_MATCH;
         }
 
         // Calculate based on query coverage
@@ -267,19 +1200,17 @@ public class CollectionSearcher {
     }
 
     /**
-     * Collection metadata holder
+     * True if query occurs right after a space, slash or dash
      */
-    private static class CollectionMetadata {
-        String id;
-        String title;
-        String description;
-        String updated;
-
-        CollectionMetadata(String id, String title, String description, String updated) {
-            this.id = id;
-            this.title = title;
-            this.description = description;
-            this.updated = updated;
+    private static boolean matchesAtWordBoundary(String text, String query) {
+        int idx = text.indexOf(query, 1);
+        while (idx > 0) {
+            char before = text.charAt(idx - 1);
+            if (before == ' ' || before == '/' || before == '-') {
+                return true;
+            }
+            idx = text.indexOf(query, idx + 1);
         }
+        return false;
     }
 }
@@ -30,6 +30,7 @@ public class Config {
     public int port = 8080;  // Default for local testing (use 80 for production)
     public String host = "0.0.0.0";
     public boolean enableLogging = true;
+    public boolean useVirtualThreads = false;  // Run HTTP requests and proxied responses on virtual threads
 
     // SSL/TLS settings
     public boolean enableSsl = false;
@@ -84,6 +85,16 @@ public class Config {
     // Device storage
     public String deviceStoragePath = "./devices";
 
+    // Search settings
+    public int searchParallelism = 0;  // Threads per search query (0 = one per CPU core, 1 = sequential)
+    public int searchCacheSize = 1000;  // Cached query results (0 = disabled)
+    public long suggestRefreshInterval = 30;  // Seconds between autocomplete rebuilds after changes
+    public boolean searchIndexPersist = true;  // Keep index segments under deviceStoragePath/.index
+    public long searchIndexFlushInterval = 10;  // Seconds between delta segment flushes
+    public int searchIndexMaxDeltas = 8;  // Delta segments kept before merging into a new base
+    public long searchIndexMemory = 512;  // MB of device shards kept resident (0 = keep every device resident)
+    public long searchMaxTimeout = 10000;  // Upper bound in milliseconds for the /search timeout parameter
+
     /**
      * Load configuration from config.json file
      */
@@ -204,6 +215,41 @@ public class Config {
             return false;
         }
 
+        if (searchParallelism < 0) {
+            LOG.error("Invalid searchParallelism: {} (must be >= 0)", searchParallelism);
+            return false;
+        }
+
+        if (suggestRefreshInterval < 1) {
+            LOG.error("Invalid suggestRefreshInterval: {} (must be >= 1)", suggestRefreshInterval);
+            return false;
+        }
+
+        if (searchCacheSize < 0) {
+            LOG.error("Invalid searchCacheSize: {} (must be >= 0)", searchCacheSize);
+            return false;
+        }
+
+        if (searchIndexFlushInterval < 1) {
+            LOG.error("Invalid searchIndexFlushInterval: {} (must be >= 1)", searchIndexFlushInterval);
+            return false;
+        }
+
+        if (searchIndexMaxDeltas < 1) {
+            LOG.error("Invalid searchIndexMaxDeltas: {} (must be >= 1)", searchIndexMaxDeltas);
+            return false;
+        }
+
+        if (searchIndexMemory < 0) {
+            LOG.error("Invalid searchIndexMemory: {} (must be >= 0)", searchIndexMemory);
+            return false;
+        }
+
+        if (searchMaxTimeout < 1) {
+            LOG.error("Invalid searchMaxTimeout: {} (must be >= 1)", searchMaxTimeout);
+            return false;
+        }
+
         if (enableSsl) {
             File keystoreFile = new File(keystorePath);
             if (!keystoreFile.exists()) {
@@ -272,11 +318,16 @@ public class Config {
                 "port=" + port +
                 ", host='" + host + '\'' +
                 ", enableSsl=" + enableSsl +
+                ", useVirtualThreads=" + useVirtualThreads +
                 ", httpRequestTimeout=" + httpRequestTimeout +
                 ", idleDeviceTimeout=" + idleDeviceTimeout +
                 ", cleanupInterval=" + cleanupInterval +
                 ", maxConnectedDevices=" + maxConnectedDevices +
                 ", maxPendingRequests=" + maxPendingRequests +
+                ", searchParallelism=" + searchParallelism +
+                ", searchIndexPersist=" + searchIndexPersist +
+                ", searchIndexMemory=" + searchIndexMemory +
+                ", searchMaxTimeout=" + searchMaxTimeout +
                 ", location=" + city + ", " + country +
                 " (lat=" + String.format("%.4f", latitude) +
                 ", lon=" + String.format("%.4f", longitude) + ")" +
@@ -5,6 +5,7 @@
 package geogram.relay;
 
 import io.javalin.websocket.WsContext;
+import org.eclipse.jetty.websocket.api.SuspendToken;
 
 /**
  * Represents a connected device
@@ -19,6 +20,11 @@ public class DeviceConnection {
     private final long connectedAt;
     private long lastActivity;
     private final String deviceStoragePath;
+    private volatile boolean binaryFraming;  // Opted in to BinaryFrame in its hello
+    private volatile boolean chunkedUpload;  // Accepts request bodies in HTTP_REQUEST_CHUNK messages
+    private volatile boolean responseCredit;  // Streams responses only as far as HTTP_RESPONSE_CREDIT allows
+    private int readPauses;  // Streamed responses waiting for their client to read
+    private SuspendToken suspended;
 
     public DeviceConnection(String callsign, String npub, WsContext context, String deviceStoragePath) {
         this.callsign = callsign;
@@ -65,11 +71,64 @@ public class DeviceConnection {
         return (System.currentTimeMillis() - lastActivity) / 1000;
     }
 
+    public boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
+    public void setBinaryFraming(boolean binaryFraming) {
+        this.binaryFraming = binaryFraming;
+    }
+
+    public boolean isChunkedUpload() {
+        return chunkedUpload;
+    }
+
+    public void setChunkedUpload(boolean chunkedUpload) {
+        this.chunkedUpload = chunkedUpload;
+    }
+
+    public boolean isResponseCredit() {
+        return responseCredit;
+    }
+
+    public void setResponseCredit(boolean responseCredit) {
+        this.responseCredit = responseCredit;
+    }
+
+    /**
+     * Stop reading from the device's socket until every pause is resumed
+     */
+    public synchronized void pauseReads() {
+        if (readPauses++ == 0) {
+            suspended = context.session.suspend();
+        }
+    }
+
+    public synchronized void resumeReads() {
+        if (readPauses > 0 && --readPauses == 0) {
+            suspended.resume();
+            suspended = null;
+        }
+    }
+
     public void sendMessage(RelayMessage message) {
         context.send(message.toJson());
         updateActivity();
     }
 
+    /**
+     * Send a message with a raw body, as a binary frame if the device opted
+     * in, otherwise as JSON with the body as text
+     */
+    public void sendMessage(RelayMessage message, byte[] body) {
+        if (binaryFraming) {
+            context.send(BinaryFrame.encode(message, body));
+            updateActivity();
+        } else {
+            sendMessage(message);
+        }
+    }
+
     @Override
     public String toString() {
         return "DeviceConnection{callsign=" + callsign +
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Arrays;
+
+/**
+ * Immutable compressed set of document ids (roaring-style)
+ *
+ * Ids are split by their high 16 bits into chunks. A chunk holding up to
+ * {@link #ARRAY_MAX} ids is stored as a sorted char array of the low bits,
+ * a denser chunk as a 65536-bit bitmap. Membership is a binary search over
+ * the chunk keys followed by an array search or a bit test.
+ *
+ * @author brito
+ */
+public class DocBitmap {
+
+    // Above this many ids a chunk is cheaper as a bitmap (4096 * 2 bytes = 8 KB)
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    public static final DocBitmap EMPTY = new DocBitmap(new char[0], new Object[0], 0);
+
+    private final char[] keys;
+    private final Object[] containers;  // char[] (sorted low bits) or long[] (bitmap)
+    private final int cardinality;
+
+    private DocBitmap(char[] keys, Object[] containers, int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Collects ids in ascending order
+     */
+    public static class Builder {
+        private int[] docs = new int[16];
+        private int size;
+
+        public void add(int doc) {
+            if (size > 0 && docs[size - 1] >= doc) {
+                if (docs[size - 1] == doc) {
+                    return;
+                }
+                throw new IllegalArgumentException("Ids must be added in ascending order");
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        public DocBitmap build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+
+            int chunks = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || (docs[i] >>> 16) != (docs[i - 1] >>> 16)) {
+                    chunks++;
+                }
+            }
+
+            char[] keys = new char[chunks];
+            Object[] containers = new Object[chunks];
+            int chunk = 0;
+            int start = 0;
+            while (start < size) {
+                int high = docs[start] >>> 16;
+                int end = start;
+                while (end < size && (docs[end] >>> 16) == high) {
+                    end++;
+                }
+
+                keys[chunk] = (char) high;
+                if (end - start <= ARRAY_MAX) {
+                    char[] lows = new char[end - start];
+                    for (int i = start; i < end; i++) {
+                        lows[i - start] = (char) docs[i];
+                    }
+                    containers[chunk] = lows;
+                } else {
+                    long[] bits = new long[BITMAP_WORDS];
+                    for (int i = start; i < end; i++) {
+                        int low = docs[i] & 0xFFFF;
+                        bits[low >>> 6] |= 1L << low;
+                    }
+                    containers[chunk] = bits;
+                }
+                chunk++;
+                start = end;
+            }
+            return new DocBitmap(keys, containers, size);
+        }
+    }
+
+    public boolean contains(int doc) {
+        if (doc < 0) {
+            return false;
+        }
+        int chunk = Arrays.binarySearch(keys, (char) (doc >>> 16));
+        if (chunk < 0) {
+            return false;
+        }
+        Object container = containers[chunk];
+        char low = (char) doc;
+        if (container instanceof char[]) {
+            return Arrays.binarySearch((char[]) container, low) >= 0;
+        }
+        return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Keep the ids of docs[0..size) contained in this set, in place
+     *
+     * @return New size
+     */
+    public int retain(int[] docs, int size) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (contains(docs[i])) {
+                docs[kept++] = docs[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Number of ids of docs[0..size) contained in this set
+     */
+    public int countIn(int[] docs, int size) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (contains(docs[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * All ids in ascending order
+     */
+    public int[] toArray() {
+        int[] result = new int[cardinality];
+        int size = 0;
+        for (int chunk = 0; chunk < keys.length; chunk++) {
+            int high = keys[chunk] << 16;
+            Object container = containers[chunk];
+            if (container instanceof char[]) {
+                for (char low : (char[]) container) {
+                    result[size++] = high | low;
+                }
+            } else {
+                long[] bits = (long[]) container;
+                for (int word = 0; word < bits.length; word++) {
+                    long value = bits[word];
+                    while (value != 0) {
+                        result[size++] = high | (word << 6) | Long.numberOfTrailingZeros(value);
+                        value &= value - 1;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Facet counts over every hit of a query (not only the returned page)
+ *
+ * Each shard fills its own instance and parents merge them, like
+ * {@link TopKCollector}.
+ *
+ * @author brito
+ */
+public class FacetCounts {
+
+    public long total;
+    public final Map<String, Long> fileType = new TreeMap<>();
+    public final Map<String, Long> callsign = new TreeMap<>();
+    public final Map<String, Long> size = new TreeMap<>();
+
+    /**
+     * Count the file hits docs[0..hitCount) of a collection against its facet bitmaps
+     */
+    public void addFiles(IndexedCollection collection, int[] docs, int hitCount) {
+        if (hitCount == 0) {
+            return;
+        }
+        FileFacets facets = collection.facets;
+        for (int i = 0; i < facets.types.length; i++) {
+            int count = facets.typeBitmaps[i].countIn(docs, hitCount);
+            if (count > 0) {
+                fileType.merge(facets.types[i], (long) count, Long::sum);
+            }
+        }
+        for (int bucket = 0; bucket < facets.sizeBitmaps.length; bucket++) {
+            int count = facets.sizeBitmaps[bucket].countIn(docs, hitCount);
+            if (count > 0) {
+                size.merge(FileFacets.SIZE_LABELS[bucket], (long) count, Long::sum);
+            }
+        }
+        addCallsign(collection.callsign, hitCount);
+    }
+
+    /**
+     * Count hits of a device (file hits are added through {@link #addFiles})
+     */
+    public void addCallsign(String value, int hitCount) {
+        if (hitCount > 0) {
+            callsign.merge(value, (long) hitCount, Long::sum);
+            total += hitCount;
+        }
+    }
+
+    public void merge(FacetCounts other) {
+        total += other.total;
+        other.fileType.forEach((key, count) -> fileType.merge(key, count, Long::sum));
+        other.callsign.forEach((key, count) -> callsign.merge(key, count, Long::sum));
+        other.size.forEach((key, count) -> size.merge(key, count, Long::sum));
+    }
+}
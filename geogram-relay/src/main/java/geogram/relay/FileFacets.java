@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * Per-collection document bitmaps for facet filtering and counting
+ *
+ * One {@link DocBitmap} of file doc ids per distinct file type and per size
+ * bucket. A type filter intersects the query's candidate set with a single
+ * bitmap, and facet counts are the sizes of the hit set intersected with
+ * each bitmap.
+ *
+ * @author brito
+ */
+public class FileFacets {
+
+    // Size buckets: [SIZE_EDGES[i], SIZE_EDGES[i + 1]), last bucket is open-ended
+    public static final long[] SIZE_EDGES = {0, 1L << 10, 1L << 20, 100L << 20, 1L << 30};
+    public static final String[] SIZE_LABELS = {"<1KB", "1KB-1MB", "1MB-100MB", "100MB-1GB", ">=1GB"};
+
+    private static final FileFacets EMPTY = new FileFacets(new String[0], new DocBitmap[0],
+            emptyBitmaps(SIZE_LABELS.length));
+
+    public final String[] types;  // Sorted distinct file types
+    public final DocBitmap[] typeBitmaps;  // Parallel to types
+    public final DocBitmap[] sizeBitmaps;  // Parallel to SIZE_LABELS (files without size are in none)
+
+    private FileFacets(String[] types, DocBitmap[] typeBitmaps, DocBitmap[] sizeBitmaps) {
+        this.types = types;
+        this.typeBitmaps = typeBitmaps;
+        this.sizeBitmaps = sizeBitmaps;
+    }
+
+    public static FileFacets build(FileTable files) {
+        if (files.isEmpty()) {
+            return EMPTY;
+        }
+
+        TreeMap<String, DocBitmap.Builder> byType = new TreeMap<>();
+        DocBitmap.Builder[] bySize = new DocBitmap.Builder[SIZE_LABELS.length];
+        for (int bucket = 0; bucket < bySize.length; bucket++) {
+            bySize[bucket] = new DocBitmap.Builder();
+        }
+
+        for (int doc = 0; doc < files.size(); doc++) {
+            String type = files.type(doc);
+            if (type != null) {
+                byType.computeIfAbsent(type, k -> new DocBitmap.Builder()).add(doc);
+            }
+            long size = files.sizeOf(doc);
+            if (size >= 0) {
+                bySize[sizeBucket(size)].add(doc);
+            }
+        }
+
+        String[] types = byType.keySet().toArray(new String[0]);
+        DocBitmap[] typeBitmaps = new DocBitmap[types.length];
+        for (int i = 0; i < types.length; i++) {
+            typeBitmaps[i] = byType.get(types[i]).build();
+        }
+        DocBitmap[] sizeBitmaps = new DocBitmap[bySize.length];
+        for (int bucket = 0; bucket < bySize.length; bucket++) {
+            sizeBitmaps[bucket] = bySize[bucket].build();
+        }
+        return new FileFacets(types, typeBitmaps, sizeBitmaps);
+    }
+
+    /**
+     * Files of a type, or null if the collection has none
+     */
+    public DocBitmap typeBitmap(String type) {
+        int slot = Arrays.binarySearch(types, type);
+        return slot >= 0 ? typeBitmaps[slot] : null;
+    }
+
+    public static int sizeBucket(long size) {
+        int bucket = 0;
+        while (bucket + 1 < SIZE_EDGES.length && size >= SIZE_EDGES[bucket + 1]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static DocBitmap[] emptyBitmaps(int count) {
+        DocBitmap[] bitmaps = new DocBitmap[count];
+        Arrays.fill(bitmaps, DocBitmap.EMPTY);
+        return bitmaps;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Immutable columnar store of a collection's file entries
+ *
+ * Instead of one object and several Strings per entry, every field is a
+ * column indexed by doc id:
+ * - names (original and lowercase) are concatenated into text arenas with
+ *   offsets, stored one byte per char when every char is Latin-1
+ * - paths are front-coded against the previous entry, which in tree order
+ *   usually shares the whole parent directory, and a trailing file name is
+ *   taken from the name column; every {@link #RESTART}-th path is stored in
+ *   full so a lookup decodes at most that many suffixes
+ * - types and mime types are codes into small per-table dictionaries
+ * - sizes are a long[] (-1 = unknown)
+ * - data.js metadata is sparse, since most entries have none
+ *
+ * Search verifies candidates with {@link #nameContains} and
+ * {@link #metadataContains} directly on the arenas, without allocating.
+ * {@link #get} still materializes an {@link IndexedCollection.IndexedFile}
+ * for code that wants a row (results, persistence).
+ *
+ * @author brito
+ */
+public class FileTable extends AbstractList<IndexedCollection.IndexedFile> implements RandomAccess {
+
+    public static final int RESTART = 16;
+
+    public static final FileTable EMPTY = new Builder().build();
+
+    private final int size;
+
+    private final Arena names;
+    private final int[] nameOffsets;
+    private final Arena lowerNames;  // Same arena as names when no name has upper case
+    private final int[] lowerOffsets;
+
+    private final Arena pathSuffixes;
+    private final int[] pathSuffixOffsets;
+    private final char[] pathShared;  // Leading chars shared with the previous path
+    private final BitSet pathEndsWithName;  // Suffix is followed by the entry's name
+
+    private final String[] types;  // Code 0 = null
+    private final char[] typeCodes;
+    private final String[] mimeTypes;  // Code 0 = null
+    private final char[] mimeCodes;  // null when no entry has a mime type
+    private final long[] sizes;
+
+    private final int[] metadataDocs;  // Ascending docs having a mime type or metadata
+    private final String[] metadata;
+    private final String[] metadataLower;
+
+    private FileTable(Builder builder) {
+        this.size = builder.size;
+        this.names = new Arena(builder.names, builder.namesLength);
+        this.nameOffsets = Arrays.copyOf(builder.nameOffsets, size + 1);
+        if (builder.lowerDiffers) {
+            this.lowerNames = new Arena(builder.lowerNames, builder.lowerLength);
+            this.lowerOffsets = Arrays.copyOf(builder.lowerOffsets, size + 1);
+        } else {
+            this.lowerNames = names;
+            this.lowerOffsets = nameOffsets;
+        }
+        this.pathSuffixes = new Arena(builder.pathSuffixes, builder.pathLength);
+        this.pathSuffixOffsets = Arrays.copyOf(builder.pathSuffixOffsets, size + 1);
+        this.pathShared = Arrays.copyOf(builder.pathShared, size);
+        this.pathEndsWithName = (BitSet) builder.pathEndsWithName.clone();
+        this.types = builder.types.toArray(new String[0]);
+        this.typeCodes = Arrays.copyOf(builder.typeCodes, size);
+        this.mimeTypes = builder.mimeTypes.toArray(new String[0]);
+        this.mimeCodes = mimeTypes.length > 1 ? Arrays.copyOf(builder.mimeCodes, size) : null;
+        this.sizes = Arrays.copyOf(builder.sizes, size);
+        this.metadataDocs = Arrays.copyOf(builder.metadataDocs, builder.metadataCount);
+        this.metadata = Arrays.copyOf(builder.metadata, builder.metadataCount);
+        this.metadataLower = Arrays.copyOf(builder.metadataLower, builder.metadataCount);
+    }
+
+    /**
+     * Columnar copy of a list of entries (returned as is if already a table)
+     */
+    public static FileTable of(List<IndexedCollection.IndexedFile> files) {
+        if (files instanceof FileTable) {
+            return (FileTable) files;
+        }
+        if (files == null || files.isEmpty()) {
+            return EMPTY;
+        }
+        Builder builder = new Builder();
+        for (IndexedCollection.IndexedFile file : files) {
+            builder.add(file.path, file.name, file.type, file.size, file.mimeType, file.metadata);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IndexedCollection.IndexedFile get(int doc) {
+        checkDoc(doc);
+        return new IndexedCollection.IndexedFile(path(doc), name(doc), type(doc), size(doc),
+                mimeType(doc), metadata(doc));
+    }
+
+    public String name(int doc) {
+        return names.string(nameOffsets[doc], nameOffsets[doc + 1]);
+    }
+
+    public String nameLower(int doc) {
+        return lowerNames.string(lowerOffsets[doc], lowerOffsets[doc + 1]);
+    }
+
+    /**
+     * True if the lowercase name contains the (lowercase) query
+     */
+    public boolean nameContains(int doc, String query) {
+        return lowerNames.contains(lowerOffsets[doc], lowerOffsets[doc + 1], query);
+    }
+
+    public String path(int doc) {
+        int restart = doc - doc % RESTART;
+        StringBuilder path = new StringBuilder();
+        for (int i = restart; i <= doc; i++) {
+            path.setLength(pathShared[i]);
+            pathSuffixes.appendTo(path, pathSuffixOffsets[i], pathSuffixOffsets[i + 1]);
+            if (pathEndsWithName.get(i)) {
+                names.appendTo(path, nameOffsets[i], nameOffsets[i + 1]);
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Every path in doc order, decoded in one pass instead of from a restart point each
+     */
+    public String[] paths() {
+        String[] paths = new String[size];
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            path.setLength(pathShared[i]);
+            pathSuffixes.appendTo(path, pathSuffixOffsets[i], pathSuffixOffsets[i + 1]);
+            if (pathEndsWithName.get(i)) {
+                names.appendTo(path, nameOffsets[i], nameOffsets[i + 1]);
+            }
+            paths[i] = path.toString();
+        }
+        return paths;
+    }
+
+    /**
+     * True if doc of this table and otherDoc of other hold the same name,
+     * type, size, mime type and metadata (paths are not compared)
+     */
+    public boolean sameEntry(int doc, FileTable other, int otherDoc) {
+        return sizes[doc] == other.sizes[otherDoc]
+                && Objects.equals(type(doc), other.type(otherDoc))
+                && name(doc).equals(other.name(otherDoc))
+                && Objects.equals(mimeType(doc), other.mimeType(otherDoc))
+                && Objects.equals(metadata(doc), other.metadata(otherDoc));
+    }
+
+    public String type(int doc) {
+        return types[typeCodes[doc]];
+    }
+
+    /**
+     * File size in bytes, or null when unknown
+     */
+    public Long size(int doc) {
+        return sizes[doc] >= 0 ? sizes[doc] : null;
+    }
+
+    /**
+     * File size in bytes, or -1 when unknown (no boxing)
+     */
+    public long sizeOf(int doc) {
+        return sizes[doc];
+    }
+
+    public String mimeType(int doc) {
+        return mimeCodes != null ? mimeTypes[mimeCodes[doc]] : null;
+    }
+
+    public String metadata(int doc) {
+        int slot = Arrays.binarySearch(metadataDocs, doc);
+        return slot >= 0 ? metadata[slot] : null;
+    }
+
+    /**
+     * Lowercase mime type and metadata text, or null if the entry has neither
+     */
+    public String metadataLower(int doc) {
+        int slot = metadataDocs.length > 0 ? Arrays.binarySearch(metadataDocs, doc) : -1;
+        return slot >= 0 ? metadataLower[slot] : null;
+    }
+
+    public boolean metadataContains(int doc, String query) {
+        String text = metadataLower(doc);
+        return text != null && text.contains(query);
+    }
+
+    public boolean hasMetadata() {
+        return metadataDocs.length > 0;
+    }
+
+    /**
+     * Approximate heap footprint of the columns in bytes
+     */
+    public long getSizeInBytes() {
+        long bytes = names.getSizeInBytes() + pathSuffixes.getSizeInBytes()
+                + 2L * (pathShared.length + typeCodes.length) + pathEndsWithName.size() / 8
+                + 4L * (nameOffsets.length + pathSuffixOffsets.length + metadataDocs.length)
+                + 8L * sizes.length;
+        if (lowerNames != names) {
+            bytes += lowerNames.getSizeInBytes() + 4L * lowerOffsets.length;
+        }
+        if (mimeCodes != null) {
+            bytes += 2L * mimeCodes.length;
+        }
+        for (int i = 0; i < metadata.length; i++) {
+            bytes += 2L * metadataLower[i].length() + (metadata[i] != null ? 2L * metadata[i].length() : 0);
+        }
+        return bytes;
+    }
+
+    /**
+     * Concatenated text, one byte per char when it is all Latin-1
+     */
+    private static final class Arena {
+        private final byte[] latin1;  // null when some char is above U+00FF
+        private final char[] chars;  // null when latin1 is used
+
+        Arena(char[] text, int length) {
+            boolean narrow = true;
+            for (int i = 0; i < length && narrow; i++) {
+                narrow = text[i] <= 0xFF;
+            }
+            if (narrow) {
+                latin1 = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    latin1[i] = (byte) text[i];
+                }
+                chars = null;
+            } else {
+                latin1 = null;
+                chars = Arrays.copyOf(text, length);
+            }
+        }
+
+        char charAt(int i) {
+            return latin1 != null ? (char) (latin1[i] & 0xFF) : chars[i];
+        }
+
+        String string(int start, int end) {
+            return latin1 != null ? new String(latin1, start, end - start, StandardCharsets.ISO_8859_1)
+                    : new String(chars, start, end - start);
+        }
+
+        void appendTo(StringBuilder target, int start, int end) {
+            if (latin1 == null) {
+                target.append(chars, start, end - start);
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                target.append((char) (latin1[i] & 0xFF));
+            }
+        }
+
+        /**
+         * True if text[start..end) contains the query
+         */
+        boolean contains(int start, int end, String query) {
+            int length = query.length();
+            if (length == 0) {
+                return true;
+            }
+            char first = query.charAt(0);
+            int last = end - length;
+            for (int i = start; i <= last; i++) {
+                if (charAt(i) != first) {
+                    continue;
+                }
+                int j = 1;
+                while (j < length && charAt(i + j) == query.charAt(j)) {
+                    j++;
+                }
+                if (j == length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long getSizeInBytes() {
+            return latin1 != null ? latin1.length : 2L * chars.length;
+        }
+    }
+
+    private void checkDoc(int doc) {
+        if (doc < 0 || doc >= size) {
+            throw new IndexOutOfBoundsException("doc " + doc + " of " + size);
+        }
+    }
+
+    /**
+     * Appends entries in doc order
+     */
+    public static class Builder {
+        private int size;
+
+        private char[] names = new char[64];
+        private int namesLength;
+        private int[] nameOffsets = new int[8];
+        private char[] lowerNames = new char[64];
+        private int lowerLength;
+        private int[] lowerOffsets = new int[8];
+        private boolean lowerDiffers;
+
+        private char[] pathSuffixes = new char[64];
+        private int pathLength;
+        private int[] pathSuffixOffsets = new int[8];
+        private char[] pathShared = new char[8];
+        private final BitSet pathEndsWithName = new BitSet();
+        private String previousPath = "";
+
+        private final List<String> types = new ArrayList<>();
+        private final Map<String, Character> typeIds = new HashMap<>();
+        private char[] typeCodes = new char[8];
+        private final List<String> mimeTypes = new ArrayList<>();
+        private final Map<String, Character> mimeIds = new HashMap<>();
+        private char[] mimeCodes = new char[8];
+        private long[] sizes = new long[8];
+
+        private int[] metadataDocs = new int[0];
+        private String[] metadata = new String[0];
+        private String[] metadataLower = new String[0];
+        private int metadataCount;
+
+        public Builder() {
+            types.add(null);
+            mimeTypes.add(null);
+        }
+
+        public Builder add(String path, String name, String type, Long fileSize, String mimeType, String metadataText) {
+            if (size + 1 >= nameOffsets.length) {
+                int capacity = nameOffsets.length * 2;
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+                lowerOffsets = Arrays.copyOf(lowerOffsets, capacity);
+                pathSuffixOffsets = Arrays.copyOf(pathSuffixOffsets, capacity);
+                pathShared = Arrays.copyOf(pathShared, capacity);
+                typeCodes = Arrays.copyOf(typeCodes, capacity);
+                mimeCodes = Arrays.copyOf(mimeCodes, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+            int doc = this.size;
+
+            names = append(names, namesLength, name);
+            namesLength += name.length();
+            nameOffsets[doc + 1] = namesLength;
+
+            String lower = name.toLowerCase();
+            lowerDiffers |= !lower.equals(name);
+            lowerNames = append(lowerNames, lowerLength, lower);
+            lowerLength += lower.length();
+            lowerOffsets[doc + 1] = lowerLength;
+
+            String fullPath = path != null ? path : "";
+            int shared = 0;
+            if (doc % RESTART != 0) {
+                int limit = Math.min(Math.min(fullPath.length(), previousPath.length()), Character.MAX_VALUE);
+                while (shared < limit && fullPath.charAt(shared) == previousPath.charAt(shared)) {
+                    shared++;
+                }
+            }
+            pathShared[doc] = (char) shared;
+            String suffix = fullPath.substring(shared);
+            if (!name.isEmpty() && suffix.endsWith(name)) {
+                suffix = suffix.substring(0, suffix.length() - name.length());
+                pathEndsWithName.set(doc);
+            }
+            pathSuffixes = append(pathSuffixes, pathLength, suffix);
+            pathLength += suffix.length();
+            pathSuffixOffsets[doc + 1] = pathLength;
+            previousPath = fullPath;
+
+            typeCodes[doc] = code(type, types, typeIds);
+            mimeCodes[doc] = code(mimeType, mimeTypes, mimeIds);
+            sizes[doc] = fileSize != null ? fileSize : -1L;
+
+            if (mimeType != null || metadataText != null) {
+                if (metadataCount == metadataDocs.length) {
+                    int capacity = Math.max(8, metadataCount * 2);
+                    metadataDocs = Arrays.copyOf(metadataDocs, capacity);
+                    metadata = Arrays.copyOf(metadata, capacity);
+                    metadataLower = Arrays.copyOf(metadataLower, capacity);
+                }
+                metadataDocs[metadataCount] = doc;
+                metadata[metadataCount] = metadataText;
+                metadataLower[metadataCount] = IndexedCollection.IndexedFile.searchableMetadata(mimeType, metadataText);
+                metadataCount++;
+            }
+
+            this.size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public FileTable build() {
+            return new FileTable(this);
+        }
+
+        private static char[] append(char[] arena, int length, String text) {
+            if (length + text.length() > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, length + text.length()));
+            }
+            text.getChars(0, text.length(), arena, length);
+            return arena;
+        }
+
+        private static char code(String value, List<String> dictionary, Map<String, Character> ids) {
+            if (value == null) {
+                return 0;
+            }
+            Character id = ids.get(value);
+            if (id == null) {
+                if (dictionary.size() > Character.MAX_VALUE) {
+                    throw new IllegalStateException("Too many distinct values: " + dictionary.size());
+                }
+                id = (char) dictionary.size();
+                ids.put(value, id);
+                dictionary.add(value);
+            }
+            return id;
+        }
+    }
+}
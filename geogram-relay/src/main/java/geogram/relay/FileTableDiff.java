@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Entry-level difference between two file tables, matched by path
+ *
+ * An entry of the next table is kept when the previous table holds the same
+ * path with the same name, type, size, mime type and metadata; every other
+ * entry is added, so a changed entry counts as one removal plus one
+ * addition. Indexes over the previous table can then be patched with only
+ * the added and removed entries (see {@link IndexedCollection#withFiles}).
+ *
+ * @author brito
+ */
+public class FileTableDiff {
+
+    public final int[] previousToNext;  // Doc of a kept entry in the next table, -1 if removed or changed
+    public final int[] nextToPrevious;  // Doc of a kept entry in the previous table, -1 if added
+    public final int[] added;  // Ascending docs of the next table that are new or changed
+    public final int removed;  // Previous entries that are gone or changed
+    public final boolean ordered;  // Kept entries have the same relative order in both tables
+
+    private FileTableDiff(int[] previousToNext, int[] nextToPrevious, int[] added, int removed, boolean ordered) {
+        this.previousToNext = previousToNext;
+        this.nextToPrevious = nextToPrevious;
+        this.added = added;
+        this.removed = removed;
+        this.ordered = ordered;
+    }
+
+    public static FileTableDiff of(FileTable previous, FileTable next) {
+        String[] previousPaths = previous.paths();
+        Map<String, Integer> previousDocs = new HashMap<>(previousPaths.length * 2);
+        for (int doc = 0; doc < previousPaths.length; doc++) {
+            previousDocs.putIfAbsent(previousPaths[doc], doc);
+        }
+
+        int[] previousToNext = new int[previous.size()];
+        Arrays.fill(previousToNext, -1);
+        int[] nextToPrevious = new int[next.size()];
+        int[] added = new int[16];
+        int addedCount = 0;
+        int kept = 0;
+        int lastKept = -1;
+        boolean ordered = true;
+
+        String[] nextPaths = next.paths();
+        for (int doc = 0; doc < nextPaths.length; doc++) {
+            Integer match = previousDocs.get(nextPaths[doc]);
+            if (match != null && previousToNext[match] < 0 && previous.sameEntry(match, next, doc)) {
+                previousToNext[match] = doc;
+                nextToPrevious[doc] = match;
+                ordered &= match > lastKept;
+                lastKept = match;
+                kept++;
+            } else {
+                nextToPrevious[doc] = -1;
+                if (addedCount == added.length) {
+                    added = Arrays.copyOf(added, addedCount * 2);
+                }
+                added[addedCount++] = doc;
+            }
+        }
+
+        return new FileTableDiff(previousToNext, nextToPrevious, Arrays.copyOf(added, addedCount),
+                previous.size() - kept, ordered);
+    }
+
+    /**
+     * True if both tables hold the same entries in the same order
+     */
+    public boolean isEmpty() {
+        return added.length == 0 && removed == 0 && ordered;
+    }
+
+    /**
+     * Entries added plus entries removed
+     */
+    public int getChanges() {
+        return added.length + removed;
+    }
+}
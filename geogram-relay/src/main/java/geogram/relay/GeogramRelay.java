@@ -12,7 +12,16 @@ import io.javalin.community.ssl.SslPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.Base64;
@@ -28,11 +37,14 @@ public class GeogramRelay {
 
     private static final Logger LOG = LoggerFactory.getLogger(GeogramRelay.class);
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Gson COMPACT_GSON = new Gson();  // One value per line for streamed responses
 
     private static RelayServer relayServer;
     private static Config config;
     private static AprsClient aprsClient;
     private static LogManager logManager;
+    private static ExecutorService proxyExecutor;  // Writes device responses to HTTP clients
+    private static ExecutorService searchExecutor;  // Runs searches off the request threads
 
     public static void main(String[] args) {
         LOG.info("Starting Geogram Relay Server...");
@@ -68,6 +80,11 @@ public class GeogramRelay {
 
         // Initialize relay server
         relayServer = new RelayServer(config);
+        if (config.useVirtualThreads) {
+            LOG.info("Using virtual threads for HTTP requests, searches and proxied responses");
+        }
+        proxyExecutor = createExecutor("ProxyResponse");
+        searchExecutor = createExecutor("Search");
 
         // Initialize APRS client
         aprsClient = new AprsClient(config);
@@ -77,6 +94,7 @@ public class GeogramRelay {
         Javalin app = Javalin.create(javalinConfig -> {
             javalinConfig.showJavalinBanner = false;
             javalinConfig.http.prefer405over404 = true;
+            javalinConfig.useVirtualThreads = config.useVirtualThreads;
 
             // Configure SSL if enabled
             if (config.enableSsl) {
@@ -131,6 +149,7 @@ public class GeogramRelay {
                 relayServer.onConnect(ctx);
             });
             ws.onMessage(ctx -> relayServer.onMessage(ctx));
+            ws.onBinaryMessage(ctx -> relayServer.onBinaryMessage(ctx));
             ws.onClose(ctx -> relayServer.onClose(ctx));
             ws.onError(ctx -> relayServer.onError(ctx, ctx.error()));
         });
@@ -158,6 +177,37 @@ public class GeogramRelay {
             ctx.json(response);
         });
 
+        // Autocomplete endpoint for the search box
+        app.get("/search/suggest", ctx -> {
+            String prefix = ctx.queryParam("prefix");
+            String limitParam = ctx.queryParam("limit");
+
+            if (prefix == null || prefix.trim().isEmpty()) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Missing query parameter 'prefix'");
+                ctx.status(400).json(error);
+                return;
+            }
+
+            int limit = SuggestIndex.TOP_N; // Default limit
+            if (limitParam != null) {
+                try {
+                    limit = Integer.parseInt(limitParam);
+                    if (limit < 1 || limit > 100) {
+                        limit = SuggestIndex.TOP_N;
+                    }
+                } catch (NumberFormatException e) {
+                    limit = SuggestIndex.TOP_N;
+                }
+            }
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("prefix", prefix);
+            response.put("suggestions", relayServer.suggest(prefix, limit));
+
+            ctx.json(response);
+        });
+
         // Search collections endpoint
         app.get("/search", ctx -> {
             String query = ctx.queryParam("q");
@@ -182,15 +232,84 @@ public class GeogramRelay {
                 }
             }
 
-            List<SearchResult> results = relayServer.searchCollections(query, limit);
+            // Facet filters: type, callsign, minSize/maxSize (bytes)
+            SearchFilter filter;
+            try {
+                filter = new SearchFilter(
+                        emptyToNull(ctx.queryParam("type")),
+                        emptyToNull(ctx.queryParam("callsign")),
+                        parseSize(ctx.queryParam("minSize")),
+                        parseSize(ctx.queryParam("maxSize")));
+            } catch (NumberFormatException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "minSize and maxSize must be non-negative byte counts");
+                ctx.status(400).json(error);
+                return;
+            }
 
-            Map<String, Object> response = new HashMap<>();
-            response.put("query", query);
-            response.put("total_results", results.size());
-            response.put("limit", limit);
-            response.put("results", results);
+            try {
+                SearchQuery.parse(SearchQuery.normalize(query));
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid query: " + e.getMessage());
+                ctx.status(400).json(error);
+                return;
+            }
 
-            ctx.json(response);
+            SearchRequest request = new SearchRequest(query, limit);
+            request.filter = filter;
+            request.facets = "true".equalsIgnoreCase(ctx.queryParam("facets")) ? new FacetCounts() : null;
+
+            String fuzzy = emptyToNull(ctx.queryParam("fuzzy"));
+            if (fuzzy != null) {
+                if (!fuzzy.equals("0") && !fuzzy.equals("1") && !fuzzy.equals("2")) {
+                    Map<String, String> error = new HashMap<>();
+                    error.put("error", "fuzzy must be 0, 1 or 2");
+                    ctx.status(400).json(error);
+                    return;
+                }
+                request.fuzzy = Integer.parseInt(fuzzy);
+            }
+
+            String cursor = emptyToNull(ctx.queryParam("cursor"));
+            if (cursor != null) {
+                try {
+                    request.after = SearchCursor.decode(cursor, request.queryKey());
+                } catch (IllegalArgumentException e) {
+                    Map<String, String> error = new HashMap<>();
+                    error.put("error", "Invalid cursor: " + e.getMessage());
+                    ctx.status(400).json(error);
+                    return;
+                }
+            }
+
+            // Time budget (milliseconds), capped by searchMaxTimeout
+            long timeout = config.searchMaxTimeout;
+            String timeoutParam = ctx.queryParam("timeout");
+            if (timeoutParam != null) {
+                try {
+                    timeout = Math.min(Math.max(Long.parseLong(timeoutParam), 1), config.searchMaxTimeout);
+                } catch (NumberFormatException e) {
+                    timeout = config.searchMaxTimeout;
+                }
+            }
+            request.withTimeout(timeout);
+
+            String stream = emptyToNull(ctx.queryParam("stream"));
+            if (stream != null) {
+                if (!stream.equals("ndjson") && !stream.equals("sse")) {
+                    Map<String, String> error = new HashMap<>();
+                    error.put("error", "stream must be ndjson or sse");
+                    ctx.status(400).json(error);
+                    return;
+                }
+                streamSearch(ctx, request, stream.equals("sse"));
+                return;
+            }
+
+            // A search can take up to searchMaxTimeout, so it does not hold a request thread
+            ctx.future(() -> CompletableFuture.supplyAsync(() -> relayServer.searchCollections(request), searchExecutor)
+                    .thenAccept(results -> sendSearchResults(ctx, request, results)));
         });
 
         // Get device info
@@ -260,6 +379,9 @@ public class GeogramRelay {
             }
             info.put("devices", deviceList);
 
+            // Search index and cache statistics
+            info.put("search", relayServer.getSearchStats());
+
             // Location/coordinates information
             Map<String, Object> location = new HashMap<>();
             location.put("latitude", config.latitude);
@@ -356,6 +478,8 @@ public class GeogramRelay {
                 logManager.log("Server shutting down...");
             }
             app.stop();
+            proxyExecutor.shutdownNow();
+            searchExecutor.shutdownNow();
             relayServer.shutdown();
             if (aprsClient != null) {
                 aprsClient.stop();
@@ -375,6 +499,7 @@ public class GeogramRelay {
         LOG.info("HTTP endpoints:");
         LOG.info("  GET  {}://{}:{}/relay/status - List connected devices", protocol, host, config.port);
         LOG.info("  GET  {}://{}:{}/search?q=<query>&limit=<n> - Search collections", protocol, host, config.port);
+        LOG.info("  GET  {}://{}:{}/search/suggest?prefix=<text> - Autocomplete search terms", protocol, host, config.port);
         LOG.info("  GET  {}://{}:{}/device/{{callsign}} - Get device info", protocol, host, config.port);
         LOG.info("  ANY  {}://{}:{}/device/{{callsign}}/{{path}} - Proxy to device", protocol, host, config.port);
         LOG.info("  GET  {}://{}:{}/{{callsign}} - Serve www collection from device", protocol, host, config.port);
@@ -420,6 +545,106 @@ public class GeogramRelay {
         }
     }
 
+    /**
+     * Answer a search with the whole page once it is complete
+     */
+    private static void sendSearchResults(Context ctx, SearchRequest request, List<SearchResult> results) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("query", request.query);
+        response.put("total_results", results.size());
+        response.put("limit", request.limit);
+        response.put("truncated", request.truncated);
+        response.put("results", results);
+        if (!request.filter.isEmpty()) {
+            response.put("filters", request.filter);
+        }
+        if (request.facets != null) {
+            response.put("facets", request.facets);
+        }
+        String nextCursor = SearchCursor.next(results, request);
+        if (nextCursor != null) {
+            response.put("next_cursor", nextCursor);
+        }
+
+        ctx.json(response);
+    }
+
+    /**
+     * Write /search hits to the client as devices finish, then a closing
+     * summary (NDJSON lines, or "result"/"done" server-sent events)
+     *
+     * Streamed hits are provisional: a later, better hit can push one out of
+     * the page. The summary carries the final ranked page.
+     */
+    private static void streamSearch(Context ctx, SearchRequest request, boolean sse) throws IOException {
+        ctx.res().setStatus(200);
+        ctx.res().setContentType(sse ? "text/event-stream" : "application/x-ndjson");
+        ctx.res().setCharacterEncoding("UTF-8");
+        ctx.res().setHeader("Cache-Control", "no-cache");
+        OutputStream out = ctx.res().getOutputStream();
+
+        request.listener = batch -> {
+            try {
+                for (SearchResult result : batch) {
+                    writeEvent(out, sse, "result", COMPACT_GSON.toJson(result));
+                }
+                out.flush();
+            } catch (IOException e) {
+                // Client went away: no point searching further
+                LOG.debug("Search stream closed by client: {}", e.getMessage());
+                request.cancel();
+            }
+        };
+
+        ctx.future(() -> CompletableFuture.runAsync(() -> {
+            List<SearchResult> results = relayServer.searchCollections(request);
+
+            Map<String, Object> done = new LinkedHashMap<>();
+            done.put("done", true);
+            done.put("total_results", results.size());
+            done.put("truncated", request.truncated);
+            done.put("results", results);
+            if (request.facets != null) {
+                done.put("facets", request.facets);
+            }
+            String nextCursor = SearchCursor.next(results, request);
+            if (nextCursor != null) {
+                done.put("next_cursor", nextCursor);
+            }
+            try {
+                writeEvent(out, sse, "done", COMPACT_GSON.toJson(done));
+                out.flush();
+            } catch (IOException e) {
+                LOG.debug("Search stream closed by client: {}", e.getMessage());
+            }
+        }, searchExecutor));
+    }
+
+    private static void writeEvent(OutputStream out, boolean sse, String event, String json) throws IOException {
+        String frame = sse ? "event: " + event + "\ndata: " + json + "\n\n" : json + "\n";
+        out.write(frame.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    /**
+     * Parse an optional size parameter in bytes
+     *
+     * @throws NumberFormatException if the value is not a non-negative number
+     */
+    private static Long parseSize(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        long size = Long.parseLong(value.trim());
+        if (size < 0) {
+            throw new NumberFormatException("Negative size: " + size);
+        }
+        return size;
+    }
+
     /**
      * Handle www collection request - serve static files from device's www collection
      */
@@ -481,61 +706,35 @@ public class GeogramRelay {
         Map<String, String> headers = new HashMap<>();
         headers.put("Accept", ctx.header("Accept") != null ? ctx.header("Accept") : "*/*");
 
+        Map<String, String> errorFields = new HashMap<>();
+        errorFields.put("callsign", callsign);
+        errorFields.put("path", filePath);
+
         try {
-            // Forward request to device
+            // Forward request to device and answer once it responds
             PendingRequest pending = relayServer.forwardHttpRequest(
                     callsign, requestId, "GET", collectionPath, headers, "");
-
-            // Wait for response with timeout
-            RelayMessage response = pending.getResponseFuture()
-                    .get(config.httpRequestTimeout, TimeUnit.SECONDS);
-
-            // Send response to client
-            ctx.status(response.statusCode);
-
-            // Set response headers
-            if (response.responseHeaders != null && !response.responseHeaders.isEmpty()) {
-                try {
-                    @SuppressWarnings("unchecked")
-                    Map<String, String> responseHeaders = GSON.fromJson(
-                            response.responseHeaders, Map.class);
-                    responseHeaders.forEach((key, value) -> {
-                        if (!key.equalsIgnoreCase("content-length")) {
-                            ctx.header(key, value);
-                        }
-                    });
-                } catch (Exception e) {
-                    LOG.warn("Failed to parse response headers", e);
-                }
-            }
-
-            // Send response body
-            if (response.responseBody != null && !response.responseBody.isEmpty()) {
-                if (response.isBase64 != null && response.isBase64) {
-                    // Decode base64 before sending
-                    byte[] decodedBytes = Base64.getDecoder().decode(response.responseBody);
-                    ctx.result(decodedBytes);
-                } else {
-                    ctx.result(response.responseBody);
-                }
-            }
-
-        } catch (TimeoutException e) {
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Request timeout");
-            error.put("callsign", callsign);
-            error.put("path", filePath);
-            ctx.status(504).json(error);
+            respondAsync(ctx, CompletableFuture.completedFuture(pending), errorFields);
         } catch (Exception e) {
-            LOG.error("Error serving www collection", e);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Proxy error: " + e.getMessage());
-            error.put("callsign", callsign);
-            error.put("path", filePath);
-            ctx.status(502).json(error);
+            sendProxyError(ctx, e, errorFields);
         }
     }
 
+    /**
+     * Threads that write device responses: virtual if configured, otherwise a
+     * cached pool (only streamed responses and uploads hold a thread for long)
+     */
+    private static ExecutorService createExecutor(String threadName) {
+        if (config.useVirtualThreads) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
     /**
      * Validate callsign format - must match amateur radio callsign pattern
      */
@@ -588,59 +787,146 @@ public class GeogramRelay {
             }
         });
 
-        // Get request body
-        String body = ctx.body();
+        Map<String, String> errorFields = new HashMap<>();
+        errorFields.put("callsign", callsign);
 
         try {
-            // Forward request to device
-            PendingRequest pending = relayServer.forwardHttpRequest(
-                    callsign, requestId, ctx.method().name(), path, headers, body);
+            // Forward request to device and answer once it responds
+            CompletableFuture<PendingRequest> forwarded;
+            if (device.isChunkedUpload() && hasLargeBody(ctx)) {
+                // Large bodies are streamed to devices that accept chunks, off the request thread
+                InputStream body = ctx.req().getInputStream();
+                String method = ctx.method().name();
+                forwarded = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return relayServer.forwardHttpRequest(callsign, requestId, method, path, headers, body);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, proxyExecutor);
+            } else {
+                forwarded = CompletableFuture.completedFuture(relayServer.forwardHttpRequest(
+                        callsign, requestId, ctx.method().name(), path, headers, ctx.body()));
+            }
+            respondAsync(ctx, forwarded, errorFields);
+        } catch (Exception e) {
+            sendProxyError(ctx, e, errorFields);
+        }
+    }
 
-            // Wait for response with timeout
-            RelayMessage response = pending.getResponseFuture()
-                    .get(config.httpRequestTimeout, TimeUnit.SECONDS);
+    /**
+     * Answer a proxied request once the device responds, without holding a
+     * request thread while waiting
+     *
+     * The response is written on the proxy executor: a streamed response is
+     * copied chunk by chunk and must not run on the device's WebSocket
+     * thread, which delivers those chunks.
+     *
+     * @param errorFields Fields added to the JSON error on timeout or failure
+     */
+    private static void respondAsync(Context ctx, CompletableFuture<PendingRequest> forwarded,
+            Map<String, String> errorFields) {
+        ctx.future(() -> forwarded
+                .thenCompose(pending -> pending.getResponseFuture()
+                        .orTimeout(config.httpRequestTimeout, TimeUnit.SECONDS)
+                        .thenAcceptAsync(response -> {
+                            try {
+                                sendDeviceResponse(ctx, pending, response);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new CompletionException(e);
+                            }
+                        }, proxyExecutor))
+                .exceptionally(e -> {
+                    sendProxyError(ctx, e, errorFields);
+                    return null;
+                }));
+    }
 
-            // Send response to client
-            ctx.status(response.statusCode);
+    /**
+     * Answer 504 if the device did not respond in time, otherwise 502
+     */
+    private static void sendProxyError(Context ctx, Throwable e, Map<String, String> errorFields) {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
 
-            // Set response headers
-            if (response.responseHeaders != null && !response.responseHeaders.isEmpty()) {
-                try {
-                    @SuppressWarnings("unchecked")
-                    Map<String, String> responseHeaders = GSON.fromJson(
-                            response.responseHeaders, Map.class);
-                    responseHeaders.forEach((key, value) -> {
-                        if (!key.equalsIgnoreCase("content-length")) {
-                            ctx.header(key, value);
-                        }
-                    });
-                } catch (Exception e) {
-                    LOG.warn("Failed to parse response headers", e);
-                }
+        Map<String, String> error = new HashMap<>(errorFields);
+        if (cause instanceof TimeoutException) {
+            error.put("error", "Request timeout");
+            ctx.status(504).json(error);
+        } else {
+            LOG.error("Error proxying request to {}", errorFields.get("callsign"), cause);
+            error.put("error", "Proxy error: " + cause.getMessage());
+            ctx.status(502).json(error);
+        }
+    }
+
+    /**
+     * True if the request body is larger than one upload chunk, or of unknown length
+     */
+    private static boolean hasLargeBody(Context ctx) {
+        long length = ctx.req().getContentLengthLong();
+        if (length < 0) {
+            return "chunked".equalsIgnoreCase(ctx.header("Transfer-Encoding"));
+        }
+        return length > UploadWindow.CHUNK_BYTES;
+    }
+
+    /**
+     * Write a device's response to the HTTP client
+     *
+     * A streamed response (HTTP_RESPONSE_START) is copied chunk by chunk as
+     * the device sends it. Its status and headers are already sent by then,
+     * so a stream cut short aborts the connection instead.
+     */
+    private static void sendDeviceResponse(Context ctx, PendingRequest pending, RelayMessage response)
+            throws InterruptedException {
+        ctx.status(response.statusCode);
+
+        // Set response headers
+        if (response.responseHeaders != null && !response.responseHeaders.isEmpty()) {
+            try {
+                @SuppressWarnings("unchecked")
+                Map<String, String> responseHeaders = GSON.fromJson(
+                        response.responseHeaders, Map.class);
+                responseHeaders.forEach((key, value) -> {
+                    if (!key.equalsIgnoreCase("content-length")) {
+                        ctx.header(key, value);
+                    }
+                });
+            } catch (Exception e) {
+                LOG.warn("Failed to parse response headers", e);
             }
+        }
 
-            // Send response body
-            if (response.responseBody != null && !response.responseBody.isEmpty()) {
-                if (response.isBase64 != null && response.isBase64) {
-                    // Decode base64 before sending
-                    byte[] decodedBytes = Base64.getDecoder().decode(response.responseBody);
-                    ctx.result(decodedBytes);
-                } else {
-                    ctx.result(response.responseBody);
-                }
+        if (RelayMessage.TYPE_HTTP_RESPONSE_START.equals(response.type)) {
+            ResponseStream stream = pending.getStream();
+            try {
+                stream.pipeTo(ctx.outputStream(), config.httpRequestTimeout * 1000L);
+            } catch (IOException e) {
+                LOG.warn("Streamed response {} cut short: {}", pending.getRequestId(), e.toString());
+                stream.abort();
+                // Drop the connection so the client does not take the partial body as complete
+                org.eclipse.jetty.server.Request.getBaseRequest(ctx.req()).getHttpChannel().abort(e);
             }
+            return;
+        }
 
-        } catch (TimeoutException e) {
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Request timeout");
-            error.put("callsign", callsign);
-            ctx.status(504).json(error);
-        } catch (Exception e) {
-            LOG.error("Error proxying request", e);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Proxy error: " + e.getMessage());
-            error.put("callsign", callsign);
-            ctx.status(502).json(error);
+        // Send response body
+        if (response.rawBody != null) {
+            // Raw bytes from a binary frame
+            ctx.result(response.rawBody);
+        } else if (response.responseBody != null && !response.responseBody.isEmpty()) {
+            if (response.isBase64 != null && response.isBase64) {
+                // Decode base64 before sending
+                byte[] decodedBytes = Base64.getDecoder().decode(response.responseBody);
+                ctx.result(decodedBytes);
+            } else {
+                ctx.result(response.responseBody);
+            }
         }
     }
 
@@ -711,7 +997,8 @@ public class GeogramRelay {
             "            <div class=\"main-content\">\n" +
             "                <div class=\"search-box\">\n" +
             "                    <h2>Search Collections</h2>\n" +
-            "                    <input type=\"text\" id=\"searchInput\" class=\"search-input\" placeholder=\"Search for files in all connected devices...\" />\n" +
+            "                    <input type=\"text\" id=\"searchInput\" class=\"search-input\" list=\"searchSuggestions\" autocomplete=\"off\" placeholder=\"Search for files in all connected devices...\" />\n" +
+            "                    <datalist id=\"searchSuggestions\"></datalist>\n" +
             "                    <button class=\"search-btn\" onclick=\"performSearch()\">Search</button>\n" +
             "                </div>\n" +
             "\n" +
@@ -871,11 +1158,27 @@ public class GeogramRelay {
             "            if (e.key === 'Enter') performSearch(true);\n" +
             "        });\n" +
             "        \n" +
-            "        // Auto-search when 4+ characters are typed\n" +
+            "        // Typeahead: suggestions on every keystroke, full search once typing pauses\n" +
+            "        let searchTimer = null;\n" +
+            "        async function loadSuggestions(prefix) {\n" +
+            "            try {\n" +
+            "                const response = await fetch(`/search/suggest?prefix=${encodeURIComponent(prefix)}`);\n" +
+            "                const data = await response.json();\n" +
+            "                const list = document.getElementById('searchSuggestions');\n" +
+            "                list.innerHTML = (data.suggestions || []).map(s => `<option value=\"${escapeHtml(s.text)}\"></option>`).join('');\n" +
+            "            } catch (error) {\n" +
+            "                console.error('Suggest error:', error);\n" +
+            "            }\n" +
+            "        }\n" +
+            "\n" +
             "        document.getElementById('searchInput').addEventListener('input', function(e) {\n" +
             "            const query = e.target.value.trim();\n" +
+            "            clearTimeout(searchTimer);\n" +
+            "            if (query.length >= 2) {\n" +
+            "                loadSuggestions(query);\n" +
+            "            }\n" +
             "            if (query.length >= 4) {\n" +
-            "                performSearch();\n" +
+            "                searchTimer = setTimeout(() => performSearch(), 400);\n" +
             "            } else if (query.length === 0) {\n" +
             "                document.getElementById('searchResults').style.display = 'none';\n" +
             "            }\n" +
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable in-memory snapshot of a collection held by the search index.
+ * Updates replace the whole instance instead of mutating it.
+ *
+ * Each snapshot carries trigram indexes over its lowercase file names, file
+ * metadata (from data.js) and title/description, plus the term statistics
+ * used for ranking, built when the corresponding file is synced and patched
+ * when a re-sync only changes a few entries.
+ * File entries are held in a columnar {@link FileTable}.
+ *
+ * @author brito
+ */
+public class IndexedCollection {
+
+    // Document ids in the metadata trigram index
+    public static final int DOC_TITLE = 0;
+    public static final int DOC_DESCRIPTION = 1;
+
+    // withFiles patches the indexes when at most 1/PATCH_RATIO of the entries changed
+    private static final int PATCH_RATIO = 4;
+
+    public final String callsign;
+    public final String collectionName;
+    public final String id;
+    public final String title;
+    public final String description;
+    public final String updated;
+    public final FileTable files;
+    public final long version;  // Bumped by SearchIndex each time the collection is replaced
+    public final long indexedAt;  // When the content was last parsed (epoch millis)
+    private final boolean metadataLoaded;
+
+    // Lowercase title/description and the trigram indexes used for matching
+    public final String titleLower;
+    public final String descriptionLower;
+    public final TrigramIndex metadataIndex;
+    public final TrigramIndex fileIndex;
+    public final TrigramIndex fileMetadataIndex;
+    public final TermIndex termIndex;
+    public final FileFacets facets;  // File type and size bitmaps
+
+    public IndexedCollection(String callsign, String collectionName) {
+        this(callsign, collectionName, 0, System.currentTimeMillis(), false,
+                null, null, null, null, null, null, null, null, null, null);
+    }
+
+    private IndexedCollection(String callsign, String collectionName, long version, long indexedAt,
+                              boolean metadataLoaded, String id, String title, String description,
+                              String updated, List<IndexedFile> files,
+                              TrigramIndex metadataIndex, TrigramIndex fileIndex,
+                              TrigramIndex fileMetadataIndex, TermIndex termIndex, FileFacets facets) {
+        this.callsign = callsign;
+        this.collectionName = collectionName;
+        this.id = id;
+        this.title = title;
+        this.description = description;
+        this.updated = updated;
+        this.files = FileTable.of(files);
+        this.version = version;
+        this.indexedAt = indexedAt;
+        this.metadataLoaded = metadataLoaded;
+        this.titleLower = title != null ? title.toLowerCase() : null;
+        this.descriptionLower = description != null ? description.toLowerCase() : null;
+        this.metadataIndex = metadataIndex != null ? metadataIndex
+                : TrigramIndex.build(new String[] {titleLower, descriptionLower});
+        this.fileIndex = fileIndex != null ? fileIndex : TrigramIndex.build(fileNames(this.files));
+        this.fileMetadataIndex = fileMetadataIndex != null ? fileMetadataIndex
+                : TrigramIndex.build(fileMetadata(this.files));
+        this.termIndex = termIndex != null ? termIndex : TermIndex.build(
+                fileNames(this.files), fileMetadata(this.files), titleLower, descriptionLower);
+        this.facets = facets != null ? facets : FileFacets.build(this.files);
+    }
+
+    /**
+     * Recreate a collection from persisted state without rebuilding its indexes
+     */
+    public static IndexedCollection restore(String callsign, String collectionName, long indexedAt,
+                                            boolean metadataLoaded, String id, String title,
+                                            String description, String updated, List<IndexedFile> files,
+                                            TrigramIndex metadataIndex, TrigramIndex fileIndex,
+                                            TrigramIndex fileMetadataIndex, TermIndex termIndex) {
+        return new IndexedCollection(callsign, collectionName, 0, indexedAt, metadataLoaded, id, title,
+                description, updated, files, metadataIndex, fileIndex, fileMetadataIndex, termIndex, null);
+    }
+
+    /**
+     * True once collection.js has been received (search skips collections without metadata)
+     */
+    public boolean hasMetadata() {
+        return metadataLoaded;
+    }
+
+    /**
+     * Approximate heap footprint of the file table and indexes in bytes
+     */
+    public long getSizeInBytes() {
+        return files.getSizeInBytes() + metadataIndex.getSizeInBytes() + fileIndex.getSizeInBytes()
+                + fileMetadataIndex.getSizeInBytes() + termIndex.getSizeInBytes();
+    }
+
+    /**
+     * Collection with new collection.js fields (only a new indexedAt if they are unchanged)
+     */
+    public IndexedCollection withMetadata(String id, String title, String description, String updated) {
+        if (metadataLoaded && Objects.equals(id, this.id) && Objects.equals(title, this.title)
+                && Objects.equals(description, this.description) && Objects.equals(updated, this.updated)) {
+            return reindexed();
+        }
+        return new IndexedCollection(callsign, collectionName, version, System.currentTimeMillis(), true,
+                id, title, description, updated, files, null, fileIndex, fileMetadataIndex, null, facets);
+    }
+
+    /**
+     * Texts the collection adds to autocomplete: the most frequent of its
+     * title and file names, once its metadata is known
+     */
+    public List<SuggestIndex.Suggestion> suggestTerms() {
+        if (!metadataLoaded) {
+            return Collections.emptyList();
+        }
+        List<String> texts = new ArrayList<>(files.size() + 1);
+        texts.add(title);
+        for (int doc = 0; doc < files.size(); doc++) {
+            texts.add(files.name(doc));
+        }
+        return SuggestIndex.topTerms(texts);
+    }
+
+    /**
+     * Collection with a new file list, diffed against the current one by path
+     *
+     * When no entry changed only indexedAt moves on, sharing the indexes, so
+     * a re-synced but identical tree.json or data.js, which is newer on disk
+     * than the old indexedAt, is not read again on the next start. When at most
+     * 1/{@link #PATCH_RATIO} of the entries were added or removed and kept
+     * entries kept their order, the file indexes are patched with just those
+     * entries; otherwise they are rebuilt. Either way the indexes equal a
+     * full rebuild.
+     */
+    public IndexedCollection withFiles(List<IndexedFile> files) {
+        FileTable next = FileTable.of(files);
+        FileTableDiff diff = FileTableDiff.of(this.files, next);
+        if (diff.isEmpty()) {
+            return reindexed();
+        }
+        if (!diff.ordered || (long) diff.getChanges() * PATCH_RATIO > next.size()) {
+            return new IndexedCollection(callsign, collectionName, version, System.currentTimeMillis(),
+                    metadataLoaded, id, title, description, updated, next, metadataIndex, null, null, null, null);
+        }
+        return new IndexedCollection(callsign, collectionName, version, System.currentTimeMillis(),
+                metadataLoaded, id, title, description, updated, next, metadataIndex,
+                TrigramIndex.patch(fileIndex, diff, next::nameLower),
+                TrigramIndex.patch(fileMetadataIndex, diff, next::metadataLower),
+                TermIndex.patch(termIndex, diff, next::nameLower, next::metadataLower), null);
+    }
+
+    private IndexedCollection reindexed() {
+        return new IndexedCollection(callsign, collectionName, version, System.currentTimeMillis(),
+                metadataLoaded, id, title, description, updated, files, metadataIndex, fileIndex,
+                fileMetadataIndex, termIndex, facets);
+    }
+
+    public IndexedCollection withVersion(long version) {
+        return new IndexedCollection(callsign, collectionName, version, indexedAt,
+                metadataLoaded, id, title, description, updated, files, metadataIndex, fileIndex,
+                fileMetadataIndex, termIndex, facets);
+    }
+
+    private static String[] fileNames(FileTable files) {
+        String[] names = new String[files.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = files.nameLower(i);
+        }
+        return names;
+    }
+
+    private static String[] fileMetadata(FileTable files) {
+        String[] metadata = new String[files.size()];
+        if (files.hasMetadata()) {
+            for (int i = 0; i < metadata.length; i++) {
+                metadata[i] = files.metadataLower(i);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Single entry from extra/tree.json or extra/data.js (a row of a {@link FileTable})
+     */
+    public static class IndexedFile {
+        public final String path;
+        public final String name;
+        public final String nameLower;
+        public final String type;
+        public final Long size;
+        public final String mimeType;  // Only known from data.js
+        public final String metadata;  // Searchable metadata text from data.js (may be null)
+        public final String metadataLower;  // Mime type and metadata text
+
+        public IndexedFile(String path, String name, String type, Long size) {
+            this(path, name, type, size, null, null);
+        }
+
+        public IndexedFile(String path, String name, String type, Long size, String mimeType, String metadata) {
+            this.path = path;
+            this.name = name;
+            this.nameLower = name.toLowerCase();
+            this.type = type;
+            this.size = size;
+            this.mimeType = mimeType;
+            this.metadata = metadata;
+            this.metadataLower = searchableMetadata(mimeType, metadata);
+        }
+
+        /**
+         * Lowercase mime type and metadata text, matched like a second name field
+         */
+        static String searchableMetadata(String mimeType, String metadata) {
+            if (mimeType == null && metadata == null) {
+                return null;
+            }
+            if (mimeType == null || metadata == null) {
+                return (mimeType != null ? mimeType : metadata).toLowerCase();
+            }
+            return (mimeType + " " + metadata).toLowerCase();
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedCollection{" + callsign + "/" + collectionName +
+               ", version=" + version + ", files=" + files.size() + "}";
+    }
+}
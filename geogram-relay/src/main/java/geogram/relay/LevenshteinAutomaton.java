@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Arrays;
+
+/**
+ * Levenshtein automaton for one query term, intersected with a sorted term dictionary
+ *
+ * The automaton state after reading a prefix is the row of edit distances
+ * between that prefix and every prefix of the query term (capped at
+ * maxEdits + 1). A state whose smallest entry exceeds maxEdits is dead: no
+ * extension of the prefix can match. Adjacent transpositions count as one
+ * edit, since swapped letters are the most common typo.
+ *
+ * Intersection walks the sorted dictionary like a trie: consecutive terms
+ * reuse the rows of their shared prefix, and when a prefix dies every term
+ * starting with it is skipped with one binary search. Only the
+ * neighbourhood of the query term is visited instead of every term.
+ *
+ * @author brito
+ */
+public class LevenshteinAutomaton {
+
+    public static final int MAX_EDITS = 2;
+
+    /**
+     * Receives the dictionary terms accepted by the automaton, in dictionary order
+     */
+    public interface TermVisitor {
+        void onTerm(int term, int edits);
+    }
+
+    public final String word;
+    public final int maxEdits;
+
+    private final char[] chars;
+
+    public LevenshteinAutomaton(String word, int maxEdits) {
+        this.word = word;
+        this.maxEdits = maxEdits;
+        this.chars = word.toCharArray();
+    }
+
+    /**
+     * Edits allowed for a query term: short terms tolerate fewer typos,
+     * otherwise almost any short word would match them
+     */
+    public static int editsFor(String term, int requested) {
+        if (term.length() <= 2) {
+            return 0;
+        }
+        if (term.length() <= 5) {
+            return Math.min(requested, 1);
+        }
+        return Math.min(requested, MAX_EDITS);
+    }
+
+    /**
+     * Visit every term of a sorted dictionary within maxEdits of the word
+     */
+    public void intersect(String[] terms, TermVisitor visitor) {
+        int width = chars.length + 1;
+        int[][] rows = new int[chars.length + maxEdits + 2][];
+        rows[0] = new int[width];
+        for (int j = 0; j < width; j++) {
+            rows[0][j] = Math.min(j, maxEdits + 1);
+        }
+
+        String previous = "";
+        int validDepth = 0;  // rows[0..validDepth] belong to prefixes of previous
+
+        int i = 0;
+        while (i < terms.length) {
+            String term = terms[i];
+            int depth = Math.min(commonPrefix(previous, term), validDepth);
+            boolean dead = false;
+
+            while (depth < term.length()) {
+                if (depth + 1 == rows.length) {
+                    rows = Arrays.copyOf(rows, rows.length * 2);
+                }
+                if (rows[depth + 1] == null) {
+                    rows[depth + 1] = new int[width];
+                }
+                if (step(rows, depth, term) > maxEdits) {
+                    dead = true;
+                    depth++;
+                    break;
+                }
+                depth++;
+            }
+
+            previous = term;
+            validDepth = depth;
+
+            if (dead) {
+                // Nothing starting with term[0..depth) can match
+                i = skipPrefix(terms, i + 1, term.substring(0, depth));
+                continue;
+            }
+
+            int edits = rows[depth][chars.length];
+            if (edits <= maxEdits) {
+                visitor.onTerm(i, edits);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Compute rows[depth + 1] from the term's character at depth
+     *
+     * @return Smallest distance in the new row
+     */
+    private int step(int[][] rows, int depth, String term) {
+        int[] previous = rows[depth];
+        int[] next = rows[depth + 1];
+        int[] beforePrevious = depth > 0 ? rows[depth - 1] : null;
+        char c = term.charAt(depth);
+        char before = depth > 0 ? term.charAt(depth - 1) : 0;
+        int cap = maxEdits + 1;
+
+        next[0] = Math.min(previous[0] + 1, cap);
+        int min = next[0];
+        for (int j = 1; j < next.length; j++) {
+            int cost = chars[j - 1] == c ? 0 : 1;
+            int value = Math.min(Math.min(previous[j] + 1, next[j - 1] + 1), previous[j - 1] + cost);
+            if (beforePrevious != null && j > 1 && chars[j - 1] == before && chars[j - 2] == c) {
+                value = Math.min(value, beforePrevious[j - 2] + 1);
+            }
+            next[j] = Math.min(value, cap);
+            min = Math.min(min, next[j]);
+        }
+        return min;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * First index at or after from whose term does not start with the prefix
+     */
+    private static int skipPrefix(String[] terms, int from, String prefix) {
+        // Terms hold letters and digits only, so every extension sorts below prefix + Character.MAX_VALUE
+        int found = Arrays.binarySearch(terms, from, terms.length, prefix + Character.MAX_VALUE);
+        return found >= 0 ? found : -found - 1;
+    }
+}
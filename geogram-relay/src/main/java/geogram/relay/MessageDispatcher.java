@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.javalin.websocket.WsContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes WebSocket frames to handlers registered by message type
+ *
+ * The "type" field is read with a streaming reader that stops as soon as it
+ * is found (senders put it first), skipping other values without building
+ * them. The frame is then decoded exactly once, into the class registered
+ * for its type, so large HTTP_RESPONSE and COLLECTION_FILE_RESPONSE frames
+ * are not parsed twice.
+ *
+ * Binary frames are decoded by {@link BinaryFrame} and routed through the
+ * same table. Handlers are registered before the first frame arrives; the
+ * table is not modified afterwards.
+ *
+ * @author brito
+ */
+public class MessageDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    private static final Gson GSON = new GsonBuilder().create();
+
+    /**
+     * Handles one decoded message
+     */
+    public interface Handler<T> {
+        void handle(WsContext ctx, T message);
+    }
+
+    private final Map<String, Registration<?>> handlers = new HashMap<>();
+
+    /**
+     * Decode frames of a type into messageClass and pass them to handler
+     */
+    public <T> MessageDispatcher register(String type, Class<T> messageClass, Handler<T> handler) {
+        handlers.put(type, new Registration<>(messageClass, handler));
+        return this;
+    }
+
+    /**
+     * Decode a frame and run the handler of its type
+     *
+     * @return false if no handler is registered for the frame's type
+     * @throws IOException if the frame is not a JSON object
+     */
+    public boolean dispatch(WsContext ctx, String json) throws IOException {
+        String type = peekType(json);
+        Registration<?> registration = type != null ? handlers.get(type) : null;
+        if (registration == null) {
+            return false;
+        }
+        LOG.debug("Received {} message", type);
+        registration.dispatch(ctx, json);
+        return true;
+    }
+
+    /**
+     * Run the handler of a message already decoded from a binary frame
+     *
+     * @return false if no handler of its type accepts a {@link RelayMessage}
+     */
+    public boolean dispatch(WsContext ctx, RelayMessage message) {
+        Registration<?> registration = message.type != null ? handlers.get(message.type) : null;
+        if (registration == null || !registration.messageClass.isInstance(message)) {
+            return false;
+        }
+        LOG.debug("Received binary {} message", message.type);
+        registration.handle(ctx, message);
+        return true;
+    }
+
+    /**
+     * Value of the top-level "type" field, or null if absent or not a string
+     */
+    static String peekType(String json) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("type".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            return null;
+        }
+    }
+
+    private static class Registration<T> {
+        final Class<T> messageClass;
+        final Handler<T> handler;
+
+        Registration(Class<T> messageClass, Handler<T> handler) {
+            this.messageClass = messageClass;
+            this.handler = handler;
+        }
+
+        void dispatch(WsContext ctx, String json) {
+            handler.handle(ctx, GSON.fromJson(json, messageClass));
+        }
+
+        void handle(WsContext ctx, Object message) {
+            handler.handle(ctx, messageClass.cast(message));
+        }
+    }
+}
@@ -15,14 +15,24 @@ import java.util.concurrent.CompletableFuture;
 public class PendingRequest {
 
     private final String requestId;
+    private final String callsign;
     private final Context httpContext;
     private final long timestamp;
     private final CompletableFuture<RelayMessage> responseFuture;
+    private volatile long lastActivity;
+    private volatile ResponseStream stream;  // Set once the device starts a streamed response
+    private volatile UploadWindow upload;    // Set while the request body is streamed to the device
 
     public PendingRequest(String requestId, Context httpContext) {
+        this(requestId, null, httpContext);
+    }
+
+    public PendingRequest(String requestId, String callsign, Context httpContext) {
         this.requestId = requestId;
+        this.callsign = callsign;
         this.httpContext = httpContext;
         this.timestamp = System.currentTimeMillis();
+        this.lastActivity = timestamp;
         this.responseFuture = new CompletableFuture<>();
     }
 
@@ -30,6 +40,13 @@ public class PendingRequest {
         return requestId;
     }
 
+    /**
+     * Callsign of the device serving the request, null if unknown
+     */
+    public String getCallsign() {
+        return callsign;
+    }
+
     public Context getHttpContext() {
         return httpContext;
     }
@@ -46,8 +63,49 @@ public class PendingRequest {
         return (System.currentTimeMillis() - timestamp) / 1000;
     }
 
+    /**
+     * True if the device sent nothing for this request for longer than the
+     * timeout; a streamed response stays alive as long as chunks arrive
+     */
     public boolean isTimedOut(long timeoutSeconds) {
-        return getElapsedSeconds() > timeoutSeconds;
+        return (System.currentTimeMillis() - lastActivity) / 1000 > timeoutSeconds;
+    }
+
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public UploadWindow getUpload() {
+        return upload;
+    }
+
+    /**
+     * Open the credit window for streaming the request body; it closes as
+     * soon as the device answers or the request fails
+     */
+    public UploadWindow startUpload() {
+        UploadWindow window = new UploadWindow();
+        upload = window;
+        responseFuture.whenComplete((response, error) -> window.close());
+        return window;
+    }
+
+    public ResponseStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Open the stream for the response's chunks and hand the start message
+     * (status and headers) to the waiting HTTP request
+     *
+     * @param credited True if the device streams only as far as its HTTP_RESPONSE_CREDIT
+     * @param flow     Holds the device back while the client catches up
+     */
+    public ResponseStream startStream(RelayMessage start, boolean credited, ResponseStream.Flow flow) {
+        stream = new ResponseStream(credited, flow);
+        touch();
+        responseFuture.complete(start);
+        return stream;
     }
 
     public void complete(RelayMessage response) {
@@ -55,6 +113,10 @@ public class PendingRequest {
     }
 
     public void completeExceptionally(Throwable throwable) {
+        ResponseStream current = stream;
+        if (current != null) {
+            current.end(throwable.getMessage());
+        }
         responseFuture.completeExceptionally(throwable);
     }
 
@@ -27,6 +27,13 @@ public class RelayMessage {
     public static final String TYPE_COLLECTIONS_RESPONSE = "COLLECTIONS_RESPONSE";
     public static final String TYPE_COLLECTION_FILE_REQUEST = "COLLECTION_FILE_REQUEST";
     public static final String TYPE_COLLECTION_FILE_RESPONSE = "COLLECTION_FILE_RESPONSE";
+    public static final String TYPE_HTTP_RESPONSE_START = "HTTP_RESPONSE_START";
+    public static final String TYPE_HTTP_RESPONSE_CHUNK = "HTTP_RESPONSE_CHUNK";
+    public static final String TYPE_HTTP_RESPONSE_END = "HTTP_RESPONSE_END";
+    public static final String TYPE_HTTP_REQUEST_CHUNK = "HTTP_REQUEST_CHUNK";
+    public static final String TYPE_HTTP_REQUEST_END = "HTTP_REQUEST_END";
+    public static final String TYPE_HTTP_REQUEST_CREDIT = "HTTP_REQUEST_CREDIT";
+    public static final String TYPE_HTTP_RESPONSE_CREDIT = "HTTP_RESPONSE_CREDIT";
 
     // Common fields
     public String type;
@@ -38,6 +45,10 @@ public class RelayMessage {
     public String path;
     public String headers;
     public String body;
+    public Boolean bodyStreamed; // Body follows in HTTP_REQUEST_CHUNK messages
+
+    // HTTP_REQUEST_CREDIT / HTTP_RESPONSE_CREDIT fields
+    public Integer credit; // Bytes of request body the device can take, or of response body it may send
 
     // HTTP_RESPONSE fields
     public Integer statusCode;
@@ -58,6 +69,9 @@ public class RelayMessage {
     // COLLECTION_FILE_RESPONSE fields
     public String fileContent;
 
+    // HTTP body received raw in a binary frame (see BinaryFrame); never part of the JSON form
+    public transient byte[] rawBody;
+
     // Constructors
     public RelayMessage() {}
 
@@ -83,6 +97,33 @@ public class RelayMessage {
         return msg;
     }
 
+    public static RelayMessage createHttpRequestChunk(String requestId) {
+        RelayMessage msg = new RelayMessage(TYPE_HTTP_REQUEST_CHUNK);
+        msg.requestId = requestId;
+        return msg;
+    }
+
+    public static RelayMessage createHttpRequestEnd(String requestId, String error) {
+        RelayMessage msg = new RelayMessage(TYPE_HTTP_REQUEST_END);
+        msg.requestId = requestId;
+        msg.error = error;
+        return msg;
+    }
+
+    public static RelayMessage createHttpRequestCredit(String requestId, int credit) {
+        RelayMessage msg = new RelayMessage(TYPE_HTTP_REQUEST_CREDIT);
+        msg.requestId = requestId;
+        msg.credit = credit;
+        return msg;
+    }
+
+    public static RelayMessage createHttpResponseCredit(String requestId, int credit) {
+        RelayMessage msg = new RelayMessage(TYPE_HTTP_RESPONSE_CREDIT);
+        msg.requestId = requestId;
+        msg.credit = credit;
+        return msg;
+    }
+
     public static RelayMessage createHttpResponse(String requestId, int statusCode,
             String responseHeaders, String responseBody) {
         RelayMessage msg = new RelayMessage(TYPE_HTTP_RESPONSE);
@@ -93,6 +134,38 @@ public class RelayMessage {
         return msg;
     }
 
+    public static RelayMessage createHttpResponseStart(String requestId, int statusCode, String responseHeaders) {
+        RelayMessage msg = new RelayMessage(TYPE_HTTP_RESPONSE_START);
+        msg.requestId = requestId;
+        msg.statusCode = statusCode;
+        msg.responseHeaders = responseHeaders;
+        return msg;
+    }
+
+    public static RelayMessage createHttpResponseEnd(String requestId, String error) {
+        RelayMessage msg = new RelayMessage(TYPE_HTTP_RESPONSE_END);
+        msg.requestId = requestId;
+        msg.error = error;
+        return msg;
+    }
+
+    /**
+     * Response body bytes: raw from a binary frame, decoded from base64 when
+     * isBase64 is set, otherwise the UTF-8 text (empty if there is none)
+     */
+    public byte[] getResponseBodyBytes() {
+        if (rawBody != null) {
+            return rawBody;
+        }
+        if (responseBody == null || responseBody.isEmpty()) {
+            return new byte[0];
+        }
+        if (isBase64 != null && isBase64) {
+            return java.util.Base64.getDecoder().decode(responseBody);
+        }
+        return responseBody.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    }
+
     public static RelayMessage createPing() {
         return new RelayMessage(TYPE_PING);
     }
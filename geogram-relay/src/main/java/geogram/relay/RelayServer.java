@@ -4,16 +4,20 @@
  */
 package geogram.relay;
 
+import io.javalin.websocket.WsBinaryMessageContext;
 import io.javalin.websocket.WsContext;
 import io.javalin.websocket.WsMessageContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 /**
@@ -46,15 +50,53 @@ public class RelayServer {
     // Collection searcher
     private final CollectionSearcher collectionSearcher;
 
+    // Search result cache, invalidated by collection version
+    private final SearchCache searchCache;
+
+    // Shares one search among identical concurrent requests
+    private final SearchCoalescer searchCoalescer = new SearchCoalescer();
+
+    // WebSocket message handlers by type ("hello" uses the Nostr-style format, the rest RelayMessage)
+    private final MessageDispatcher dispatcher = new MessageDispatcher()
+            .register("hello", com.google.gson.JsonObject.class, this::handleHello)
+            .register(RelayMessage.TYPE_REGISTER, RelayMessage.class, this::handleRegister)
+            .register(RelayMessage.TYPE_HTTP_RESPONSE, RelayMessage.class, this::handleHttpResponse)
+            .register(RelayMessage.TYPE_HTTP_RESPONSE_START, RelayMessage.class, this::handleHttpResponseStart)
+            .register(RelayMessage.TYPE_HTTP_RESPONSE_CHUNK, RelayMessage.class, this::handleHttpResponseChunk)
+            .register(RelayMessage.TYPE_HTTP_RESPONSE_END, RelayMessage.class, this::handleHttpResponseEnd)
+            .register(RelayMessage.TYPE_HTTP_REQUEST_CREDIT, RelayMessage.class, this::handleHttpRequestCredit)
+            .register(RelayMessage.TYPE_PING, RelayMessage.class, (ctx, message) -> handlePing(ctx))
+            .register(RelayMessage.TYPE_COLLECTIONS_RESPONSE, RelayMessage.class, this::handleCollectionsResponse)
+            .register(RelayMessage.TYPE_COLLECTION_FILE_RESPONSE, RelayMessage.class,
+                    this::handleCollectionFileResponse);
+
     public RelayServer(Config config) {
         this.config = config;
         this.startTime = System.currentTimeMillis();
         this.callsignPattern = Pattern.compile(config.callsignPattern);
-        this.collectionSearcher = new CollectionSearcher(config.deviceStoragePath);
+        this.collectionSearcher = new CollectionSearcher(config.deviceStoragePath, config.searchParallelism);
+        if (config.searchIndexPersist) {
+            this.collectionSearcher.enablePersistence(config.searchIndexMaxDeltas);
+        }
+        this.collectionSearcher.setMemoryLimit(config.searchIndexMemory * 1024 * 1024);
+        this.collectionSearcher.loadIndex();
+        this.searchCache = new SearchCache(config.searchCacheSize, collectionSearcher.getIndex());
+        collectionSearcher.getIndex().addListener(collection ->
+                searchCache.invalidateMatching(query -> collectionSearcher.matches(collection, query)));
 
         // Schedule periodic cleanup
         scheduler.scheduleAtFixedRate(this::cleanup, config.cleanupInterval,
                 config.cleanupInterval, TimeUnit.SECONDS);
+
+        // Refresh autocomplete after collection syncs
+        scheduler.scheduleWithFixedDelay(this::refreshSuggestions, config.suggestRefreshInterval,
+                config.suggestRefreshInterval, TimeUnit.SECONDS);
+
+        // Write re-synced collections to index segments
+        if (config.searchIndexPersist) {
+            scheduler.scheduleWithFixedDelay(this::flushSearchIndex, config.searchIndexFlushInterval,
+                    config.searchIndexFlushInterval, TimeUnit.SECONDS);
+        }
         LOG.info("Relay server initialized with config: {}", config);
     }
 
@@ -75,44 +117,30 @@ public class RelayServer {
     public void onMessage(WsMessageContext ctx) {
         try {
             String json = ctx.message();
-
-            // First, check if it's a hello message (uses different format)
-            com.google.gson.JsonObject jsonObj = new com.google.gson.JsonParser().parse(json).getAsJsonObject();
-            String messageType = jsonObj.has("type") ? jsonObj.get("type").getAsString() : null;
-
-            if ("hello".equals(messageType)) {
-                handleHello(ctx, jsonObj);
-                return;
+            if (!dispatcher.dispatch(ctx, json)) {
+                String type = MessageDispatcher.peekType(json);
+                LOG.warn("Unknown message type: {}", type);
+                sendError(ctx, "Unknown message type: " + type);
             }
+        } catch (Exception e) {
+            LOG.error("Error processing message", e);
+            sendError(ctx, "Invalid message format: " + e.getMessage());
+        }
+    }
 
-            // Parse as standard RelayMessage
-            RelayMessage message = RelayMessage.fromJson(json);
-
-            LOG.debug("Received message: type={}, requestId={}, callsign={}",
-                    message.type, message.requestId, message.callsign);
-
-            switch (message.type) {
-                case RelayMessage.TYPE_REGISTER:
-                    handleRegister(ctx, message);
-                    break;
-                case RelayMessage.TYPE_HTTP_RESPONSE:
-                    handleHttpResponse(ctx, message);
-                    break;
-                case RelayMessage.TYPE_PING:
-                    handlePing(ctx);
-                    break;
-                case RelayMessage.TYPE_COLLECTIONS_RESPONSE:
-                    handleCollectionsResponse(ctx, message);
-                    break;
-                case RelayMessage.TYPE_COLLECTION_FILE_RESPONSE:
-                    handleCollectionFileResponse(ctx, message);
-                    break;
-                default:
-                    LOG.warn("Unknown message type: {}", message.type);
-                    sendError(ctx, "Unknown message type: " + message.type);
+    /**
+     * Handle incoming binary WebSocket frame (see {@link BinaryFrame})
+     */
+    public void onBinaryMessage(WsBinaryMessageContext ctx) {
+        try {
+            RelayMessage message = BinaryFrame.decode(
+                    java.nio.ByteBuffer.wrap(ctx.data(), ctx.offset(), ctx.length()));
+            if (!dispatcher.dispatch(ctx, message)) {
+                LOG.warn("Unknown binary message type: {}", message.type);
+                sendError(ctx, "Unknown message type: " + message.type);
             }
         } catch (Exception e) {
-            LOG.error("Error processing message", e);
+            LOG.error("Error processing binary message", e);
             sendError(ctx, "Invalid message format: " + e.getMessage());
         }
     }
@@ -178,20 +206,35 @@ public class RelayServer {
             LOG.info("Signature: {}", sig != null ? sig.substring(0, Math.min(16, sig.length())) + "..." : "null");
             LOG.info("Content: {}", content);
 
-            // Extract callsign from tags
+            // Extract callsign, framing, upload and response modes from tags
             String callsign = null;
+            boolean binaryFraming = false;
+            boolean chunkedUpload = false;
+            boolean responseCredit = false;
             if (event.has("tags")) {
                 com.google.gson.JsonArray tags = event.getAsJsonArray("tags");
                 for (int i = 0; i < tags.size(); i++) {
                     com.google.gson.JsonArray tag = tags.get(i).getAsJsonArray();
-                    if (tag.size() >= 2 && "callsign".equals(tag.get(0).getAsString())) {
+                    if (tag.size() < 2) {
+                        continue;
+                    }
+                    String name = tag.get(0).getAsString();
+                    if ("callsign".equals(name) && callsign == null) {
                         callsign = tag.get(1).getAsString();
-                        break;
+                    } else if (BinaryFrame.FRAMING_TAG.equals(name)) {
+                        binaryFraming = BinaryFrame.FRAMING_BINARY.equals(tag.get(1).getAsString());
+                    } else if (UploadWindow.UPLOAD_TAG.equals(name)) {
+                        chunkedUpload = UploadWindow.UPLOAD_CHUNKED.equals(tag.get(1).getAsString());
+                    } else if (ResponseStream.RESPONSE_TAG.equals(name)) {
+                        responseCredit = ResponseStream.RESPONSE_CREDIT.equals(tag.get(1).getAsString());
                     }
                 }
             }
 
             LOG.info("Callsign: {}", callsign);
+            LOG.info("Framing: {}", binaryFraming ? BinaryFrame.FRAMING_BINARY : "json");
+            LOG.info("Upload: {}", chunkedUpload ? UploadWindow.UPLOAD_CHUNKED : "whole");
+            LOG.info("Response: {}", responseCredit ? ResponseStream.RESPONSE_CREDIT : "paced by reads");
 
             // Basic validation
             if (pubkey == null || eventId == null || sig == null) {
@@ -230,13 +273,19 @@ public class RelayServer {
 
             // Register device connection
             DeviceConnection deviceConn = new DeviceConnection(callsign, npub, ctx, deviceStoragePath);
+            deviceConn.setBinaryFraming(binaryFraming);
+            deviceConn.setChunkedUpload(chunkedUpload);
+            deviceConn.setResponseCredit(responseCredit);
             devices.put(callsign, deviceConn);
 
             // Generate relay ID
             String relayId = "relay-" + System.currentTimeMillis();
 
-            // Send success acknowledgment
-            sendHelloAck(ctx, true, "Hello received and acknowledged", relayId);
+            // Send success acknowledgment (echoing framing, upload and response tells the device they are understood)
+            sendHelloAck(ctx, true, "Hello received and acknowledged", relayId,
+                    binaryFraming ? BinaryFrame.FRAMING_BINARY : null,
+                    chunkedUpload ? UploadWindow.UPLOAD_CHUNKED : null,
+                    responseCredit ? ResponseStream.RESPONSE_CREDIT : null);
 
             LOG.info("✓ HELLO ACKNOWLEDGED");
             LOG.info("Callsign: {}", callsign);
@@ -254,7 +303,8 @@ public class RelayServer {
                     pubkey.substring(0, Math.min(16, pubkey.length()))));
             }
 
-            // Request collections from device
+            // Warm the device's search shard and request its collections
+            preloadSearchShard(callsign);
             requestCollections(ctx, callsign);
 
         } catch (Exception e) {
@@ -267,10 +317,11 @@ public class RelayServer {
      * Send hello acknowledgment
      */
     private void sendHelloAck(WsContext ctx, boolean success, String message) {
-        sendHelloAck(ctx, success, message, null);
+        sendHelloAck(ctx, success, message, null, null, null, null);
     }
 
-    private void sendHelloAck(WsContext ctx, boolean success, String message, String relayId) {
+    private void sendHelloAck(WsContext ctx, boolean success, String message, String relayId,
+            String framing, String upload, String responseMode) {
         Map<String, Object> response = new HashMap<>();
         response.put("type", "hello_ack");
         response.put("success", success);
@@ -278,6 +329,15 @@ public class RelayServer {
         if (relayId != null) {
             response.put("relay_id", relayId);
         }
+        if (framing != null) {
+            response.put(BinaryFrame.FRAMING_TAG, framing);
+        }
+        if (upload != null) {
+            response.put(UploadWindow.UPLOAD_TAG, upload);
+        }
+        if (responseMode != null) {
+            response.put(ResponseStream.RESPONSE_TAG, responseMode);
+        }
 
         String json = new com.google.gson.Gson().toJson(response);
         ctx.send(json);
@@ -334,6 +394,7 @@ public class RelayServer {
         ctx.send(response.toJson());
 
         LOG.info("Device registered: {}", callsign);
+        preloadSearchShard(callsign);
 
         // Log to file
         LogManager logManager = GeogramRelay.getLogManager();
@@ -359,7 +420,131 @@ public class RelayServer {
             return;
         }
 
-        // Update device activity
+        updateActivity(ctx);
+
+        // Complete the request
+        pending.complete(message);
+
+        LOG.debug("HTTP response received for requestId: {}", requestId);
+    }
+
+    /**
+     * Handle HTTP_RESPONSE_START message: status and headers of a streamed response
+     */
+    private void handleHttpResponseStart(WsContext ctx, RelayMessage message) {
+        PendingRequest pending = message.requestId != null ? pendingRequests.get(message.requestId) : null;
+        if (pending == null) {
+            LOG.warn("No pending request found for streamed response: {}", message.requestId);
+            return;
+        }
+        if (pending.getStream() != null || pending.getResponseFuture().isDone()) {
+            LOG.warn("Duplicate response start for requestId: {}", message.requestId);
+            return;
+        }
+        updateActivity(ctx);
+
+        DeviceConnection device = pending.getCallsign() != null ? devices.get(pending.getCallsign()) : null;
+        if (device == null) {
+            LOG.warn("Streamed response {} from a device that is no longer connected", message.requestId);
+            return;
+        }
+
+        // The request stays pending until HTTP_RESPONSE_END
+        pending.startStream(message, device.isResponseCredit(), responseFlow(device, pending));
+
+        LOG.debug("Streamed HTTP response started for requestId: {}", message.requestId);
+    }
+
+    /**
+     * Hold a device back while the client of its streamed response catches up
+     */
+    private ResponseStream.Flow responseFlow(DeviceConnection device, PendingRequest pending) {
+        return new ResponseStream.Flow() {
+            @Override
+            public void grant(int bytes) {
+                pending.touch();
+                try {
+                    device.sendMessage(RelayMessage.createHttpResponseCredit(pending.getRequestId(), bytes));
+                } catch (Exception e) {
+                    LOG.debug("Could not send response credit to {}: {}", device.getCallsign(), e.getMessage());
+                }
+            }
+
+            @Override
+            public void pause() {
+                LOG.debug("Client of streamed response {} is behind, pausing reads from {}",
+                        pending.getRequestId(), device.getCallsign());
+                device.pauseReads();
+            }
+
+            @Override
+            public void resume() {
+                pending.touch();
+                device.resumeReads();
+            }
+        };
+    }
+
+    /**
+     * Handle HTTP_RESPONSE_CHUNK message
+     *
+     * Never waits for the client: the stream holds the device back instead,
+     * by credit or by pausing reads from its socket.
+     */
+    private void handleHttpResponseChunk(WsContext ctx, RelayMessage message) {
+        PendingRequest pending = message.requestId != null ? pendingRequests.get(message.requestId) : null;
+        ResponseStream stream = pending != null ? pending.getStream() : null;
+        if (stream == null) {
+            // Expected after the client went away, once per remaining chunk
+            LOG.debug("Dropping chunk without a streamed response: {}", message.requestId);
+            return;
+        }
+        updateActivity(ctx);
+        pending.touch();
+
+        if (!stream.write(message.getResponseBodyBytes())) {
+            LOG.warn("Client of streamed response {} is gone, or the device sent more than its credit; dropping it",
+                    message.requestId);
+            stream.abort();
+            pendingRequests.remove(message.requestId);
+        }
+    }
+
+    /**
+     * Handle HTTP_RESPONSE_END message, carrying an error if the device could not finish
+     */
+    private void handleHttpResponseEnd(WsContext ctx, RelayMessage message) {
+        PendingRequest pending = message.requestId != null ? pendingRequests.remove(message.requestId) : null;
+        ResponseStream stream = pending != null ? pending.getStream() : null;
+        if (stream == null) {
+            LOG.debug("No streamed response to end: {}", message.requestId);
+            return;
+        }
+        updateActivity(ctx);
+        stream.end(message.error);
+
+        LOG.debug("Streamed HTTP response ended for requestId: {}", message.requestId);
+    }
+
+    /**
+     * Handle HTTP_REQUEST_CREDIT message: the device can take more of a streamed request body
+     */
+    private void handleHttpRequestCredit(WsContext ctx, RelayMessage message) {
+        PendingRequest pending = message.requestId != null ? pendingRequests.get(message.requestId) : null;
+        UploadWindow window = pending != null ? pending.getUpload() : null;
+        if (window == null || message.credit == null) {
+            LOG.debug("Ignoring credit without a streamed request body: {}", message.requestId);
+            return;
+        }
+        updateActivity(ctx);
+        pending.touch();
+        window.grant(message.credit);
+    }
+
+    /**
+     * Record activity of the device behind a WebSocket
+     */
+    private void updateActivity(WsContext ctx) {
         String callsign = contextToCallsign.get(ctx);
         if (callsign != null) {
             DeviceConnection device = devices.get(callsign);
@@ -367,11 +552,6 @@ public class RelayServer {
                 device.updateActivity();
             }
         }
-
-        // Complete the request
-        pending.complete(message);
-
-        LOG.debug("HTTP response received for requestId: {}", requestId);
     }
 
     /**
@@ -399,6 +579,86 @@ public class RelayServer {
         ctx.send(RelayMessage.createError(error).toJson());
     }
 
+    /**
+     * Forward HTTP request to a device that opted in to chunked uploads,
+     * streaming the body in HTTP_REQUEST_CHUNK messages as it is read
+     *
+     * Runs on the caller's thread until the whole body is sent, pacing the
+     * reads by the credit the device grants, or until the device answers
+     * early. The response is then awaited on the returned request as usual.
+     *
+     * @throws TimeoutException if the device granted no credit for httpRequestTimeout
+     * @throws IOException if reading the body fails
+     */
+    public PendingRequest forwardHttpRequest(String callsign, String requestId,
+            String method, String path, Map<String, String> headers, InputStream body)
+            throws IOException, TimeoutException, InterruptedException {
+
+        DeviceConnection device = devices.get(callsign.toUpperCase());
+        if (device == null) {
+            throw new IllegalStateException("Device not connected");
+        }
+        if (!device.isChunkedUpload()) {
+            throw new IllegalStateException("Device does not accept chunked uploads");
+        }
+
+        // Check pending request limit
+        if (pendingRequests.size() >= config.maxPendingRequests) {
+            throw new IllegalStateException("Too many pending requests");
+        }
+
+        String headersJson = new com.google.gson.Gson().toJson(headers);
+        RelayMessage request = RelayMessage.createHttpRequest(requestId, method, path, headersJson, "");
+        request.bodyStreamed = true;
+
+        PendingRequest pending = new PendingRequest(requestId, device.getCallsign(), null);
+        UploadWindow window = pending.startUpload();
+        pendingRequests.put(requestId, pending);
+
+        long timeoutMillis = config.httpRequestTimeout * 1000L;
+        byte[] buffer = new byte[UploadWindow.CHUNK_BYTES];
+        long sent = 0;
+        try {
+            device.sendMessage(request, null);
+            int read;
+            while ((read = body.readNBytes(buffer, 0, buffer.length)) > 0) {
+                if (!window.acquire(read, timeoutMillis)) {
+                    if (pending.getResponseFuture().isDone()) {
+                        // Answered (or failed) before taking the whole body
+                        LOG.debug("Device {} ended upload {} after {} bytes", callsign, requestId, sent);
+                        return pending;
+                    }
+                    throw new TimeoutException("No upload credit from device for " + config.httpRequestTimeout + "s");
+                }
+                byte[] data = Arrays.copyOf(buffer, read);
+                RelayMessage chunk = RelayMessage.createHttpRequestChunk(requestId);
+                if (!device.isBinaryFraming()) {
+                    chunk.body = Base64.getEncoder().encodeToString(data);
+                    chunk.isBase64 = true;
+                }
+                device.sendMessage(chunk, data);
+                pending.touch();
+                sent += read;
+            }
+            device.sendMessage(RelayMessage.createHttpRequestEnd(requestId, null), null);
+        } catch (Exception e) {
+            // Tell the device the body is incomplete, then fail the request
+            pendingRequests.remove(requestId);
+            pending.completeExceptionally(e);
+            try {
+                device.sendMessage(RelayMessage.createHttpRequestEnd(requestId, "Upload aborted: " + e.getMessage()),
+                        null);
+            } catch (Exception sendError) {
+                LOG.debug("Could not send upload abort to {}: {}", callsign, sendError.getMessage());
+            }
+            throw e;
+        }
+
+        LOG.info("Forwarded HTTP {} {} to device {} ({} bytes streamed)", method, path, callsign, sent);
+
+        return pending;
+    }
+
     /**
      * Forward HTTP request to device
      */
@@ -423,11 +683,11 @@ public class RelayServer {
                 requestId, method, path, headersJson, body != null ? body : "");
 
         // Create pending request
-        PendingRequest pending = new PendingRequest(requestId, null);
+        PendingRequest pending = new PendingRequest(requestId, device.getCallsign(), null);
         pendingRequests.put(requestId, pending);
 
-        // Send to device
-        device.sendMessage(request);
+        // Send to device (the body travels raw if the device uses binary frames)
+        device.sendMessage(request, request.body.getBytes(java.nio.charset.StandardCharsets.UTF_8));
 
         LOG.info("Forwarded HTTP {} {} to device {}", method, path, callsign);
 
@@ -456,7 +716,102 @@ public class RelayServer {
      * @return List of search results
      */
     public List<SearchResult> searchCollections(String query, int limit) {
-        return collectionSearcher.search(query, limit);
+        return searchCollections(new SearchRequest(query, limit));
+    }
+
+    /**
+     * Search collections with the filters, facets, cursor, deadline and
+     * listener set on the request
+     *
+     * @return List of search results (partial if the request ends up truncated)
+     */
+    public List<SearchResult> searchCollections(SearchRequest request) {
+        // Identical requests arriving together (e.g. a shared link) share one cache lookup and search
+        return searchCoalescer.search(request, request.flightKey(), this::searchOnce);
+    }
+
+    private List<SearchResult> searchOnce(SearchRequest request) {
+        // Facet counts depend on every matching collection, not only the cached page, so they are not cached;
+        // fuzzy hits are not covered by the cache's per-collection invalidation check
+        if (!searchCache.isEnabled() || request.facets != null || request.fuzzy > 0) {
+            return collectionSearcher.search(request);
+        }
+
+        String key = request.cacheKey();
+        List<SearchResult> cached = searchCache.get(key);
+        if (cached != null) {
+            if (request.listener != null && !cached.isEmpty()) {
+                request.listener.onResults(cached);
+            }
+            return cached;
+        }
+
+        long stamp = searchCache.stamp();
+        List<SearchResult> results = collectionSearcher.search(request);
+        // A deadline-cut page is incomplete, so the next request should search again
+        if (!request.truncated) {
+            searchCache.put(key, SearchQuery.normalize(request.query), results, stamp);
+        }
+        return results;
+    }
+
+    /**
+     * Prefix suggestions for the search box
+     *
+     * @param prefix Typed prefix
+     * @param limit  Maximum number of suggestions
+     */
+    public List<SuggestIndex.Suggestion> suggest(String prefix, int limit) {
+        return collectionSearcher.suggest(prefix, limit);
+    }
+
+    /**
+     * Load a connecting device's search index shard in the background
+     */
+    private void preloadSearchShard(String callsign) {
+        scheduler.execute(() -> {
+            try {
+                collectionSearcher.preloadDevice(callsign);
+            } catch (Exception e) {
+                LOG.error("Error loading search index shard for {}", callsign, e);
+            }
+        });
+    }
+
+    private void refreshSuggestions() {
+        try {
+            collectionSearcher.refreshSuggestIndex();
+        } catch (Exception e) {
+            LOG.error("Error rebuilding suggest index", e);
+        }
+    }
+
+    private void flushSearchIndex() {
+        try {
+            collectionSearcher.flushIndex();
+        } catch (Exception e) {
+            LOG.error("Error flushing search index", e);
+        }
+    }
+
+    /**
+     * Search index and cache statistics
+     */
+    public Map<String, Object> getSearchStats() {
+        SearchIndex index = collectionSearcher.getIndex();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("indexed_collections", index.getCollectionCount());
+        stats.put("indexed_files", index.getFileCount());
+        stats.put("file_table_bytes", index.getFileTableBytes());
+        stats.put("shards", index.getShardCount());
+        stats.put("resident_shards", index.getResidentShardCount());
+        stats.put("resident_bytes", index.getResidentBytes());
+        stats.put("shard_loads", index.getShardLoads());
+        stats.put("shard_evictions", index.getShardEvictions());
+        stats.put("cache", searchCache.getStats());
+        stats.put("searches_run", searchCoalescer.getSearches());
+        stats.put("searches_coalesced", searchCoalescer.getCoalesced());
+        return stats;
     }
 
     /**
@@ -464,6 +819,9 @@ public class RelayServer {
      */
     private void failPendingRequestsForDevice(String callsign) {
         pendingRequests.values().removeIf(pending -> {
+            if (pending.getCallsign() != null && !pending.getCallsign().equals(callsign)) {
+                return false;
+            }
             pending.completeExceptionally(new Exception("Device disconnected"));
             return true;
         });
@@ -608,7 +966,7 @@ public class RelayServer {
     }
 
     /**
-     * Store collection file to disk
+     * Store collection file to disk and update the search index
      */
     private void storeCollectionFile(String callsign, String collectionName, String fileName, String content) {
         try {
@@ -633,11 +991,22 @@ public class RelayServer {
                 LOG.info("Created subdirectory: {}", parentDir.toAbsolutePath());
             }
 
-            java.nio.file.Files.writeString(filePath, content);
+            // Reconnects re-send every file; an identical one is already stored and indexed
+            byte[] bytes = content.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            if (java.nio.file.Files.exists(filePath) && java.nio.file.Files.size(filePath) == bytes.length
+                    && Arrays.equals(java.nio.file.Files.readAllBytes(filePath), bytes)) {
+                LOG.debug("Unchanged {} for collection {} from device {}", fileName, collectionName, callsign);
+                return;
+            }
+
+            java.nio.file.Files.write(filePath, bytes);
 
             LOG.info("Stored {} for collection {} from device {} ({} bytes)",
                 fileName, collectionName, callsign, content.length());
 
+            // Keep the search index in sync with the stored file
+            collectionSearcher.indexCollectionFile(callsign, collectionName, fileName, content);
+
         } catch (Exception e) {
             LOG.error("Failed to store collection file: {}/{}/{}", callsign, collectionName, fileName, e);
         }
@@ -648,6 +1017,8 @@ public class RelayServer {
      */
     public void shutdown() {
         scheduler.shutdown();
+        collectionSearcher.shutdown();
+        searchCache.clear();
         devices.clear();
         pendingRequests.clear();
         contextToCallsign.clear();
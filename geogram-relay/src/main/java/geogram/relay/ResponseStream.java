@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pipe for a device response streamed in HTTP_RESPONSE_CHUNK messages
+ *
+ * The device's WebSocket thread writes chunks as they arrive and never
+ * waits here. The HTTP request itself is suspended with {@code ctx.future},
+ * so no Jetty thread waits on the device either: once HTTP_RESPONSE_START
+ * arrives, a task on the relay's proxy executor copies the chunks to the
+ * client's output stream.
+ *
+ * At most {@link #BUFFER_BYTES} wait in between, so a response of any size
+ * needs only a bounded amount of heap. How the device is held back depends
+ * on its hello:
+ * <ul>
+ *   <li>With a {@code ["response", "credit"]} tag the device may have
+ *       BUFFER_BYTES of the response in flight, and the relay grants more
+ *       with HTTP_RESPONSE_CREDIT as the client reads. A slow client then
+ *       only slows its own response. A chunk beyond the credit is refused.</li>
+ *   <li>Otherwise reading from the device's socket is suspended while the
+ *       buffer is full, and resumed once the client has read half of it.
+ *       This holds back the device's other traffic too, but no thread.</li>
+ * </ul>
+ *
+ * @author brito
+ */
+public class ResponseStream {
+
+    public static final String RESPONSE_TAG = "response";
+    public static final String RESPONSE_CREDIT = "credit";
+
+    public static final int BUFFER_BYTES = 1024 * 1024;
+
+    // Credit is granted in batches of this size, or when the client has read everything
+    static final int GRANT_BYTES = 64 * 1024;
+
+    private static final byte[] END = new byte[0];
+
+    /**
+     * Holds the device back while the client catches up; called without
+     * the stream's lock held
+     */
+    public interface Flow {
+
+        /**
+         * Allow the device to send bytes more of the response (credit mode)
+         */
+        void grant(int bytes);
+
+        /**
+         * Stop reading from the device (otherwise)
+         */
+        void pause();
+
+        /**
+         * Read from the device again after {@link #pause}
+         */
+        void resume();
+    }
+
+    private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    private final boolean credited;
+    private final Flow flow;
+    private int buffered;
+    private int ungranted;
+    private boolean paused;
+    private volatile boolean aborted;
+    private volatile String error;
+
+    /**
+     * @param credited True if the device sends no more than the credit it was granted
+     */
+    public ResponseStream(boolean credited, Flow flow) {
+        this.credited = credited;
+        this.flow = flow;
+    }
+
+    /**
+     * Queue a chunk for the client (never blocks)
+     *
+     * @return false if the client is gone, or the device sent more than its credit
+     */
+    public boolean write(byte[] chunk) {
+        boolean pause;
+        synchronized (this) {
+            if (aborted) {
+                return false;
+            }
+            if (chunk.length == 0) {
+                return true;
+            }
+            if (credited && buffered + chunk.length > BUFFER_BYTES) {
+                return false;
+            }
+            buffered += chunk.length;
+            chunks.add(chunk);
+            pause = !credited && !paused && buffered >= BUFFER_BYTES;
+            paused |= pause;
+        }
+        if (pause) {
+            flow.pause();
+        }
+        return true;
+    }
+
+    /**
+     * Mark the end of the response, failed if error is not null (never blocks)
+     */
+    public void end(String error) {
+        this.error = error;
+        chunks.add(END);
+    }
+
+    /**
+     * Drop buffered chunks and refuse further ones, called when the client is gone
+     */
+    public void abort() {
+        boolean resume;
+        synchronized (this) {
+            aborted = true;
+            chunks.clear();
+            buffered = 0;
+            resume = paused;
+            paused = false;
+        }
+        if (resume) {
+            flow.resume();
+        }
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Bytes waiting for the client
+     */
+    public synchronized int getBuffered() {
+        return buffered;
+    }
+
+    /**
+     * Copy chunks to out until the device ends the response
+     *
+     * @param idleTimeoutMillis Longest wait for the next chunk
+     * @throws IOException if writing fails, the device stalls or it ends the response with an error
+     */
+    public void pipeTo(OutputStream out, long idleTimeoutMillis) throws IOException, InterruptedException {
+        while (true) {
+            byte[] chunk = chunks.poll(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (chunk == null) {
+                throw new IOException("No data from device for " + idleTimeoutMillis + " ms");
+            }
+            if (chunk == END) {
+                out.flush();
+                if (error != null) {
+                    throw new IOException(error);
+                }
+                return;
+            }
+            out.write(chunk);
+            if (chunks.isEmpty()) {
+                out.flush();
+            }
+            released(chunk.length);
+        }
+    }
+
+    /**
+     * Account for bytes the client took, letting the device send more
+     */
+    private void released(int bytes) {
+        int grant = 0;
+        boolean resume = false;
+        synchronized (this) {
+            if (aborted) {
+                return;
+            }
+            buffered -= bytes;
+            if (credited) {
+                ungranted += bytes;
+                if (ungranted >= GRANT_BYTES || buffered == 0) {
+                    grant = ungranted;
+                    ungranted = 0;
+                }
+            } else if (paused && buffered <= BUFFER_BYTES / 2) {
+                paused = false;
+                resume = true;
+            }
+        }
+        if (grant > 0) {
+            flow.grant(grant);
+        } else if (resume) {
+            flow.resume();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bounded LRU cache of search results keyed by normalized query and limit
+ *
+ * Each entry records the version of every collection snapshot that
+ * contributed a result. A lookup is only a hit while all of those versions
+ * are current, so a re-synced collection invalidates exactly the entries
+ * it appears in.
+ * Collections that start matching a cached query after a sync are handled
+ * by {@link #invalidateMatching}, called from the index update hook.
+ *
+ * @author brito
+ */
+public class SearchCache {
+
+    private final int maxEntries;
+    private final SearchIndex index;
+    private final Map<String, Entry> entries;
+
+    // Bumped on every invalidation pass; results computed across one are not stored
+    private final AtomicLong stamp = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public SearchCache(int maxEntries, SearchIndex index) {
+        this.maxEntries = maxEntries;
+        this.index = index;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > SearchCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Build the cache key for a query (case and surrounding whitespace are ignored)
+     */
+    public static String key(String query, int limit) {
+        return SearchQuery.normalize(query) + "\u0000" + limit;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Current stamp; pass it back to {@link #put} after computing results
+     */
+    public long stamp() {
+        return stamp.get();
+    }
+
+    /**
+     * Cached results, or null on a miss or when a contributing collection changed
+     */
+    public List<SearchResult> get(String key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        for (int i = 0; i < entry.callsigns.length; i++) {
+            if (index.getVersion(entry.callsigns[i], entry.collectionNames[i]) != entry.versions[i]) {
+                synchronized (entries) {
+                    entries.remove(key, entry);
+                }
+                invalidations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        hits.incrementAndGet();
+        return entry.results;
+    }
+
+    /**
+     * Store results computed for a query. Results are dropped if an
+     * invalidation ran since {@code stampBefore}, since they may be stale.
+     */
+    public void put(String key, String normalizedQuery, List<SearchResult> results, long stampBefore) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        // Record the version of each collection appearing in the results
+        Set<String> seen = new LinkedHashSet<>();
+        List<SearchResult> dependencies = new ArrayList<>();
+        for (SearchResult result : results) {
+            if (seen.add(result.callsign + "/" + result.collectionName)) {
+                dependencies.add(result);
+            }
+        }
+
+        String[] callsigns = new String[dependencies.size()];
+        String[] collectionNames = new String[dependencies.size()];
+        long[] versions = new long[dependencies.size()];
+        for (int i = 0; i < callsigns.length; i++) {
+            SearchResult dependency = dependencies.get(i);
+            callsigns[i] = dependency.callsign;
+            collectionNames[i] = dependency.collectionName;
+            versions[i] = dependency.collectionVersion;
+        }
+
+        Entry entry = new Entry(normalizedQuery, Collections.unmodifiableList(new ArrayList<>(results)),
+                callsigns, collectionNames, versions);
+
+        synchronized (entries) {
+            if (stamp.get() == stampBefore) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Drop entries whose query matches an updated collection, which may now
+     * contribute results it did not have before
+     */
+    public void invalidateMatching(Predicate<String> matchesQuery) {
+        List<Map.Entry<String, Entry>> snapshot;
+        synchronized (entries) {
+            stamp.incrementAndGet();
+            snapshot = new ArrayList<>(entries.entrySet());
+        }
+
+        for (Map.Entry<String, Entry> cached : snapshot) {
+            if (matchesQuery.test(cached.getValue().query)) {
+                synchronized (entries) {
+                    entries.remove(cached.getKey(), cached.getValue());
+                }
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            stamp.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Cache statistics for status endpoints
+     */
+    public Map<String, Object> getStats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("entries", size());
+        stats.put("max_entries", maxEntries);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("invalidations", invalidations.get());
+        stats.put("hit_rate", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0.0);
+        return stats;
+    }
+
+    private static class Entry {
+        final String query;
+        final List<SearchResult> results;
+        final String[] callsigns;
+        final String[] collectionNames;
+        final long[] versions;
+
+        Entry(String query, List<SearchResult> results, String[] callsigns,
+              String[] collectionNames, long[] versions) {
+            this.query = query;
+            this.results = results;
+            this.callsigns = callsigns;
+            this.collectionNames = collectionNames;
+            this.versions = versions;
+        }
+    }
+}
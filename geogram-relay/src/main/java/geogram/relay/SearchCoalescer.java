@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Single-flight coalescing of identical concurrent searches
+ *
+ * The first request for a key runs the search; requests with the same key
+ * arriving while it runs wait for its outcome instead of scanning the index
+ * again, so a burst of identical queries costs one search. Results, facet
+ * counts and errors are shared with every waiter.
+ *
+ * A truncated outcome is not shared: a waiter with time left runs its own
+ * search, since the first request may simply have had a shorter deadline
+ * or been cancelled. A request only waits for a search due to end before
+ * its own deadline, and runs its own search with the time left if that
+ * search overruns. Streaming requests never run a search for others, as
+ * their search waits on the client reading each batch.
+ *
+ * @author brito
+ */
+public class SearchCoalescer {
+
+    // How long past its deadline a running search is waited for, to finish the shard it is on
+    static final long OVERRUN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Run the search for a request, or join the identical one in flight
+     *
+     * @param key    Identity of everything that changes the outcome (see {@link SearchRequest#flightKey})
+     * @param search Runs the search for the first request of a key
+     */
+    public List<SearchResult> search(SearchRequest request, String key,
+                                     Function<SearchRequest, List<SearchResult>> search) {
+        Flight running = flights.get(key);
+        if (running == null && request.listener == null) {
+            Flight flight = new Flight(request);
+            running = flights.putIfAbsent(key, flight);
+            if (running == null) {
+                return lead(request, key, flight, search);
+            }
+        }
+        if (running == null || !running.endsBefore(request)) {
+            searches.incrementAndGet();
+            return search.apply(request);
+        }
+
+        Outcome outcome;
+        try {
+            outcome = await(running, request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.truncated = true;
+            return Collections.emptyList();
+        }
+        if (outcome == null || outcome.truncated) {
+            // Overran or cut short: search with the time this request has left
+            searches.incrementAndGet();
+            return search.apply(request);
+        }
+
+        coalesced.incrementAndGet();
+        if (request.facets != null && outcome.facets != null) {
+            request.facets.merge(outcome.facets);
+        }
+        if (request.listener != null && !outcome.results.isEmpty()) {
+            request.listener.onResults(outcome.results);
+        }
+        return outcome.results;
+    }
+
+    private List<SearchResult> lead(SearchRequest request, String key, Flight flight,
+                                    Function<SearchRequest, List<SearchResult>> search) {
+        searches.incrementAndGet();
+        try {
+            List<SearchResult> results = search.apply(request);
+            flight.outcome.complete(new Outcome(Collections.unmodifiableList(results), request.truncated,
+                    request.facets));
+            return results;
+        } catch (RuntimeException | Error e) {
+            flight.outcome.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Outcome of the running search, or null if it is still running shortly
+     * after its deadline or at the request's own
+     */
+    private static Outcome await(Flight running, SearchRequest request) throws InterruptedException {
+        try {
+            long deadline = running.leader.deadlineNanos;
+            if (deadline == 0) {
+                return running.outcome.get();
+            }
+            deadline += OVERRUN_NANOS;
+            long own = request.deadlineNanos;
+            if (own != 0 && own - deadline < 0) {
+                deadline = own;
+            }
+            return running.outcome.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Search failed", e.getCause());
+        }
+    }
+
+    /**
+     * Searches actually run
+     */
+    public long getSearches() {
+        return searches.get();
+    }
+
+    /**
+     * Requests answered by another request's search
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    private static class Flight {
+        final SearchRequest leader;
+        final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+
+        Flight(SearchRequest leader) {
+            this.leader = leader;
+        }
+
+        /**
+         * True if the search is due to end by the request's deadline
+         */
+        boolean endsBefore(SearchRequest request) {
+            long own = request.deadlineNanos;
+            if (own == 0) {
+                return true;
+            }
+            long deadline = leader.deadlineNanos;
+            return deadline != 0 && deadline - own <= 0;
+        }
+    }
+
+    private static class Outcome {
+        final List<SearchResult> results;
+        final boolean truncated;
+        final FacetCounts facets;
+
+        Outcome(List<SearchResult> results, boolean truncated, FacetCounts facets) {
+            this.results = results;
+            this.truncated = truncated;
+            this.facets = facets;
+        }
+    }
+}
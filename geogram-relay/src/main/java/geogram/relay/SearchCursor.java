@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Opaque search-after cursor for /search pagination
+ *
+ * Encodes the (score, sequence) of the last hit of a page together with a
+ * hash of the query and filters it belongs to. The next page collects only
+ * hits ranking after that position, so every page costs one scan with a
+ * heap of the page size instead of re-ranking all earlier pages.
+ *
+ * Sequences follow index order, with each device based at its stable
+ * shard id, so a cursor is exact while the indexed collections are
+ * unchanged, even if other devices register between pages; after a
+ * re-sync a page may repeat or skip a few hits.
+ *
+ * @author brito
+ */
+public class SearchCursor {
+
+    private static final int ENCODED_BYTES = 8 + 8 + 4;
+
+    public final double score;
+    public final long sequence;
+    private final int queryHash;
+
+    private SearchCursor(double score, long sequence, int queryHash) {
+        this.score = score;
+        this.sequence = sequence;
+        this.queryHash = queryHash;
+    }
+
+    /**
+     * Cursor after the last result of a full page, or null if there is no
+     * next page or the search was truncated: devices it did not reach may
+     * hold hits ranking before the page's last one, which a cursor would skip
+     */
+    public static String next(List<SearchResult> page, SearchRequest request) {
+        if (request.truncated || page.isEmpty() || page.size() < request.limit) {
+            return null;
+        }
+        String queryKey = request.queryKey();
+        SearchResult last = page.get(page.size() - 1);
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_BYTES);
+        buffer.putLong(Double.doubleToLongBits(last.relevance));
+        buffer.putLong(last.sequence);
+        buffer.putInt(queryKey.hashCode());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decode a cursor produced by {@link #next} for the same query and filters
+     *
+     * @throws IllegalArgumentException if the cursor is malformed or belongs to another query
+     */
+    public static SearchCursor decode(String cursor, String queryKey) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        if (bytes.length != ENCODED_BYTES) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        SearchCursor decoded = new SearchCursor(Double.longBitsToDouble(buffer.getLong()),
+                buffer.getLong(), buffer.getInt());
+        if (decoded.queryHash != queryKey.hashCode()) {
+            throw new IllegalArgumentException("Cursor belongs to a different query");
+        }
+        return decoded;
+    }
+
+    /**
+     * Identity of a result list a cursor can continue
+     */
+    public static String queryKey(String query, SearchFilter filter) {
+        return SearchQuery.normalize(query) + "\u0000" + filter.key();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+/**
+ * Facet filters for /search (null fields do not filter)
+ *
+ * A file type or size filter only admits file hits; a callsign filter
+ * also admits collection hits of that device.
+ *
+ * @author brito
+ */
+public class SearchFilter {
+
+    public static final SearchFilter NONE = new SearchFilter(null, null, null, null);
+
+    public final String fileType;
+    public final String callsign;
+    public final Long minSize;  // Inclusive, bytes
+    public final Long maxSize;  // Inclusive, bytes
+
+    public SearchFilter(String fileType, String callsign, Long minSize, Long maxSize) {
+        this.fileType = fileType;
+        this.callsign = callsign;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    public boolean isEmpty() {
+        return fileType == null && callsign == null && minSize == null && maxSize == null;
+    }
+
+    /**
+     * True if only file hits can pass
+     */
+    public boolean filesOnly() {
+        return fileType != null || hasSizeRange();
+    }
+
+    public boolean hasSizeRange() {
+        return minSize != null || maxSize != null;
+    }
+
+    public boolean acceptsCallsign(String value) {
+        return callsign == null || callsign.equalsIgnoreCase(value);
+    }
+
+    /**
+     * Check a file size against the range (unknown sizes, -1, never match a range)
+     */
+    public boolean acceptsSize(long size) {
+        if (!hasSizeRange()) {
+            return true;
+        }
+        return size >= 0
+                && (minSize == null || size >= minSize)
+                && (maxSize == null || size <= maxSize);
+    }
+
+    /**
+     * Stable representation used in cache keys
+     */
+    public String key() {
+        if (isEmpty()) {
+            return "";
+        }
+        return "type=" + fileType + "&callsign=" + (callsign != null ? callsign.toUpperCase() : null)
+                + "&min=" + minSize + "&max=" + maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchFilter{" + key() + "}";
+    }
+}
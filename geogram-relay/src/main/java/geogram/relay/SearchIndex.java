@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Search index keyed by callsign and collection name, sharded per device
+ *
+ * Collections are stored as immutable {@link IndexedCollection} instances
+ * in an immutable map per device. An update builds the device's next map
+ * aside and publishes it with a single volatile write, so searches never
+ * take a lock and always see a whole snapshot of each device.
+ *
+ * Each device is a shard whose collections may be resident or evicted. A
+ * shard is loaded through the {@link ShardLoader} on first access and
+ * shards are evicted least recently used first once the resident ones
+ * exceed the memory limit. What queries and the cache need without loading
+ * (versions, counts and a {@link ShardFilter} of the shard's trigrams) stays
+ * resident for every shard, so heap use and startup follow the devices in
+ * use rather than every device ever seen.
+ *
+ * @author brito
+ */
+public class SearchIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchIndex.class);
+
+    // Lock-free publish attempts before an update is applied under the device lock
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+    /**
+     * Reads the collections of an evicted device shard back
+     */
+    public interface ShardLoader {
+        Collection<IndexedCollection> load(String callsign) throws IOException;
+    }
+
+    /**
+     * What is known about a collection while its shard is not resident
+     */
+    public static class CollectionInfo {
+        public final String collectionName;
+        public final long version;
+        public final long indexedAt;
+        public final int fileCount;
+
+        public CollectionInfo(String collectionName, long version, long indexedAt, int fileCount) {
+            this.collectionName = collectionName;
+            this.version = version;
+            this.indexedAt = indexedAt;
+            this.fileCount = fileCount;
+        }
+
+        static CollectionInfo of(IndexedCollection collection) {
+            return new CollectionInfo(collection.collectionName, collection.version,
+                    collection.indexedAt, collection.files.size());
+        }
+    }
+
+    private static class Shard {
+        final String callsign;
+        final int id;  // Registration order, never reused
+        // collectionName -> info, kept while the shard is evicted
+        final Map<String, CollectionInfo> info = new ConcurrentHashMap<>();
+        volatile Map<String, IndexedCollection> collections;  // Immutable snapshot (null = evicted)
+        volatile ShardFilter filter = ShardFilter.ALL;
+        long residentBytes;  // Accounted size while in the LRU (guarded by the LRU)
+
+        Shard(String callsign, int id) {
+            this.callsign = callsign;
+            this.id = id;
+        }
+    }
+
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    private final AtomicInteger nextShardId = new AtomicInteger();
+
+    // Resident shards, least recently used first
+    private final LinkedHashMap<String, Shard> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentBytes;  // Guarded by lru
+
+    private volatile ShardLoader loader;
+    private volatile long memoryLimit;  // Bytes of resident shards (0 = unlimited)
+
+    private final AtomicLong shardLoads = new AtomicLong();
+    private final AtomicLong shardEvictions = new AtomicLong();
+
+    private final List<UpdateListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Set how evicted shards are read back; without a loader nothing is evicted
+     */
+    public void setLoader(ShardLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Limit the heap used by resident shards (0 = keep every shard resident)
+     */
+    public void setMemoryLimit(long bytes) {
+        this.memoryLimit = bytes;
+        evict(null);
+    }
+
+    public IndexedCollection get(String callsign, String collectionName) {
+        Shard shard = shards.get(callsign);
+        return shard != null ? resident(shard).get(collectionName) : null;
+    }
+
+    /**
+     * Publish a collection, assigning it the next version number
+     *
+     * @return The stored instance
+     */
+    public IndexedCollection put(IndexedCollection collection) {
+        return update(collection.callsign, collection.collectionName, current -> collection);
+    }
+
+    /**
+     * Publish a new snapshot of a collection derived from its current one
+     * (a new empty collection if it is not indexed)
+     *
+     * The change and the device's next snapshot are built without any lock.
+     * Publishing only succeeds if the device still holds the snapshot the
+     * change started from; otherwise another writer got there first and the
+     * change is applied again to the newer snapshot, so no update is lost.
+     * A change superseded {@link #OPTIMISTIC_ATTEMPTS} times is applied
+     * with the device locked, so a slow update cannot be starved by fast
+     * ones. Listeners run while the device is locked, so an update is
+     * staged before the shard can be evicted and read back. A change that
+     * returns the current instance publishes nothing.
+     *
+     * @return The stored instance
+     */
+    public IndexedCollection update(String callsign, String collectionName, UnaryOperator<IndexedCollection> change) {
+        Shard shard = shards.computeIfAbsent(callsign, this::newShard);
+        IndexedCollection stored = null;
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS && stored == null; attempt++) {
+            Map<String, IndexedCollection> base = resident(shard);
+            Map<String, IndexedCollection> updated = apply(base, callsign, collectionName, change);
+            if (updated == base) {
+                stored = base.get(collectionName);
+                break;
+            }
+            Snapshot next = new Snapshot(updated);
+            synchronized (shard) {
+                // Otherwise superseded or evicted meanwhile
+                if (shard.collections == base) {
+                    stored = publish(shard, collectionName, updated, next);
+                }
+            }
+        }
+        if (stored == null) {
+            synchronized (shard) {
+                Map<String, IndexedCollection> base = load(shard);
+                Map<String, IndexedCollection> updated = apply(base, callsign, collectionName, change);
+                stored = updated == base ? base.get(collectionName)
+                        : publish(shard, collectionName, updated, new Snapshot(updated));
+            }
+        }
+        evict(shard);
+        return stored;
+    }
+
+    private static Map<String, IndexedCollection> apply(Map<String, IndexedCollection> base, String callsign,
+                                                        String collectionName,
+                                                        UnaryOperator<IndexedCollection> change) {
+        IndexedCollection current = base.get(collectionName);
+        IndexedCollection changed = change.apply(current != null ? current
+                : new IndexedCollection(callsign, collectionName));
+        if (changed == current) {
+            return base;
+        }
+        Map<String, IndexedCollection> updated = new HashMap<>(base);
+        updated.put(collectionName, changed);
+        return updated;
+    }
+
+    /**
+     * Version the changed collection, publish the snapshot holding it and
+     * notify listeners (caller holds the shard lock)
+     */
+    private IndexedCollection publish(Shard shard, String collectionName, Map<String, IndexedCollection> updated,
+                                      Snapshot next) {
+        CollectionInfo previous = shard.info.get(collectionName);
+        IndexedCollection stored = updated.get(collectionName).withVersion(previous != null ? previous.version + 1 : 1);
+        updated.put(collectionName, stored);
+        publish(shard, next);
+        shard.info.put(collectionName, CollectionInfo.of(stored));
+
+        for (UpdateListener listener : listeners) {
+            listener.onCollectionUpdated(stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Register a device whose collections stay on disk until first accessed
+     *
+     * @param collections Collections of the device (versions are assigned here)
+     * @param filter      Trigrams of the device's indexed texts
+     */
+    public void addShard(String callsign, Collection<CollectionInfo> collections, ShardFilter filter) {
+        Shard shard = shards.computeIfAbsent(callsign, this::newShard);
+        synchronized (shard) {
+            for (CollectionInfo collection : collections) {
+                CollectionInfo previous = shard.info.get(collection.collectionName);
+                shard.info.put(collection.collectionName, new CollectionInfo(collection.collectionName,
+                        previous != null ? previous.version + 1 : 1, collection.indexedAt, collection.fileCount));
+            }
+            shard.filter = filter;
+        }
+    }
+
+    /**
+     * Load a device's shard ahead of its first query (e.g. when it connects)
+     */
+    public void preload(String callsign) {
+        Shard shard = shards.get(callsign);
+        if (shard != null) {
+            resident(shard);
+        }
+    }
+
+    /**
+     * Current version of a collection, or 0 if it is not indexed (never loads the shard)
+     */
+    public long getVersion(String callsign, String collectionName) {
+        CollectionInfo info = getInfo(callsign, collectionName);
+        return info != null ? info.version : 0;
+    }
+
+    /**
+     * Resident summary of a collection, or null if it is not indexed
+     */
+    public CollectionInfo getInfo(String callsign, String collectionName) {
+        Shard shard = shards.get(callsign);
+        return shard != null ? shard.info.get(collectionName) : null;
+    }
+
+    /**
+     * Names of a device's indexed collections (never loads the shard)
+     */
+    public Collection<String> getCollectionNames(String callsign) {
+        Shard shard = shards.get(callsign);
+        return shard != null ? Collections.unmodifiableSet(shard.info.keySet()) : Collections.emptySet();
+    }
+
+    /**
+     * Trigram filter of a device's shard (never loads the shard)
+     */
+    public ShardFilter getFilter(String callsign) {
+        Shard shard = shards.get(callsign);
+        return shard != null ? shard.filter : ShardFilter.ALL;
+    }
+
+    /**
+     * Register a listener notified after every published collection update
+     */
+    public void addListener(UpdateListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Notified after a collection has been replaced in the index
+     */
+    public interface UpdateListener {
+        void onCollectionUpdated(IndexedCollection collection);
+    }
+
+    public void remove(String callsign, String collectionName) {
+        Shard shard = shards.get(callsign);
+        if (shard == null) {
+            return;
+        }
+        synchronized (shard) {
+            shard.info.remove(collectionName);
+            Map<String, IndexedCollection> current = shard.collections;
+            if (current != null && current.containsKey(collectionName)) {
+                Map<String, IndexedCollection> updated = new HashMap<>(current);
+                updated.remove(collectionName);
+                publish(shard, new Snapshot(updated));
+            }
+        }
+    }
+
+    private Shard newShard(String callsign) {
+        return new Shard(callsign, nextShardId.getAndIncrement());
+    }
+
+    /**
+     * Stable id of a device's shard, e.g. to give its hits a position that
+     * does not depend on which other devices a query reaches (-1 if unknown)
+     */
+    public int getShardId(String callsign) {
+        Shard shard = shards.get(callsign);
+        return shard != null ? shard.id : -1;
+    }
+
+    /**
+     * Callsigns that have at least one indexed collection
+     */
+    public Collection<String> getCallsigns() {
+        return Collections.unmodifiableSet(shards.keySet());
+    }
+
+    /**
+     * Collections for a single device, loading its shard if needed (empty if unknown)
+     */
+    public Collection<IndexedCollection> getCollections(String callsign) {
+        Shard shard = shards.get(callsign);
+        return shard != null ? resident(shard).values() : Collections.emptyList();
+    }
+
+    /**
+     * Collections of the given devices, loading each shard only when the
+     * iteration reaches it
+     */
+    public Iterable<IndexedCollection> getCollections(String[] callsigns) {
+        return () -> Arrays.stream(callsigns).flatMap(callsign -> getCollections(callsign).stream()).iterator();
+    }
+
+    public int getCollectionCount() {
+        int count = 0;
+        for (Shard shard : shards.values()) {
+            count += shard.info.size();
+        }
+        return count;
+    }
+
+    public long getFileCount() {
+        long count = 0;
+        for (Shard shard : shards.values()) {
+            for (CollectionInfo info : shard.info.values()) {
+                count += info.fileCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Approximate heap footprint of the file tables of resident shards in bytes
+     */
+    public long getFileTableBytes() {
+        long bytes = 0;
+        for (Shard shard : shards.values()) {
+            Map<String, IndexedCollection> current = shard.collections;
+            if (current != null) {
+                for (IndexedCollection collection : current.values()) {
+                    bytes += collection.files.getSizeInBytes();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Approximate heap footprint of resident shards in bytes, as held against the memory limit
+     */
+    public long getResidentBytes() {
+        synchronized (lru) {
+            return residentBytes;
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public int getResidentShardCount() {
+        synchronized (lru) {
+            return lru.size();
+        }
+    }
+
+    public long getShardLoads() {
+        return shardLoads.get();
+    }
+
+    public long getShardEvictions() {
+        return shardEvictions.get();
+    }
+
+    // ---------------------------------------------------------------------
+    // Residency
+    // ---------------------------------------------------------------------
+
+    /**
+     * Collections of a shard, loading it if it was evicted
+     */
+    private Map<String, IndexedCollection> resident(Shard shard) {
+        Map<String, IndexedCollection> current = shard.collections;
+        if (current != null) {
+            touch(shard);
+            return current;
+        }
+
+        synchronized (shard) {
+            current = load(shard);
+        }
+        evict(shard);
+        return current;
+    }
+
+    /**
+     * Collections of a shard, reading them if it was evicted (caller holds the
+     * shard lock and evicts afterwards, so no two shard locks are ever held)
+     */
+    private Map<String, IndexedCollection> load(Shard shard) {
+        Map<String, IndexedCollection> current = shard.collections;
+        if (current == null) {
+            Snapshot loaded = new Snapshot(read(shard));
+            publish(shard, loaded);
+            current = loaded.collections;
+            if (!current.isEmpty()) {
+                shardLoads.incrementAndGet();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Read a shard through the loader, keeping only collections still indexed
+     * and giving them their current versions
+     */
+    private Map<String, IndexedCollection> read(Shard shard) {
+        Map<String, IndexedCollection> collections = new HashMap<>();
+        ShardLoader source = loader;
+        if (source == null || shard.info.isEmpty()) {
+            return collections;
+        }
+        try {
+            for (IndexedCollection collection : source.load(shard.callsign)) {
+                CollectionInfo info = shard.info.get(collection.collectionName);
+                if (info != null) {
+                    collections.put(collection.collectionName, collection.withVersion(info.version));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error loading search index shard {}", shard.callsign, e);
+        }
+        return collections;
+    }
+
+    /**
+     * Next collections of a device with their trigram filter and size,
+     * prepared before the shard is locked
+     */
+    private static class Snapshot {
+        final Map<String, IndexedCollection> collections;
+        final ShardFilter filter;
+        final long bytes;
+
+        Snapshot(Map<String, IndexedCollection> collections) {
+            this.collections = Collections.unmodifiableMap(collections);
+            this.filter = ShardFilter.of(collections.values());
+            long size = filter.getSizeInBytes();
+            for (IndexedCollection collection : collections.values()) {
+                size += collection.getSizeInBytes();
+            }
+            this.bytes = size;
+        }
+    }
+
+    /**
+     * Make a snapshot the shard's current one (caller holds the shard lock)
+     */
+    private void publish(Shard shard, Snapshot snapshot) {
+        shard.filter = snapshot.filter;
+        shard.collections = snapshot.collections;
+
+        synchronized (lru) {
+            residentBytes += snapshot.bytes - shard.residentBytes;
+            shard.residentBytes = snapshot.bytes;
+            lru.put(shard.callsign, shard);
+        }
+    }
+
+    private void touch(Shard shard) {
+        synchronized (lru) {
+            lru.get(shard.callsign);
+        }
+    }
+
+    /**
+     * Evict least recently used shards until the resident ones fit the
+     * memory limit, never evicting the shard just used
+     */
+    private void evict(Shard keep) {
+        long limit = memoryLimit;
+        if (limit <= 0 || loader == null) {
+            return;
+        }
+
+        List<Shard> victims = new ArrayList<>();
+        synchronized (lru) {
+            Iterator<Shard> eldest = lru.values().iterator();
+            while (residentBytes > limit && eldest.hasNext()) {
+                Shard shard = eldest.next();
+                if (shard == keep) {
+                    continue;
+                }
+                eldest.remove();
+                residentBytes -= shard.residentBytes;
+                shard.residentBytes = 0;
+                victims.add(shard);
+            }
+        }
+
+        for (Shard shard : victims) {
+            synchronized (shard) {
+                // Skip shards that were updated or reloaded since they were picked
+                synchronized (lru) {
+                    if (lru.containsKey(shard.callsign)) {
+                        continue;
+                    }
+                }
+                shard.collections = null;
+                shardEvictions.incrementAndGet();
+            }
+        }
+        if (!victims.isEmpty()) {
+            LOG.debug("Evicted {} search index shards, {} bytes resident", victims.size(), getResidentBytes());
+        }
+    }
+}
@@ -0,0 +1,706 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Boolean query language for /search, compiled to posting-list operations
+ *
+ * Words and "quoted phrases" are substrings of a file name or its metadata
+ * (or of a collection title or description). Terms are combined with AND
+ * (also implicit between terms), OR and NOT, grouped with parentheses, and
+ * restricted to a field with name:, title:, type: or callsign:. Operators
+ * are only recognized in upper case and a query without any syntax is not
+ * parsed at all, so plain queries keep their single-substring meaning.
+ *
+ * title: and callsign: describe a whole collection and match either all of
+ * its files or none; type: matches files of that fileType through the
+ * facet bitmaps.
+ *
+ * Every collection evaluates the plan over sorted arrays of file doc ids.
+ * An AND runs its most selective child first, estimated from trigram
+ * posting lengths and bitmap sizes, and hands the survivors to the next
+ * child, which then only verifies those docs instead of building its own
+ * list. NOT children run last as subtractions, and a collection whose plan
+ * estimates no file and no collection hit is skipped outright.
+ *
+ * @author brito
+ */
+public class SearchQuery {
+
+    public enum Field { ANY, NAME, TITLE, TYPE, CALLSIGN }
+
+    private static final String[] FIELD_PREFIXES = {"name:", "title:", "type:", "callsign:"};
+    private static final Field[] PREFIX_FIELDS = {Field.NAME, Field.TITLE, Field.TYPE, Field.CALLSIGN};
+
+    private static final int[] NO_DOCS = new int[0];
+
+    private final Node root;
+    private final List<Term> rankingTerms;
+
+    private SearchQuery(Node root) {
+        this.root = root;
+        List<Term> terms = new ArrayList<>();
+        root.collectRankingTerms(terms);
+        this.rankingTerms = Collections.unmodifiableList(terms);
+    }
+
+    /**
+     * Lowercase a query except for the AND/OR/NOT operators, so the result
+     * can serve as cache key and still be parsed
+     */
+    public static String normalize(String query) {
+        String trimmed = query.trim();
+        StringBuilder normalized = new StringBuilder(trimmed.length());
+        int i = 0;
+        while (i < trimmed.length()) {
+            int end = i + 1;
+            if (trimmed.charAt(i) == '"') {
+                end = trimmed.indexOf('"', i + 1);
+                end = end < 0 ? trimmed.length() : end + 1;
+            } else if (isWordChar(trimmed.charAt(i))) {
+                while (end < trimmed.length() && isWordChar(trimmed.charAt(end))) {
+                    end++;
+                }
+            }
+            String part = trimmed.substring(i, end);
+            normalized.append(isOperator(part) ? part : part.toLowerCase());
+            i = end;
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Parse a normalized query
+     *
+     * @return The compiled query, or null for a plain query without any syntax
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static SearchQuery parse(String normalizedQuery) {
+        if (!isStructured(normalizedQuery)) {
+            return null;
+        }
+        Parser parser = new Parser(tokenize(normalizedQuery));
+        Node root = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected " + parser.tokens.get(parser.position).describe());
+        }
+        return new SearchQuery(root);
+    }
+
+    /**
+     * True if the query uses quotes, parentheses, operators or field prefixes
+     */
+    public static boolean isStructured(String normalizedQuery) {
+        if (normalizedQuery.indexOf('"') >= 0 || normalizedQuery.indexOf('(') >= 0
+                || normalizedQuery.indexOf(')') >= 0) {
+            return true;
+        }
+        for (String word : normalizedQuery.split("\\s+")) {
+            if (isOperator(word) || fieldPrefix(word) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Terms that describe what is searched for (not under NOT, not type: or
+     * callsign:), used for ranking
+     */
+    public List<Term> getRankingTerms() {
+        return rankingTerms;
+    }
+
+    /**
+     * Text of the ranking terms, for BM25 statistics
+     */
+    public String rankingText() {
+        StringBuilder text = new StringBuilder();
+        for (Term term : rankingTerms) {
+            text.append(term.text).append(' ');
+        }
+        return text.toString().trim();
+    }
+
+    /**
+     * Upper bound of the collection's matching files (0 also rules out its
+     * files, not necessarily the collection document)
+     */
+    public int estimate(IndexedCollection collection) {
+        return root.estimate(collection);
+    }
+
+    /**
+     * False if no collection of the device can match, judged from the
+     * trigram filter of its shard without loading it
+     */
+    public boolean mayMatch(String callsign, ShardFilter filter) {
+        return root.mayMatch(callsign, filter);
+    }
+
+    public boolean matchesCollection(IndexedCollection collection) {
+        return root.collection(collection);
+    }
+
+    /**
+     * Matching file docs of a collection, ascending (null means every file)
+     */
+    public int[] matchingFiles(IndexedCollection collection) {
+        return root.files(collection, null);
+    }
+
+    // ---- Plan nodes ----
+
+    private abstract static class Node {
+        /**
+         * Upper bound of matching files, used to order AND children
+         */
+        abstract int estimate(IndexedCollection collection);
+
+        /**
+         * Matching files among within (sorted doc ids; null = every file).
+         * Returns null only when within is null and every file matches.
+         */
+        abstract int[] files(IndexedCollection collection, int[] within);
+
+        /**
+         * Whether the collection document (title and description) matches
+         */
+        abstract boolean collection(IndexedCollection collection);
+
+        /**
+         * False only if the node cannot match anything in the device
+         */
+        abstract boolean mayMatch(String callsign, ShardFilter filter);
+
+        void collectRankingTerms(List<Term> terms) {
+        }
+    }
+
+    /**
+     * A word or phrase, optionally restricted to a field
+     */
+    public static class Term extends Node {
+        public final Field field;
+        public final String text;
+
+        Term(Field field, String text) {
+            this.field = field;
+            this.text = text;
+        }
+
+        @Override
+        int estimate(IndexedCollection collection) {
+            int fileCount = collection.files.size();
+            switch (field) {
+                case NAME:
+                    return collection.fileIndex.estimate(text);
+                case ANY:
+                    return Math.min(fileCount, collection.fileIndex.estimate(text)
+                            + collection.fileMetadataIndex.estimate(text));
+                case TYPE:
+                    DocBitmap docs = collection.facets.typeBitmap(text);
+                    return docs != null ? docs.cardinality() : 0;
+                default:
+                    return collectionLevel(collection) ? fileCount : 0;
+            }
+        }
+
+        @Override
+        int[] files(IndexedCollection collection, int[] within) {
+            switch (field) {
+                case TITLE:
+                case CALLSIGN:
+                    return collectionLevel(collection) ? within : NO_DOCS;
+                case TYPE:
+                    return typeFiles(collection, within);
+                default:
+                    return textFiles(collection, within);
+            }
+        }
+
+        private int[] typeFiles(IndexedCollection collection, int[] within) {
+            DocBitmap docs = collection.facets.typeBitmap(text);
+            if (docs == null) {
+                return NO_DOCS;
+            }
+            if (within == null) {
+                return docs.toArray();
+            }
+            int[] kept = within.clone();
+            return Arrays.copyOf(kept, docs.retain(kept, kept.length));
+        }
+
+        private int[] textFiles(IndexedCollection collection, int[] within) {
+            int[] candidates;
+            if (within != null && within.length <= estimate(collection)) {
+                // Few survivors from earlier terms: verifying them beats intersecting postings
+                candidates = within;
+            } else {
+                candidates = collection.fileIndex.candidates(text);
+                if (field == Field.ANY) {
+                    candidates = union(candidates, collection.fileMetadataIndex.candidates(text));
+                }
+                if (candidates == null) {
+                    candidates = within;
+                } else if (within != null) {
+                    candidates = intersect(candidates, within);
+                }
+            }
+
+            int count = candidates != null ? candidates.length : collection.files.size();
+            int[] matched = new int[count];
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                int doc = candidates != null ? candidates[i] : i;
+                if (fileMatches(collection.files, doc)) {
+                    matched[size++] = doc;
+                }
+            }
+            return size == matched.length ? matched : Arrays.copyOf(matched, size);
+        }
+
+        private boolean fileMatches(FileTable files, int doc) {
+            return files.nameContains(doc, text) || (field == Field.ANY && files.metadataContains(doc, text));
+        }
+
+        private boolean collectionLevel(IndexedCollection collection) {
+            if (field == Field.CALLSIGN) {
+                return collection.callsign.equalsIgnoreCase(text);
+            }
+            return collection.titleLower != null && collection.titleLower.contains(text);
+        }
+
+        @Override
+        boolean collection(IndexedCollection collection) {
+            switch (field) {
+                case ANY:
+                    return (collection.titleLower != null && collection.titleLower.contains(text))
+                            || (collection.descriptionLower != null && collection.descriptionLower.contains(text));
+                case TITLE:
+                case CALLSIGN:
+                    return collectionLevel(collection);
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        boolean mayMatch(String callsign, ShardFilter filter) {
+            switch (field) {
+                case TYPE:
+                    return true;
+                case CALLSIGN:
+                    return callsign.equalsIgnoreCase(text);
+                default:
+                    return filter.mightContain(text);
+            }
+        }
+
+        @Override
+        void collectRankingTerms(List<Term> terms) {
+            if (field == Field.ANY || field == Field.NAME || field == Field.TITLE) {
+                terms.add(this);
+            }
+        }
+    }
+
+    private static class And extends Node {
+        final List<Node> children;
+
+        And(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        int estimate(IndexedCollection collection) {
+            int best = collection.files.size();
+            for (Node child : children) {
+                if (!(child instanceof Not)) {
+                    best = Math.min(best, child.estimate(collection));
+                }
+            }
+            return best;
+        }
+
+        @Override
+        int[] files(IndexedCollection collection, int[] within) {
+            // Most selective first; NOT only subtracts, so it goes last
+            Node[] ordered = children.toArray(new Node[0]);
+            int[] estimates = new int[ordered.length];
+            for (int i = 0; i < ordered.length; i++) {
+                estimates[i] = ordered[i] instanceof Not ? Integer.MAX_VALUE : ordered[i].estimate(collection);
+            }
+            Integer[] order = new Integer[ordered.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingInt(i -> estimates[i]));
+
+            int[] current = within;
+            for (int i : order) {
+                current = ordered[i].files(collection, current);
+                if (current != null && current.length == 0) {
+                    return NO_DOCS;
+                }
+            }
+            return current;
+        }
+
+        @Override
+        boolean collection(IndexedCollection collection) {
+            for (Node child : children) {
+                if (!child.collection(collection)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean mayMatch(String callsign, ShardFilter filter) {
+            for (Node child : children) {
+                if (!child.mayMatch(callsign, filter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void collectRankingTerms(List<Term> terms) {
+            for (Node child : children) {
+                child.collectRankingTerms(terms);
+            }
+        }
+    }
+
+    private static class Or extends Node {
+        final List<Node> children;
+
+        Or(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        int estimate(IndexedCollection collection) {
+            long sum = 0;
+            for (Node child : children) {
+                sum += child.estimate(collection);
+            }
+            return (int) Math.min(sum, collection.files.size());
+        }
+
+        @Override
+        int[] files(IndexedCollection collection, int[] within) {
+            int[] result = NO_DOCS;
+            for (Node child : children) {
+                int[] docs = child.files(collection, within);
+                if (docs == null) {
+                    return null;
+                }
+                result = union(result, docs);
+            }
+            return result;
+        }
+
+        @Override
+        boolean collection(IndexedCollection collection) {
+            for (Node child : children) {
+                if (child.collection(collection)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean mayMatch(String callsign, ShardFilter filter) {
+            for (Node child : children) {
+                if (child.mayMatch(callsign, filter)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void collectRankingTerms(List<Term> terms) {
+            for (Node child : children) {
+                child.collectRankingTerms(terms);
+            }
+        }
+    }
+
+    private static class Not extends Node {
+        final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        int estimate(IndexedCollection collection) {
+            return collection.files.size();
+        }
+
+        @Override
+        int[] files(IndexedCollection collection, int[] within) {
+            int[] excluded = child.files(collection, within);
+            if (excluded == null) {
+                return NO_DOCS;
+            }
+            int count = within != null ? within.length : collection.files.size();
+            int[] kept = new int[count - excluded.length];
+            int size = 0;
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                int doc = within != null ? within[i] : i;
+                if (j < excluded.length && excluded[j] == doc) {
+                    j++;
+                } else {
+                    kept[size++] = doc;
+                }
+            }
+            return kept;
+        }
+
+        @Override
+        boolean collection(IndexedCollection collection) {
+            return !child.collection(collection);
+        }
+
+        @Override
+        boolean mayMatch(String callsign, ShardFilter filter) {
+            return true;  // Absence cannot be ruled out from a filter
+        }
+    }
+
+    // ---- Sorted doc id arrays (null = every doc) ----
+
+    private static int[] union(int[] a, int[] b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                result[size++] = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                result[size++] = b[j++];
+            } else {
+                result[size++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (b[j] < a[i]) {
+                j++;
+            } else {
+                result[size++] = a[i++];
+                j++;
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    // ---- Parsing ----
+
+    private static boolean isWordChar(char c) {
+        return !Character.isWhitespace(c) && c != '"' && c != '(' && c != ')';
+    }
+
+    private static boolean isOperator(String word) {
+        return word.equals("AND") || word.equals("OR") || word.equals("NOT");
+    }
+
+    private static int fieldPrefix(String word) {
+        for (int i = 0; i < FIELD_PREFIXES.length; i++) {
+            if (word.startsWith(FIELD_PREFIXES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private enum TokenType { OPEN, CLOSE, AND, OR, NOT, TERM }
+
+    private static class Token {
+        final TokenType type;
+        final Term term;
+
+        Token(TokenType type, Term term) {
+            this.type = type;
+            this.term = term;
+        }
+
+        String describe() {
+            switch (type) {
+                case OPEN:
+                    return "'('";
+                case CLOSE:
+                    return "')'";
+                case TERM:
+                    return "'" + term.text + "'";
+                default:
+                    return type.name();
+            }
+        }
+    }
+
+    private static List<Token> tokenize(String query) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                tokens.add(new Token(TokenType.OPEN, null));
+                i++;
+            } else if (c == ')') {
+                tokens.add(new Token(TokenType.CLOSE, null));
+                i++;
+            } else if (c == '"') {
+                int end = readPhraseEnd(query, i);
+                tokens.add(new Token(TokenType.TERM, new Term(Field.ANY, phrase(query, i, end))));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < query.length() && isWordChar(query.charAt(end))) {
+                    end++;
+                }
+                String word = query.substring(i, end);
+                i = end;
+
+                if (isOperator(word)) {
+                    tokens.add(new Token(TokenType.valueOf(word), null));
+                    continue;
+                }
+
+                int prefix = fieldPrefix(word);
+                if (prefix < 0) {
+                    tokens.add(new Token(TokenType.TERM, new Term(Field.ANY, word)));
+                    continue;
+                }
+
+                String value = word.substring(FIELD_PREFIXES[prefix].length());
+                if (value.isEmpty() && i < query.length() && query.charAt(i) == '"') {
+                    int phraseEnd = readPhraseEnd(query, i);
+                    value = phrase(query, i, phraseEnd);
+                    i = phraseEnd + 1;
+                }
+                if (value.isEmpty()) {
+                    throw new IllegalArgumentException("Missing value after " + FIELD_PREFIXES[prefix]);
+                }
+                tokens.add(new Token(TokenType.TERM, new Term(PREFIX_FIELDS[prefix], value)));
+            }
+        }
+        return tokens;
+    }
+
+    private static int readPhraseEnd(String query, int open) {
+        int end = query.indexOf('"', open + 1);
+        if (end < 0) {
+            throw new IllegalArgumentException("Unterminated phrase");
+        }
+        return end;
+    }
+
+    private static String phrase(String query, int open, int close) {
+        String text = query.substring(open + 1, close);
+        if (text.isEmpty()) {
+            throw new IllegalArgumentException("Empty phrase");
+        }
+        return text;
+    }
+
+    /**
+     * Recursive descent: or := and (OR and)*, and := unary (AND? unary)*,
+     * unary := NOT unary | '(' or ')' | term
+     */
+    private static class Parser {
+        final List<Token> tokens;
+        int position;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Token peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        Node parseOr() {
+            List<Node> children = new ArrayList<>();
+            children.add(parseAnd());
+            while (peek() != null && peek().type == TokenType.OR) {
+                position++;
+                children.add(parseAnd());
+            }
+            return children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        Node parseAnd() {
+            List<Node> children = new ArrayList<>();
+            children.add(parseUnary());
+            while (peek() != null && peek().type != TokenType.OR && peek().type != TokenType.CLOSE) {
+                if (peek().type == TokenType.AND) {
+                    position++;
+                }
+                children.add(parseUnary());
+            }
+            return children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        Node parseUnary() {
+            Token token = peek();
+            if (token == null) {
+                throw new IllegalArgumentException("Query ends with an operator");
+            }
+            position++;
+            switch (token.type) {
+                case NOT:
+                    return new Not(parseUnary());
+                case OPEN:
+                    Node group = parseOr();
+                    if (peek() == null || peek().type != TokenType.CLOSE) {
+                        throw new IllegalArgumentException("Missing ')'");
+                    }
+                    position++;
+                    return group;
+                case TERM:
+                    return token.term;
+                default:
+                    throw new IllegalArgumentException("Unexpected " + token.describe());
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.List;
+
+/**
+ * Options of a single search plus its outcome flags
+ *
+ * Only query and limit are required; every other option defaults to off.
+ *
+ * @author brito
+ */
+public class SearchRequest {
+
+    /**
+     * Receives batches of hits as devices finish, before the final ranking.
+     * Calls are serialized, and each batch holds hits that entered the
+     * running top-K at that moment.
+     */
+    public interface ResultListener {
+        void onResults(List<SearchResult> batch);
+    }
+
+    public final String query;
+    public final int limit;
+    public SearchFilter filter = SearchFilter.NONE;
+    public FacetCounts facets;  // Receives facet counts (null = not requested)
+    public SearchCursor after;  // Search-after position (null = first page)
+    public int fuzzy;  // Typos tolerated per file name term, up to LevenshteinAutomaton.MAX_EDITS (0 = exact)
+    public volatile long deadlineNanos;  // System.nanoTime() deadline (0 = none)
+    public ResultListener listener;  // Progressive results (null = not streaming)
+
+    // Set by the searcher when the deadline cut the search short
+    public volatile boolean truncated;
+
+    public SearchRequest(String query, int limit) {
+        this.query = query;
+        this.limit = limit;
+    }
+
+    /**
+     * Give the search a time budget from now
+     */
+    public SearchRequest withTimeout(long timeoutMillis) {
+        this.deadlineNanos = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1_000_000L : 0;
+        return this;
+    }
+
+    /**
+     * Stop the search at the next check, e.g. when a streaming client went away
+     */
+    public void cancel() {
+        deadlineNanos = System.nanoTime();
+    }
+
+    public boolean isExpired() {
+        long deadline = deadlineNanos;
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Identity of the result list, which a cursor must belong to
+     */
+    public String queryKey() {
+        String key = SearchCursor.queryKey(query, filter);
+        return fuzzy > 0 ? key + "\u0000fuzzy=" + fuzzy : key;
+    }
+
+    /**
+     * Cache key covering everything that changes the returned page
+     */
+    public String cacheKey() {
+        String key = SearchCache.key(query, limit) + filter.key();
+        if (fuzzy > 0) {
+            key += "\u0000fuzzy=" + fuzzy;
+        }
+        if (after != null) {
+            key += "\u0000" + Double.doubleToLongBits(after.score) + ":" + after.sequence;
+        }
+        return key;
+    }
+
+    /**
+     * Key under which identical concurrent requests share one search
+     */
+    public String flightKey() {
+        return facets != null ? cacheKey() + "\u0000facets" : cacheKey();
+    }
+}
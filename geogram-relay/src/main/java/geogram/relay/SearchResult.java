@@ -22,6 +22,8 @@ public class SearchResult {
     public Long fileSize; // File size in bytes (may be null)
     public String matchType; // "collection", "file", "path"
     public double relevance; // 0.0 to 1.0
+    public transient long collectionVersion; // Index version the hit came from (not serialized)
+    public transient long sequence; // Tie-break position, encoded in search-after cursors (not serialized)
 
     public SearchResult(String callsign, String collectionName, String collectionTitle,
                        String collectionDescription, String filePath, String fileName,
@@ -0,0 +1,779 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Persistent search index stored as immutable segment files
+ *
+ * Layout under {deviceStoragePath}/.index/:
+ *   segments.json      ordered list of live segment files (oldest first)
+ *   seg-NNNNNNNN.seg   immutable segment
+ *
+ * A segment holds serialized collections (metadata, autocomplete terms,
+ * file entries, their trigram postings and term statistics) followed by a
+ * directory of (callsign, collection, offset) and a fixed trailer. Segments are opened with FileChannel.map and
+ * decoded straight from the mapping, so a restart does not re-parse any
+ * collection.js or tree.json.
+ *
+ * Updates are staged and flushed as small delta segments; later segments
+ * override earlier ones. Once there are too many deltas, all segments are
+ * merged into a new base by copying the newest raw entry for each key.
+ *
+ * Only segment directories are read on open. The collections of a device
+ * are decoded when its search index shard is first loaded ({@link
+ * #loadDevice}), and {@link #summarize} gives what the index keeps for an
+ * unloaded device by skipping over its entries without decoding them.
+ *
+ * @author brito
+ */
+public class SegmentStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentStore.class);
+    private static final Gson GSON = new Gson();
+
+    public static final String INDEX_DIR = ".index";
+    private static final String MANIFEST_FILE = "segments.json";
+
+    private static final int MAGIC = 0x47534547;  // "GSEG"
+    private static final int FORMAT_VERSION = 4;
+    private static final int TRAILER_BYTES = 12;  // long directoryOffset + int magic
+
+    // Keep every segment mappable by a single MappedByteBuffer
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private static final byte FLAG_METADATA = 1;
+    private static final byte FLAG_TOMBSTONE = 2;
+
+    private final Path indexDir;
+    private final int maxDeltaSegments;
+
+    // Staged updates waiting for the next flush: "callsign/collection" -> collection (null = removed)
+    private final Map<String, IndexedCollection> staged = new LinkedHashMap<>();
+
+    // Newest live entry of each collection: callsign -> (collection -> location), guarded by staged
+    private Map<String, Map<String, Location>> locations = new HashMap<>();
+
+    private List<String> manifest = new ArrayList<>();
+    private long nextSegmentNumber = 1;
+
+    public SegmentStore(String deviceStoragePath, int maxDeltaSegments) {
+        this.indexDir = Paths.get(deviceStoragePath).resolve(INDEX_DIR);
+        this.maxDeltaSegments = maxDeltaSegments;
+    }
+
+    /**
+     * True if a previous run left a usable manifest
+     */
+    public synchronized boolean hasSegments() {
+        return !manifest.isEmpty();
+    }
+
+    /**
+     * Read the manifest and remove segment files it does not reference
+     * (left behind by an interrupted flush or merge)
+     *
+     * An unreadable manifest or a segment that is corrupt or written in an
+     * older format discards every segment: the store opens empty, so the
+     * index is rebuilt from disk and written as a new base.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(indexDir);
+
+        Path manifestFile = indexDir.resolve(MANIFEST_FILE);
+        if (Files.exists(manifestFile)) {
+            try {
+                List<String> names = GSON.fromJson(Files.readString(manifestFile),
+                        new TypeToken<List<String>>() {}.getType());
+                manifest = names != null ? new ArrayList<>(names) : new ArrayList<>();
+            } catch (JsonParseException e) {
+                LOG.warn("Discarding unreadable search index manifest: {}", e.getMessage());
+                manifest = new ArrayList<>();
+            }
+        }
+
+        try (Stream<Path> files = Files.list(indexDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("seg-")) {
+                    long number = parseSegmentNumber(name);
+                    nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+                    if (!manifest.contains(name)) {
+                        Files.deleteIfExists(file);
+                        LOG.info("Removed orphan index segment {}", name);
+                    }
+                }
+            }
+        }
+
+        manifest.removeIf(name -> !Files.exists(indexDir.resolve(name)));
+        try {
+            locateAll();
+        } catch (IOException | RuntimeException e) {
+            // Later segments override earlier ones, so none can be kept on its own
+            LOG.warn("Discarding search index segments {}, the index will be rebuilt: {}",
+                    manifest, e.getMessage());
+            discardAll();
+        }
+    }
+
+    /**
+     * Delete the manifest and every segment it references
+     */
+    private void discardAll() throws IOException {
+        Files.deleteIfExists(indexDir.resolve(MANIFEST_FILE));
+        for (String name : manifest) {
+            Files.deleteIfExists(indexDir.resolve(name));
+        }
+        manifest = new ArrayList<>();
+        synchronized (staged) {
+            locations = new HashMap<>();
+        }
+    }
+
+    /**
+     * Callsigns with at least one live persisted collection
+     */
+    public Set<String> getCallsigns() {
+        synchronized (staged) {
+            return new TreeSet<>(locations.keySet());
+        }
+    }
+
+    /**
+     * Summaries of a device's persisted collections, adding their trigrams to
+     * the filter and their autocomplete terms to the counts; file entries
+     * are jumped over rather than decoded
+     */
+    public List<SearchIndex.CollectionInfo> summarize(String callsign, ShardFilter.Builder filter,
+                                                      SuggestIndex.TermCounter suggestTerms) {
+        List<SearchIndex.CollectionInfo> summaries = new ArrayList<>();
+        for (Map.Entry<String, Location> located : locate(callsign).entrySet()) {
+            Location location = located.getValue();
+            ByteBuffer in = location.segment.duplicate();
+            in.position((int) location.offset);
+            summaries.add(summarize(in, callsign, located.getKey(), filter, suggestTerms));
+        }
+        return summaries;
+    }
+
+    /**
+     * Decode the current collections of a device, staged updates included
+     */
+    public Collection<IndexedCollection> loadDevice(String callsign) {
+        Map<String, Location> located;
+        Map<String, IndexedCollection> pending = new HashMap<>();
+        String prefix = key(callsign, "");
+        synchronized (staged) {
+            located = locate(callsign);
+            for (Map.Entry<String, IndexedCollection> update : staged.entrySet()) {
+                if (update.getKey().startsWith(prefix)) {
+                    pending.put(update.getKey().substring(prefix.length()), update.getValue());
+                }
+            }
+        }
+
+        Map<String, IndexedCollection> collections = new HashMap<>();
+        for (Map.Entry<String, Location> entry : located.entrySet()) {
+            if (!pending.containsKey(entry.getKey())) {
+                ByteBuffer in = entry.getValue().segment.duplicate();
+                in.position((int) entry.getValue().offset);
+                collections.put(entry.getKey(), decode(in));
+            }
+        }
+        pending.forEach((collectionName, collection) -> {
+            if (collection != null) {
+                collections.put(collectionName, collection);
+            }
+        });
+        return collections.values();
+    }
+
+    private Map<String, Location> locate(String callsign) {
+        synchronized (staged) {
+            Map<String, Location> located = locations.get(callsign);
+            return located != null ? new HashMap<>(located) : new HashMap<>();
+        }
+    }
+
+    /**
+     * Stage an updated collection for the next delta segment
+     */
+    public void stage(IndexedCollection collection) {
+        synchronized (staged) {
+            staged.put(key(collection.callsign, collection.collectionName), collection);
+        }
+    }
+
+    /**
+     * Stage removal of a collection
+     */
+    public void stageRemoval(String callsign, String collectionName) {
+        synchronized (staged) {
+            staged.put(key(callsign, collectionName), null);
+        }
+    }
+
+    /**
+     * Write staged updates as a delta segment, then merge if there are too many deltas
+     */
+    public synchronized void flush() throws IOException {
+        // Copy the staged updates so syncs are not blocked while writing; they
+        // stay staged (and visible to loadDevice) until their segment is live
+        Map<String, IndexedCollection> updates;
+        synchronized (staged) {
+            updates = new LinkedHashMap<>(staged);
+        }
+
+        if (!updates.isEmpty()) {
+            List<byte[]> entries = new ArrayList<>(updates.size());
+            List<String[]> keys = new ArrayList<>(updates.size());
+            for (Map.Entry<String, IndexedCollection> update : updates.entrySet()) {
+                String[] key = splitKey(update.getKey());
+                keys.add(key);
+                entries.add(encode(key[0], key[1], update.getValue()));
+            }
+            List<String> written = writeSegments(keys, entries);
+
+            manifest.addAll(written);
+            writeManifest();
+            synchronized (staged) {
+                for (String name : written) {
+                    locate(locations, map(indexDir.resolve(name)));
+                }
+                // Newer updates that arrived meanwhile stay staged
+                updates.forEach(staged::remove);
+            }
+            LOG.debug("Flushed {} index updates to {}", keys.size(), written);
+        }
+
+        if (manifest.size() > maxDeltaSegments + 1) {
+            merge();
+        }
+    }
+
+    /**
+     * Replace all segments with a base holding the staged collections (used
+     * after the index was rebuilt from disk)
+     */
+    public synchronized void writeBase() throws IOException {
+        Map<String, IndexedCollection> updates;
+        synchronized (staged) {
+            updates = new LinkedHashMap<>(staged);
+        }
+
+        List<byte[]> entries = new ArrayList<>(updates.size());
+        List<String[]> keys = new ArrayList<>(updates.size());
+        for (Map.Entry<String, IndexedCollection> update : updates.entrySet()) {
+            if (update.getValue() != null) {
+                String[] key = splitKey(update.getKey());
+                keys.add(key);
+                entries.add(encode(key[0], key[1], update.getValue()));
+            }
+        }
+        List<String> written = writeSegments(keys, entries);
+        replaceManifest(written);
+        synchronized (staged) {
+            updates.forEach(staged::remove);
+        }
+        LOG.info("Wrote search index base: {} collections in {}", keys.size(), written);
+    }
+
+    /**
+     * Merge all live segments into a new base by copying the newest raw entry per key
+     */
+    private void merge() throws IOException {
+        long start = System.currentTimeMillis();
+
+        // key -> (segment buffer, entry); later segments override earlier ones
+        Map<String, Object[]> newest = new LinkedHashMap<>();
+        for (String name : manifest) {
+            ByteBuffer segment = map(indexDir.resolve(name));
+            for (DirectoryEntry entry : readDirectory(segment)) {
+                newest.put(entry.key(), new Object[] {segment, entry});
+            }
+        }
+
+        List<byte[]> entries = new ArrayList<>(newest.size());
+        List<String[]> keys = new ArrayList<>(newest.size());
+        for (Object[] located : newest.values()) {
+            ByteBuffer segment = (ByteBuffer) located[0];
+            DirectoryEntry entry = (DirectoryEntry) located[1];
+            byte[] raw = new byte[entry.length];
+            segment.get((int) entry.offset, raw);
+            if ((raw[0] & FLAG_TOMBSTONE) != 0) {
+                continue; // Removed collections disappear from the base
+            }
+            keys.add(new String[] {entry.callsign, entry.collectionName});
+            entries.add(raw);
+        }
+
+        int merged = manifest.size();
+        replaceManifest(writeSegments(keys, entries));
+        LOG.info("Merged {} index segments into {} ({} collections) in {} ms",
+                merged, manifest, keys.size(), System.currentTimeMillis() - start);
+    }
+
+    private void replaceManifest(List<String> segments) throws IOException {
+        List<String> obsolete = new ArrayList<>(manifest);
+        manifest = new ArrayList<>(segments);
+        writeManifest();
+        // Mappings of the deleted files stay valid until the buffers are collected
+        locateAll();
+        for (String name : obsolete) {
+            Files.deleteIfExists(indexDir.resolve(name));
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        Path temp = indexDir.resolve(MANIFEST_FILE + ".tmp");
+        Files.writeString(temp, GSON.toJson(manifest));
+        Files.move(temp, indexDir.resolve(MANIFEST_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized int getSegmentCount() {
+        return manifest.size();
+    }
+
+    public int getStagedCount() {
+        synchronized (staged) {
+            return staged.size();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Segment files
+    // ---------------------------------------------------------------------
+
+    /**
+     * Write encoded entries into one or more segment files, rolling over at
+     * {@link #MAX_SEGMENT_BYTES}
+     *
+     * @return Names of the written segments, oldest first
+     */
+    private List<String> writeSegments(List<String[]> keys, List<byte[]> entries) throws IOException {
+        List<String> written = new ArrayList<>();
+        int next = 0;
+        do {
+            String name = String.format("seg-%08d.seg", nextSegmentNumber++);
+            Path temp = indexDir.resolve(name + ".tmp");
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+                DataOutputStream directory = new DataOutputStream(directoryBytes);
+
+                writeFully(channel, ByteBuffer.allocate(8).putInt(MAGIC).putInt(FORMAT_VERSION).flip());
+                long position = 8;
+                int count = 0;
+                ByteBuffer countHolder = ByteBuffer.allocate(4);
+
+                while (next < entries.size()) {
+                    byte[] entry = entries.get(next);
+                    if (count > 0 && position + entry.length > MAX_SEGMENT_BYTES) {
+                        break;
+                    }
+                    writeFully(channel, ByteBuffer.wrap(entry));
+                    writeString(directory, keys.get(next)[0]);
+                    writeString(directory, keys.get(next)[1]);
+                    directory.writeLong(position);
+                    directory.writeInt(entry.length);
+                    position += entry.length;
+                    count++;
+                    next++;
+                }
+
+                long directoryOffset = position;
+                writeFully(channel, countHolder.putInt(count).flip());
+                writeFully(channel, ByteBuffer.wrap(directoryBytes.toByteArray()));
+                writeFully(channel, ByteBuffer.allocate(TRAILER_BYTES)
+                        .putLong(directoryOffset).putInt(MAGIC).flip());
+                channel.force(true);
+            }
+
+            Files.move(temp, indexDir.resolve(name),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written.add(name);
+        } while (next < entries.size());
+        return written;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Rebuild the locations from every live segment, newest winning per key
+     */
+    private void locateAll() throws IOException {
+        Map<String, Map<String, Location>> located = new HashMap<>();
+        for (String name : manifest) {
+            locate(located, map(indexDir.resolve(name)));
+        }
+        synchronized (staged) {
+            locations = located;
+        }
+    }
+
+    /**
+     * Point the locations at a segment's entries
+     */
+    private static void locate(Map<String, Map<String, Location>> located, ByteBuffer segment)
+            throws IOException {
+        for (DirectoryEntry entry : readDirectory(segment)) {
+            if ((segment.get((int) entry.offset) & FLAG_TOMBSTONE) != 0) {
+                Map<String, Location> device = located.get(entry.callsign);
+                if (device != null) {
+                    device.remove(entry.collectionName);
+                    if (device.isEmpty()) {
+                        located.remove(entry.callsign);
+                    }
+                }
+            } else {
+                located.computeIfAbsent(entry.callsign, k -> new HashMap<>())
+                        .put(entry.collectionName, new Location(segment, entry.offset));
+            }
+        }
+    }
+
+    private static class Location {
+        final ByteBuffer segment;
+        final long offset;
+
+        Location(ByteBuffer segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static List<DirectoryEntry> readDirectory(ByteBuffer segment) throws IOException {
+        int size = segment.limit();
+        if (size < 8 + 4 + TRAILER_BYTES || segment.getInt(0) != MAGIC
+                || segment.getInt(size - 4) != MAGIC) {
+            throw new IOException("Corrupt index segment");
+        }
+        if (segment.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported index segment version " + segment.getInt(4));
+        }
+
+        segment.position((int) segment.getLong(size - TRAILER_BYTES));
+        int count = segment.getInt();
+        List<DirectoryEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String callsign = readString(segment);
+            String collectionName = readString(segment);
+            long offset = segment.getLong();
+            int length = segment.getInt();
+            entries.add(new DirectoryEntry(callsign, collectionName, offset, length));
+        }
+        return entries;
+    }
+
+    private static class DirectoryEntry {
+        final String callsign;
+        final String collectionName;
+        final long offset;
+        final int length;
+
+        DirectoryEntry(String callsign, String collectionName, long offset, int length) {
+            this.callsign = callsign;
+            this.collectionName = collectionName;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        String key() {
+            return SegmentStore.key(callsign, collectionName);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Entry encoding
+    // ---------------------------------------------------------------------
+
+    /**
+     * Encode a collection entry (null collection = tombstone)
+     */
+    private static byte[] encode(String callsign, String collectionName, IndexedCollection collection)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        if (collection == null) {
+            out.writeByte(FLAG_TOMBSTONE);
+            return bytes.toByteArray();
+        }
+
+        out.writeByte(collection.hasMetadata() ? FLAG_METADATA : 0);
+        out.writeLong(collection.indexedAt);
+        writeString(out, callsign);
+        writeString(out, collectionName);
+        writeString(out, collection.id);
+        writeString(out, collection.title);
+        writeString(out, collection.description);
+        writeString(out, collection.updated);
+
+        // Written apart from the file names, so a restart can count them without reading every file
+        List<SuggestIndex.Suggestion> suggestTerms = collection.suggestTerms();
+        out.writeInt(suggestTerms.size());
+        for (SuggestIndex.Suggestion term : suggestTerms) {
+            writeString(out, term.text);
+            out.writeInt(term.count);
+        }
+
+        // File entries, prefixed by their byte length so a summary can jump over them
+        FileTable files = collection.files;
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream();
+        DataOutputStream fileOut = new DataOutputStream(fileBytes);
+        for (int doc = 0; doc < files.size(); doc++) {
+            writeString(fileOut, files.path(doc));
+            writeString(fileOut, files.name(doc));
+            writeString(fileOut, files.type(doc));
+            fileOut.writeLong(files.sizeOf(doc));
+            writeString(fileOut, files.mimeType(doc));
+            writeString(fileOut, files.metadata(doc));
+        }
+        out.writeInt(files.size());
+        out.writeInt(fileBytes.size());
+        fileBytes.writeTo(out);
+
+        writeTrigrams(out, collection.metadataIndex);
+        writeTrigrams(out, collection.fileIndex);
+        writeTrigrams(out, collection.fileMetadataIndex);
+        writeTerms(out, collection.termIndex);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode the entry at the buffer's position (null for a tombstone)
+     */
+    private static IndexedCollection decode(ByteBuffer in) {
+        byte flags = in.get();
+        if ((flags & FLAG_TOMBSTONE) != 0) {
+            return null;
+        }
+
+        long indexedAt = in.getLong();
+        String callsign = readString(in);
+        String collectionName = readString(in);
+        String id = readString(in);
+        String title = readString(in);
+        String description = readString(in);
+        String updated = readString(in);
+
+        int termCount = in.getInt();
+        for (int i = 0; i < termCount; i++) {
+            skipString(in);  // Autocomplete term
+            in.getInt();     // Count
+        }
+
+        int fileCount = in.getInt();
+        in.getInt();  // Byte length of the file entries
+        FileTable.Builder files = new FileTable.Builder();
+        for (int i = 0; i < fileCount; i++) {
+            String path = readString(in);
+            String name = readString(in);
+            String type = readString(in);
+            long size = in.getLong();
+            String mimeType = readString(in);
+            String metadata = readString(in);
+            files.add(path, name, type, size >= 0 ? size : null, mimeType, metadata);
+        }
+
+        TrigramIndex metadataIndex = readTrigrams(in);
+        TrigramIndex fileIndex = readTrigrams(in);
+        TrigramIndex fileMetadataIndex = readTrigrams(in);
+        TermIndex termIndex = readTerms(in);
+
+        return IndexedCollection.restore(callsign, collectionName, indexedAt,
+                (flags & FLAG_METADATA) != 0, id, title, description, updated,
+                files.build(), metadataIndex, fileIndex, fileMetadataIndex, termIndex);
+    }
+
+    /**
+     * Summary of the (non-tombstone) entry at the buffer's position, adding
+     * its trigrams to the filter without reading files or decoding postings
+     */
+    private static SearchIndex.CollectionInfo summarize(ByteBuffer in, String callsign, String collectionName,
+                                                        ShardFilter.Builder filter,
+                                                        SuggestIndex.TermCounter suggestTerms) {
+        in.get();  // Flags
+        long indexedAt = in.getLong();
+        for (int i = 0; i < 6; i++) {
+            skipString(in);  // callsign, collection, id, title, description, updated
+        }
+
+        int termCount = in.getInt();
+        List<SuggestIndex.Suggestion> terms = new ArrayList<>(termCount);
+        for (int i = 0; i < termCount; i++) {
+            String text = readString(in);
+            terms.add(new SuggestIndex.Suggestion(text, in.getInt()));
+        }
+        suggestTerms.put(callsign, collectionName, terms);
+
+        int fileCount = in.getInt();
+        int fileBytes = in.getInt();
+        in.position(in.position() + fileBytes);
+
+        for (int i = 0; i < 3; i++) {
+            in.getInt();  // Doc count
+            filter.add(readInts(in));
+            skipInts(in);  // Offsets
+            skipInts(in);  // Postings
+        }
+        return new SearchIndex.CollectionInfo(collectionName, 0, indexedAt, fileCount);
+    }
+
+    private static void writeTrigrams(DataOutputStream out, TrigramIndex index) throws IOException {
+        out.writeInt(index.getDocCount());
+        writeInts(out, index.grams());
+        writeInts(out, index.offsets());
+        writeInts(out, index.postings());
+    }
+
+    private static TrigramIndex readTrigrams(ByteBuffer in) {
+        int docCount = in.getInt();
+        int[] grams = readInts(in);
+        int[] offsets = readInts(in);
+        int[] postings = readInts(in);
+        return TrigramIndex.fromArrays(docCount, grams, offsets, postings);
+    }
+
+    private static void writeTerms(DataOutputStream out, TermIndex index) throws IOException {
+        String[] terms = index.terms();
+        out.writeInt(terms.length);
+        for (String term : terms) {
+            writeString(out, term);
+        }
+        writeInts(out, index.docFreqSums());
+        for (int field = 0; field < TermIndex.FIELD_COUNT; field++) {
+            writeInts(out, index.offsets()[field]);
+            writeInts(out, index.tokens()[field]);
+        }
+    }
+
+    private static TermIndex readTerms(ByteBuffer in) {
+        String[] terms = new String[in.getInt()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = readString(in);
+        }
+        int[] docFreqSums = readInts(in);
+        int[][] offsets = new int[TermIndex.FIELD_COUNT][];
+        int[][] tokens = new int[TermIndex.FIELD_COUNT][];
+        for (int field = 0; field < TermIndex.FIELD_COUNT; field++) {
+            offsets[field] = readInts(in);
+            tokens[field] = readInts(in);
+        }
+        return TermIndex.fromArrays(terms, docFreqSums, offsets, tokens);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] values = new int[in.getInt()];
+        // Bulk copy straight out of the mapping
+        IntBuffer view = in.asIntBuffer();
+        view.get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    private static void skipInts(ByteBuffer in) {
+        int length = in.getInt();
+        in.position(in.position() + length * 4);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length > 0) {
+            in.position(in.position() + length);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Keys
+    // ---------------------------------------------------------------------
+
+    private static String key(String callsign, String collectionName) {
+        return callsign + "/" + collectionName;
+    }
+
+    private static String[] splitKey(String key) {
+        int slash = key.indexOf('/');
+        return new String[] {key.substring(0, slash), key.substring(slash + 1)};
+    }
+
+    private static long parseSegmentNumber(String name) {
+        try {
+            int end = name.indexOf('.');
+            return Long.parseLong(name.substring(4, end > 0 ? end : name.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
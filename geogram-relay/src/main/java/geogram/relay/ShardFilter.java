@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter over the trigrams of every indexed text of one device
+ *
+ * The filter stays resident when the device's collections are evicted, so a
+ * query can tell that a device cannot hold a match without loading it. A
+ * substring query only matches text containing each of its trigrams, so a
+ * device whose filter lacks one of them is skipped. False positives only
+ * cost a load; a match is never missed.
+ *
+ * @author brito
+ */
+public class ShardFilter {
+
+    /** Accepts every query, used while a device's trigrams are unknown */
+    public static final ShardFilter ALL = new ShardFilter(null);
+
+    private static final int BITS_PER_GRAM = 10;
+    private static final int HASHES = 3;
+    private static final int MIN_BITS = 64;
+    private static final int MAX_BITS = 1 << 24;
+
+    private final long[] bits;  // null = matches everything
+
+    private ShardFilter(long[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * True unless some trigram of the text is certainly absent (texts shorter
+     * than a trigram always pass)
+     */
+    public boolean mightContain(String text) {
+        if (bits == null) {
+            return true;
+        }
+        int mask = bits.length * 64 - 1;
+        for (int i = 0; i + TrigramIndex.GRAM_LENGTH <= text.length(); i++) {
+            long hash = hash(TrigramIndex.gramAt(text, i));
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int k = 0; k < HASHES; k++) {
+                int bit = (h1 + k * h2) & mask;
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Approximate heap footprint in bytes
+     */
+    public long getSizeInBytes() {
+        return bits != null ? 8L * bits.length : 0;
+    }
+
+    private static long hash(int gram) {
+        long h = gram * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Filter over the trigrams of a device's collections
+     */
+    public static ShardFilter of(Iterable<IndexedCollection> collections) {
+        Builder builder = new Builder();
+        for (IndexedCollection collection : collections) {
+            builder.add(collection.metadataIndex.grams());
+            builder.add(collection.fileIndex.grams());
+            builder.add(collection.fileMetadataIndex.grams());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Collects sorted trigram arrays, then sizes the filter for their total
+     */
+    public static class Builder {
+        private int[][] gramSets = new int[8][];
+        private int setCount;
+        private long gramCount;
+
+        public Builder add(int[] grams) {
+            if (setCount == gramSets.length) {
+                gramSets = Arrays.copyOf(gramSets, setCount * 2);
+            }
+            gramSets[setCount++] = grams;
+            gramCount += grams.length;
+            return this;
+        }
+
+        public ShardFilter build() {
+            long wanted = Math.max(MIN_BITS, gramCount * BITS_PER_GRAM);
+            int size = (int) Math.min(MAX_BITS, Long.highestOneBit(wanted - 1) << 1);
+            long[] bits = new long[size / 64];
+            int mask = size - 1;
+            for (int s = 0; s < setCount; s++) {
+                for (int gram : gramSets[s]) {
+                    long hash = hash(gram);
+                    int h1 = (int) hash;
+                    int h2 = (int) (hash >>> 32) | 1;
+                    for (int k = 0; k < HASHES; k++) {
+                        int bit = (h1 + k * h2) & mask;
+                        bits[bit >>> 6] |= 1L << bit;
+                    }
+                }
+            }
+            return new ShardFilter(bits);
+        }
+    }
+}
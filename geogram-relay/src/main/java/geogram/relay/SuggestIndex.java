@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable packed trie for prefix autocomplete
+ *
+ * Terms (lowercase file names and collection titles) are sorted once, then
+ * a trie is laid out over them in flat arrays. Every node covers a range of
+ * the sorted terms and stores its precomputed top-N completions by
+ * frequency, so a lookup is a walk of at most {@link #MAX_DEPTH} nodes plus
+ * a copy of N entries.
+ *
+ * A node is only expanded while it covers more than {@link #TOP_N} terms
+ * and is shallower than {@link #MAX_DEPTH}. Longer prefixes start from the
+ * deepest node's term range and filter it, which is short at that point,
+ * and the node count stays a small fraction of the term count.
+ *
+ * @author brito
+ */
+public class SuggestIndex {
+
+    public static final int TOP_N = 10;
+    public static final int MAX_DEPTH = 12;
+
+    // Most frequent texts a collection adds to autocomplete, which bounds the heap per collection
+    public static final int COLLECTION_TERMS = 256;
+
+    private static final SuggestIndex EMPTY = build(new String[0], new String[0], new int[0]);
+
+    // Sorted lowercase terms with display text and number of occurrences
+    private final String[] terms;
+    private final String[] displays;
+    private final int[] counts;
+
+    // Node arrays; children of a node are contiguous and sorted by label
+    private final char[] labels;
+    private final int[] firstChild;
+    private final int[] childCount;
+    private final int[] rangeStart;
+    private final int[] rangeEnd;
+    private final int[] topOffset;
+    private final byte[] topCount;
+    private final int[] top;
+
+    private SuggestIndex(String[] terms, String[] displays, int[] counts, Builder builder) {
+        this.terms = terms;
+        this.displays = displays;
+        this.counts = counts;
+        this.labels = Arrays.copyOf(builder.labels, builder.nodeCount);
+        this.firstChild = Arrays.copyOf(builder.firstChild, builder.nodeCount);
+        this.childCount = Arrays.copyOf(builder.childCount, builder.nodeCount);
+        this.rangeStart = Arrays.copyOf(builder.rangeStart, builder.nodeCount);
+        this.rangeEnd = Arrays.copyOf(builder.rangeEnd, builder.nodeCount);
+        this.topOffset = Arrays.copyOf(builder.topOffset, builder.nodeCount);
+        this.topCount = Arrays.copyOf(builder.topCount, builder.nodeCount);
+        this.top = Arrays.copyOf(builder.top, builder.topSize);
+    }
+
+    public static SuggestIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * A completion with the number of indexed entries carrying that text
+     */
+    public static class Suggestion {
+        public final String text;
+        public final int count;
+
+        public Suggestion(String text, int count) {
+            this.text = text;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The {@link #COLLECTION_TERMS} most frequent texts of a collection with
+     * their number of occurrences, by count and then first appearance
+     *
+     * Texts differing only in case count as one, shown as first seen.
+     */
+    public static List<Suggestion> topTerms(List<String> texts) {
+        Map<String, Integer> positions = new HashMap<>();
+        List<String> displays = new ArrayList<>();
+        List<int[]> counts = new ArrayList<>();  // {count, first appearance}
+        for (String text : texts) {
+            if (text == null || text.isBlank()) {
+                continue;
+            }
+            String display = text.trim();
+            Integer position = positions.putIfAbsent(display.toLowerCase(), displays.size());
+            if (position == null) {
+                displays.add(display);
+                counts.add(new int[] {1, displays.size() - 1});
+            } else {
+                counts.get(position)[0]++;
+            }
+        }
+        counts.sort((a, b) -> a[0] != b[0] ? Integer.compare(b[0], a[0]) : Integer.compare(a[1], b[1]));
+
+        List<Suggestion> top = new ArrayList<>(Math.min(counts.size(), COLLECTION_TERMS));
+        for (int i = 0; i < counts.size() && i < COLLECTION_TERMS; i++) {
+            top.add(new Suggestion(displays.get(counts.get(i)[1]), counts.get(i)[0]));
+        }
+        return top;
+    }
+
+    /**
+     * Term occurrences of the indexed collections, kept between builds
+     *
+     * Each distinct term is stored once; a collection keeps the ids and
+     * counts of its {@link #topTerms}, so the heap is bounded by the number
+     * of collections rather than files, and the trie can be rebuilt after a
+     * change without reading back the collections of evicted devices.
+     * Methods are synchronized.
+     */
+    public static class TermCounter {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private String[] terms = new String[16];  // Lowercase term per id (null = free)
+        private String[] displays = new String[16];  // First seen casing per id
+        private int[] counts = new int[16];
+        private int idCount;
+        private int[] freeIds = new int[16];
+        private int freeCount;
+
+        // "callsign/collection" -> id and count of each of its terms, interleaved
+        private final Map<String, int[]> collections = new HashMap<>();
+
+        /**
+         * Replace the terms counted for a collection
+         *
+         * @param terms The collection's {@link #topTerms}
+         */
+        public synchronized void put(String callsign, String collectionName, List<Suggestion> terms) {
+            int[] counted = new int[terms.size() * 2];
+            int size = 0;
+            for (Suggestion term : terms) {
+                counted[size++] = acquire(term.text, term.count);
+                counted[size++] = term.count;
+            }
+            String key = callsign + "/" + collectionName;
+            release(size > 0 ? collections.put(key, counted) : collections.remove(key));
+        }
+
+        public synchronized void remove(String callsign, String collectionName) {
+            release(collections.remove(callsign + "/" + collectionName));
+        }
+
+        private int acquire(String text, int count) {
+            String term = text.toLowerCase().trim();
+            Integer id = ids.get(term);
+            if (id == null) {
+                id = freeCount > 0 ? freeIds[--freeCount] : idCount++;
+                if (id == terms.length) {
+                    terms = Arrays.copyOf(terms, id * 2);
+                    displays = Arrays.copyOf(displays, id * 2);
+                    counts = Arrays.copyOf(counts, id * 2);
+                }
+                terms[id] = term;
+                displays[id] = text.trim();
+                ids.put(term, id);
+            }
+            counts[id] += count;
+            return id;
+        }
+
+        private void release(int[] counted) {
+            if (counted == null) {
+                return;
+            }
+            for (int i = 0; i < counted.length; i += 2) {
+                int id = counted[i];
+                counts[id] -= counted[i + 1];
+                if (counts[id] == 0) {
+                    ids.remove(terms[id]);
+                    terms[id] = null;
+                    displays[id] = null;
+                    if (freeCount == freeIds.length) {
+                        freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+                    }
+                    freeIds[freeCount++] = id;
+                }
+            }
+        }
+
+        public synchronized SuggestIndex build() {
+            String[] sorted = ids.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+            String[] sortedDisplays = new String[sorted.length];
+            int[] sortedCounts = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                int id = ids.get(sorted[i]);
+                sortedDisplays[i] = displays[id];
+                sortedCounts[i] = counts[id];
+            }
+            return SuggestIndex.build(sorted, sortedDisplays, sortedCounts);
+        }
+    }
+
+    /**
+     * @param terms Sorted lowercase terms, parallel to displays and counts
+     */
+    private static SuggestIndex build(String[] terms, String[] displays, int[] counts) {
+        Builder builder = new Builder(terms, counts);
+        builder.buildRoot();
+        return new SuggestIndex(terms, displays, counts, builder);
+    }
+
+    /**
+     * Most frequent completions of a prefix, best first
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        if (prefix == null || terms.length == 0 || limit < 1) {
+            return Collections.emptyList();
+        }
+
+        String key = prefix.toLowerCase();
+        int node = 0;
+        int depth = 0;
+        // Nodes without children were not expanded; their range is filtered below
+        while (depth < key.length() && childCount[node] > 0) {
+            node = findChild(node, key.charAt(depth));
+            if (node < 0) {
+                return Collections.emptyList();
+            }
+            depth++;
+        }
+
+        List<Suggestion> results = new ArrayList<>(Math.min(limit, TOP_N));
+
+        if (depth == key.length() && limit <= TOP_N) {
+            // Precomputed answer
+            int count = Math.min(limit, topCount[node]);
+            for (int i = 0; i < count; i++) {
+                int term = top[topOffset[node] + i];
+                results.add(new Suggestion(displays[term], counts[term]));
+            }
+            return results;
+        }
+
+        // Prefix extends past the materialized trie (or a large limit): rank the node's range
+        int[] best = new int[limit];
+        int size = 0;
+        for (int term = rangeStart[node]; term < rangeEnd[node]; term++) {
+            if (terms[term].startsWith(key)) {
+                size = insertRanked(best, size, term, counts);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            results.add(new Suggestion(displays[best[i]], counts[best[i]]));
+        }
+        return results;
+    }
+
+    private int findChild(int node, char label) {
+        int low = firstChild[node];
+        int high = low + childCount[node] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (labels[mid] < label) {
+                low = mid + 1;
+            } else if (labels[mid] > label) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Insert a term into a ranked array (count desc, then term order),
+     * dropping the last entry when full
+     *
+     * @return New size
+     */
+    private static int insertRanked(int[] ranked, int size, int term, int[] counts) {
+        int position = size;
+        while (position > 0 && counts[ranked[position - 1]] < counts[term]) {
+            position--;
+        }
+        if (position >= ranked.length) {
+            return size;
+        }
+        int newSize = Math.min(size + 1, ranked.length);
+        System.arraycopy(ranked, position, ranked, position + 1, newSize - position - 1);
+        ranked[position] = term;
+        return newSize;
+    }
+
+    public int getTermCount() {
+        return terms.length;
+    }
+
+    public int getNodeCount() {
+        return labels.length;
+    }
+
+    /**
+     * Lays out nodes breadth-first so each node's children are contiguous
+     */
+    private static class Builder {
+        final String[] terms;
+        final int[] counts;
+
+        char[] labels = new char[64];
+        int[] firstChild = new int[64];
+        int[] childCount = new int[64];
+        int[] rangeStart = new int[64];
+        int[] rangeEnd = new int[64];
+        int[] depths = new int[64];
+        int[] topOffset = new int[64];
+        byte[] topCount = new byte[64];
+        int[] top = new int[256];
+        int nodeCount;
+        int topSize;
+
+        Builder(String[] terms, int[] counts) {
+            this.terms = terms;
+            this.counts = counts;
+        }
+
+        void buildRoot() {
+            addNode('\0', 0, terms.length, 0);
+
+            // Breadth-first: children of node i are appended as one contiguous block
+            for (int node = 0; node < nodeCount; node++) {
+                int depth = depths[node];
+                firstChild[node] = nodeCount;
+                if (depth >= MAX_DEPTH || rangeEnd[node] - rangeStart[node] <= TOP_N) {
+                    continue; // Small ranges are answered by filtering them directly
+                }
+
+                int start = rangeStart[node];
+                int end = rangeEnd[node];
+                // Terms equal to the prefix sort first and end here
+                while (start < end && terms[start].length() == depth) {
+                    start++;
+                }
+                while (start < end) {
+                    char label = terms[start].charAt(depth);
+                    int childEnd = start + 1;
+                    while (childEnd < end && terms[childEnd].charAt(depth) == label) {
+                        childEnd++;
+                    }
+                    addNode(label, start, childEnd, depth + 1);
+                    childCount[node]++;
+                    start = childEnd;
+                }
+            }
+
+            // Bottom-up top-N: children always come after their parent in node order
+            int[] ranked = new int[TOP_N];
+            int[][] lists = new int[nodeCount][];
+            for (int node = nodeCount - 1; node >= 0; node--) {
+                int size = 0;
+                if (childCount[node] == 0) {
+                    // Leaf or depth limit: rank the whole range directly
+                    for (int term = rangeStart[node]; term < rangeEnd[node]; term++) {
+                        size = insertRanked(ranked, size, term, counts);
+                    }
+                } else {
+                    for (int term = rangeStart[node];
+                         term < rangeEnd[node] && terms[term].length() == depths[node]; term++) {
+                        size = insertRanked(ranked, size, term, counts);
+                    }
+                    for (int child = firstChild[node]; child < firstChild[node] + childCount[node]; child++) {
+                        for (int term : lists[child]) {
+                            size = insertRanked(ranked, size, term, counts);
+                        }
+                    }
+                }
+                lists[node] = Arrays.copyOf(ranked, size);
+                topCount[node] = (byte) size;
+            }
+
+            // Pack the per-node lists into one array
+            for (int node = 0; node < nodeCount; node++) {
+                if (topSize + lists[node].length > top.length) {
+                    top = Arrays.copyOf(top, Math.max(top.length * 2, topSize + lists[node].length));
+                }
+                topOffset[node] = topSize;
+                System.arraycopy(lists[node], 0, top, topSize, lists[node].length);
+                topSize += lists[node].length;
+            }
+        }
+
+        private void addNode(char label, int start, int end, int depth) {
+            if (nodeCount == labels.length) {
+                int capacity = nodeCount * 2;
+                labels = Arrays.copyOf(labels, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                childCount = Arrays.copyOf(childCount, capacity);
+                rangeStart = Arrays.copyOf(rangeStart, capacity);
+                rangeEnd = Arrays.copyOf(rangeEnd, capacity);
+                depths = Arrays.copyOf(depths, capacity);
+                topOffset = Arrays.copyOf(topOffset, capacity);
+                topCount = Arrays.copyOf(topCount, capacity);
+            }
+            labels[nodeCount] = label;
+            rangeStart[nodeCount] = start;
+            rangeEnd[nodeCount] = end;
+            depths[nodeCount] = depth;
+            nodeCount++;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Immutable per-collection term statistics for BM25F ranking
+ *
+ * Texts are split into lowercase letter/digit tokens. The collection keeps
+ * a sorted term dictionary with cumulative document frequencies, and for
+ * every field a forward index of term ids per document in CSR form:
+ * the tokens of doc d in field f are tokens[f][offsets[f][d] .. offsets[f][d + 1]).
+ *
+ * Because the dictionary is sorted, a query term matches a contiguous range
+ * of term ids (every term it prefixes), so term frequencies are counted by
+ * scanning a document's ids against that range without any allocation.
+ *
+ * File documents use {@link #FIELD_NAME} and {@link #FIELD_METADATA};
+ * the collection itself is document 0 of {@link #FIELD_TITLE} and
+ * {@link #FIELD_DESCRIPTION}.
+ *
+ * @author brito
+ */
+public class TermIndex {
+
+    public static final int FIELD_NAME = 0;
+    public static final int FIELD_TITLE = 1;
+    public static final int FIELD_DESCRIPTION = 2;
+    public static final int FIELD_METADATA = 3;
+    public static final int FIELD_COUNT = 4;
+
+    private static final String[] NO_TERMS = new String[0];
+
+    private final String[] terms;
+    private final int[] docFreqSums;  // docFreqSums[i] = sum of document frequencies of terms[0..i)
+    private final int[][] offsets;
+    private final int[][] tokens;
+
+    // Inverted name field: file docs of term t are namePostings[namePostingOffsets[t] ..
+    // namePostingOffsets[t + 1]), ascending (derived from the forward index, not persisted)
+    private final int[] namePostingOffsets;
+    private final int[] namePostings;
+
+    private TermIndex(String[] terms, int[] docFreqSums, int[][] offsets, int[][] tokens) {
+        this.terms = terms;
+        this.docFreqSums = docFreqSums;
+        this.offsets = offsets;
+        this.tokens = tokens;
+
+        int[] nameOffsets = offsets[FIELD_NAME];
+        int[] nameTokens = tokens[FIELD_NAME];
+        this.namePostingOffsets = new int[terms.length + 1];
+        for (int term : nameTokens) {
+            namePostingOffsets[term + 1]++;
+        }
+        for (int t = 0; t < terms.length; t++) {
+            namePostingOffsets[t + 1] += namePostingOffsets[t];
+        }
+        this.namePostings = new int[nameTokens.length];
+        int[] fill = Arrays.copyOf(namePostingOffsets, terms.length);
+        for (int doc = 0; doc + 1 < nameOffsets.length; doc++) {
+            for (int i = nameOffsets[doc]; i < nameOffsets[doc + 1]; i++) {
+                namePostings[fill[nameTokens[i]]++] = doc;
+            }
+        }
+    }
+
+    /**
+     * Recreate an index from arrays previously obtained through the accessors below
+     */
+    static TermIndex fromArrays(String[] terms, int[] docFreqSums, int[][] offsets, int[][] tokens) {
+        return new TermIndex(terms, docFreqSums, offsets, tokens);
+    }
+
+    /**
+     * Build the index of a collection
+     *
+     * @param names       Lowercase file names (file doc i = names[i])
+     * @param metadata    Lowercase file metadata texts, parallel to names (entries may be null)
+     * @param title       Lowercase collection title (may be null)
+     * @param description Lowercase collection description (may be null)
+     */
+    public static TermIndex build(String[] names, String[] metadata, String title, String description) {
+        String[][] fieldTexts = new String[FIELD_COUNT][];
+        fieldTexts[FIELD_NAME] = names;
+        fieldTexts[FIELD_METADATA] = metadata;
+        fieldTexts[FIELD_TITLE] = new String[] {title};
+        fieldTexts[FIELD_DESCRIPTION] = new String[] {description};
+
+        // Tokenize every field, assigning provisional ids in first-seen order
+        Map<String, Integer> provisional = new HashMap<>();
+        List<String> seen = new ArrayList<>();
+        int[][] fieldTokens = new int[FIELD_COUNT][];
+        int[][] fieldOffsets = new int[FIELD_COUNT][];
+
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            String[] texts = fieldTexts[field];
+            int[] ids = new int[16];
+            int[] starts = new int[texts.length + 1];
+            int count = 0;
+            for (int doc = 0; doc < texts.length; doc++) {
+                starts[doc] = count;
+                for (String token : tokenize(texts[doc])) {
+                    Integer id = provisional.get(token);
+                    if (id == null) {
+                        id = seen.size();
+                        provisional.put(token, id);
+                        seen.add(token);
+                    }
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = id;
+                }
+            }
+            starts[texts.length] = count;
+            fieldTokens[field] = Arrays.copyOf(ids, count);
+            fieldOffsets[field] = starts;
+        }
+
+        // Sort the dictionary and remap provisional ids to sorted positions
+        String[] terms = seen.toArray(NO_TERMS);
+        Arrays.sort(terms);
+        int[] remap = new int[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            remap[provisional.get(terms[i])] = i;
+        }
+        for (int[] ids : fieldTokens) {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = remap[ids[i]];
+            }
+        }
+
+        // Document frequency: a file doc spans name + metadata, the collection doc spans title + description
+        int[] docFreq = new int[terms.length];
+        int[] lastDoc = new int[terms.length];
+        Arrays.fill(lastDoc, -1);
+        for (int doc = 0; doc < names.length; doc++) {
+            countDocFreq(docFreq, lastDoc, doc, doc, fieldOffsets[FIELD_NAME], fieldTokens[FIELD_NAME], 1);
+            countDocFreq(docFreq, lastDoc, doc, doc, fieldOffsets[FIELD_METADATA], fieldTokens[FIELD_METADATA], 1);
+        }
+        countDocFreq(docFreq, lastDoc, 0, names.length, fieldOffsets[FIELD_TITLE], fieldTokens[FIELD_TITLE], 1);
+        countDocFreq(docFreq, lastDoc, 0, names.length,
+                fieldOffsets[FIELD_DESCRIPTION], fieldTokens[FIELD_DESCRIPTION], 1);
+
+        int[] docFreqSums = new int[terms.length + 1];
+        for (int i = 0; i < terms.length; i++) {
+            docFreqSums[i + 1] = docFreqSums[i] + docFreq[i];
+        }
+
+        return new TermIndex(terms, docFreqSums, fieldOffsets, fieldTokens);
+    }
+
+    /**
+     * Index over the next table of a diff, derived from the index over the
+     * previous one: only added entries are tokenized, kept entries' term ids
+     * are renumbered into the merged dictionary, and document frequencies
+     * are adjusted for the removed and added entries. The result equals
+     * {@link #build} over the next table.
+     *
+     * @param names    Lowercase name of a doc of the next table (only asked for added docs)
+     * @param metadata Lowercase metadata of a doc of the next table (only asked for added docs, may be null)
+     */
+    public static TermIndex patch(TermIndex previous, FileTableDiff diff,
+                                  IntFunction<String> names, IntFunction<String> metadata) {
+        String[] previousTerms = previous.terms;
+        int previousDocs = diff.previousToNext.length;
+
+        // Document frequencies by combined id: previous term ids, then terms new to the dictionary
+        int[] docFreq = new int[previousTerms.length + 16];
+        for (int t = 0; t < previousTerms.length; t++) {
+            docFreq[t] = previous.docFreqSums[t + 1] - previous.docFreqSums[t];
+        }
+        int[] lastDoc = new int[docFreq.length];
+        Arrays.fill(lastDoc, -1);
+
+        for (int doc = 0; doc < previousDocs; doc++) {
+            if (diff.previousToNext[doc] < 0) {
+                countDocFreq(docFreq, lastDoc, doc, doc,
+                        previous.offsets[FIELD_NAME], previous.tokens[FIELD_NAME], -1);
+                countDocFreq(docFreq, lastDoc, doc, doc,
+                        previous.offsets[FIELD_METADATA], previous.tokens[FIELD_METADATA], -1);
+            }
+        }
+
+        // Tokenize the added entries' names and metadata
+        int[] fileFields = {FIELD_NAME, FIELD_METADATA};
+        Map<String, Integer> fresh = new HashMap<>();
+        List<String> freshTerms = new ArrayList<>();
+        int[][] addedOffsets = new int[fileFields.length][diff.added.length + 1];
+        int[][] addedTokens = new int[fileFields.length][16];
+        int[] addedCounts = new int[fileFields.length];
+
+        for (int i = 0; i < diff.added.length; i++) {
+            int doc = diff.added[i];
+            for (int f = 0; f < fileFields.length; f++) {
+                addedOffsets[f][i] = addedCounts[f];
+                String text = fileFields[f] == FIELD_NAME ? names.apply(doc) : metadata.apply(doc);
+                for (String token : tokenize(text)) {
+                    int id = Arrays.binarySearch(previousTerms, token);
+                    if (id < 0) {
+                        Integer known = fresh.get(token);
+                        if (known == null) {
+                            known = previousTerms.length + freshTerms.size();
+                            fresh.put(token, known);
+                            freshTerms.add(token);
+                        }
+                        id = known;
+                    }
+                    if (id >= docFreq.length) {
+                        int grown = docFreq.length * 2;
+                        docFreq = Arrays.copyOf(docFreq, grown);
+                        lastDoc = Arrays.copyOf(lastDoc, grown);
+                        Arrays.fill(lastDoc, grown / 2, grown, -1);
+                    }
+                    if (lastDoc[id] != previousDocs + doc) {
+                        lastDoc[id] = previousDocs + doc;
+                        docFreq[id]++;
+                    }
+                    if (addedCounts[f] == addedTokens[f].length) {
+                        addedTokens[f] = Arrays.copyOf(addedTokens[f], addedCounts[f] * 2);
+                    }
+                    addedTokens[f][addedCounts[f]++] = id;
+                }
+            }
+        }
+        for (int f = 0; f < fileFields.length; f++) {
+            addedOffsets[f][diff.added.length] = addedCounts[f];
+        }
+
+        // Merge the surviving previous terms with the new ones into the sorted dictionary
+        String[] sortedFresh = freshTerms.toArray(NO_TERMS);
+        Arrays.sort(sortedFresh);
+        int[] remap = new int[previousTerms.length + sortedFresh.length];
+        String[] terms = new String[remap.length];
+        int[] docFreqSums = new int[remap.length + 1];
+        int termCount = 0;
+        for (int a = 0, b = 0; a < previousTerms.length || b < sortedFresh.length; ) {
+            int id;
+            String term;
+            if (b == sortedFresh.length
+                    || (a < previousTerms.length && previousTerms[a].compareTo(sortedFresh[b]) < 0)) {
+                id = a;
+                term = previousTerms[a++];
+            } else {
+                term = sortedFresh[b++];
+                id = fresh.get(term);
+            }
+            if (docFreq[id] == 0) {
+                remap[id] = -1; // Only held by removed entries
+                continue;
+            }
+            remap[id] = termCount;
+            terms[termCount] = term;
+            docFreqSums[termCount + 1] = docFreqSums[termCount] + docFreq[id];
+            termCount++;
+        }
+
+        // Forward index: kept entries copy their renumbered ids, added entries take theirs
+        int docCount = diff.nextToPrevious.length;
+        int[][] fieldOffsets = new int[FIELD_COUNT][];
+        int[][] fieldTokens = new int[FIELD_COUNT][];
+        for (int f = 0; f < fileFields.length; f++) {
+            int field = fileFields[f];
+            int[] previousOffsets = previous.offsets[field];
+            int[] previousTokens = previous.tokens[field];
+            int[] starts = new int[docCount + 1];
+            int[] ids = new int[previousTokens.length + addedCounts[f]];
+            int count = 0;
+            int added = 0;
+            for (int doc = 0; doc < docCount; doc++) {
+                starts[doc] = count;
+                int kept = diff.nextToPrevious[doc];
+                int[] source = kept >= 0 ? previousTokens : addedTokens[f];
+                int from = kept >= 0 ? previousOffsets[kept] : addedOffsets[f][added];
+                int to = kept >= 0 ? previousOffsets[kept + 1] : addedOffsets[f][++added];
+                for (int i = from; i < to; i++) {
+                    ids[count++] = remap[source[i]];
+                }
+            }
+            starts[docCount] = count;
+            fieldOffsets[field] = starts;
+            fieldTokens[field] = Arrays.copyOf(ids, count);
+        }
+        for (int field : new int[] {FIELD_TITLE, FIELD_DESCRIPTION}) {
+            int[] ids = previous.tokens[field].clone();
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = remap[ids[i]];
+            }
+            fieldOffsets[field] = previous.offsets[field];
+            fieldTokens[field] = ids;
+        }
+
+        return new TermIndex(Arrays.copyOf(terms, termCount), Arrays.copyOf(docFreqSums, termCount + 1),
+                fieldOffsets, fieldTokens);
+    }
+
+    /**
+     * Add delta to the document frequency of each distinct term of a doc's
+     * field; fields counted with the same docKey form one document, so a
+     * term found in several of them counts once
+     */
+    private static void countDocFreq(int[] docFreq, int[] lastDoc, int doc, int docKey,
+                                     int[] offsets, int[] tokens, int delta) {
+        for (int i = offsets[doc]; i < offsets[doc + 1]; i++) {
+            int term = tokens[i];
+            if (lastDoc[term] != docKey) {
+                lastDoc[term] = docKey;
+                docFreq[term] += delta;
+            }
+        }
+    }
+
+    /**
+     * Split lowercase text into letter/digit tokens
+     */
+    public static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                result.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * First term id whose term starts with the prefix (or would follow it)
+     */
+    public int rangeStart(String prefix) {
+        int found = Arrays.binarySearch(terms, prefix);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    /**
+     * End (exclusive) of the term ids starting with the prefix
+     */
+    public int rangeEnd(String prefix, int start) {
+        int end = start;
+        while (end < terms.length && terms[end].startsWith(prefix)) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Documents containing a term of [start, end), summed per term
+     * (an upper bound when several terms share a document)
+     */
+    public int docFreq(int start, int end) {
+        return docFreqSums[end] - docFreqSums[start];
+    }
+
+    /**
+     * Occurrences of term ids [start, end) in a document's field
+     */
+    public int termFreq(int field, int doc, int start, int end) {
+        int[] fieldOffsets = offsets[field];
+        if (doc + 1 >= fieldOffsets.length) {
+            return 0;
+        }
+        int[] fieldTokens = tokens[field];
+        int freq = 0;
+        for (int i = fieldOffsets[doc]; i < fieldOffsets[doc + 1]; i++) {
+            int term = fieldTokens[i];
+            if (term >= start && term < end) {
+                freq++;
+            }
+        }
+        return freq;
+    }
+
+    /**
+     * Number of tokens of a document's field
+     */
+    public int fieldLength(int field, int doc) {
+        int[] fieldOffsets = offsets[field];
+        return doc + 1 < fieldOffsets.length ? fieldOffsets[doc + 1] - fieldOffsets[doc] : 0;
+    }
+
+    /**
+     * Total tokens in a field across all documents
+     */
+    public long fieldTokenCount(int field) {
+        return tokens[field].length;
+    }
+
+    /**
+     * Documents carrying the field (files for name/metadata, 1 for title/description)
+     */
+    public int fieldDocCount(int field) {
+        return offsets[field].length - 1;
+    }
+
+    /**
+     * Documents in the collection (files plus the collection itself)
+     */
+    public int getDocCount() {
+        return fieldDocCount(FIELD_NAME) + 1;
+    }
+
+    /**
+     * Visit the dictionary terms within the automaton's edit distance
+     */
+    public void intersect(LevenshteinAutomaton automaton, LevenshteinAutomaton.TermVisitor visitor) {
+        automaton.intersect(terms, visitor);
+    }
+
+    /**
+     * Start of a term's file docs in {@link #namePosting} (a doc repeats if
+     * its name holds the term more than once)
+     */
+    public int namePostingStart(int term) {
+        return namePostingOffsets[term];
+    }
+
+    /**
+     * End (exclusive) of a term's file docs in {@link #namePosting}
+     */
+    public int namePostingEnd(int term) {
+        return namePostingOffsets[term + 1];
+    }
+
+    public int namePosting(int i) {
+        return namePostings[i];
+    }
+
+    public int getTermCount() {
+        return terms.length;
+    }
+
+    /**
+     * Approximate heap footprint in bytes (terms counted as their characters)
+     */
+    public long getSizeInBytes() {
+        long bytes = 4L * (docFreqSums.length + namePostingOffsets.length + namePostings.length);
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            bytes += 4L * (offsets[field].length + tokens[field].length);
+        }
+        for (String term : terms) {
+            bytes += 40 + term.length();
+        }
+        return bytes;
+    }
+
+    // Raw arrays for persistence (must not be modified)
+    String[] terms() {
+        return terms;
+    }
+
+    int[] docFreqSums() {
+        return docFreqSums;
+    }
+
+    int[][] offsets() {
+        return offsets;
+    }
+
+    int[][] tokens() {
+        return tokens;
+    }
+}
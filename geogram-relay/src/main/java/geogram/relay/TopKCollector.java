@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded min-heap keeping the K best search hits
+ *
+ * Hits are held as primitive (score, sequence, doc) slots plus a reference
+ * to their collection, so scoring a candidate allocates nothing. Only the
+ * final K entries are turned into {@link SearchResult} objects.
+ *
+ * Each hit's sequence is its position in index order (device, collection,
+ * then the collection itself before its files in file order), whether or
+ * not earlier collections were skipped, and ties keep the lower sequence.
+ * The (score, sequence) pair therefore totally orders hits, and a
+ * search-after bound skips everything up to a previous page's last hit.
+ *
+ * @author brito
+ */
+public class TopKCollector {
+
+    // Doc id used for a match on the collection itself (title/description)
+    public static final int COLLECTION_DOC = -1;
+
+    private final int capacity;
+    private final double[] scores;
+    private final long[] sequences;
+    private final int[] docs;
+    private final IndexedCollection[] collections;
+    private int size;
+    private long nextSequence;
+    private long collectionSequence;
+
+    // Search-after bound: only hits ranking strictly below it are kept
+    private boolean hasAfter;
+    private double afterScore;
+    private long afterSequence;
+
+    public TopKCollector(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.scores = new double[this.capacity];
+        this.sequences = new long[this.capacity];
+        this.docs = new int[this.capacity];
+        this.collections = new IndexedCollection[this.capacity];
+    }
+
+    /**
+     * Restart tie-break sequences at a base; each device uses its own base so
+     * sequences do not depend on how devices are split into shards
+     */
+    public void startSequence(long base) {
+        this.nextSequence = base;
+    }
+
+    /**
+     * Reserve the sequences of a collection with the given number of files;
+     * called for every collection in index order, including skipped ones
+     */
+    public void startCollection(int files) {
+        this.collectionSequence = nextSequence;
+        this.nextSequence += files + 1L;
+    }
+
+    /**
+     * Only keep hits ranking after (score, sequence), the last hit of a previous page
+     */
+    public void setAfter(double score, long sequence) {
+        this.hasAfter = true;
+        this.afterScore = score;
+        this.afterSequence = sequence;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Score a new hit must exceed to enter the heap (-infinity while not full)
+     */
+    public double threshold() {
+        return size == capacity ? scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Offer a hit; returns true if it was kept
+     */
+    public boolean offer(double score, IndexedCollection collection, int doc) {
+        return offer(score, collectionSequence + doc + 1, collection, doc);
+    }
+
+    /**
+     * Add every hit kept by another collector (e.g. a shard's local top-K)
+     */
+    public void merge(TopKCollector other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.scores[i], other.sequences[i], other.collections[i], other.docs[i]);
+        }
+    }
+
+    /**
+     * Add another collector's hits and materialize the ones that were kept,
+     * best first (used to stream hits still in the running top-K)
+     */
+    public List<SearchResult> mergeKept(TopKCollector other) {
+        List<SearchResult> kept = new ArrayList<>();
+        for (int slot : other.rankedSlots()) {
+            if (offer(other.scores[slot], other.sequences[slot], other.collections[slot], other.docs[slot])) {
+                kept.add(other.materialize(slot));
+            }
+        }
+        return kept;
+    }
+
+    private boolean offer(double score, long sequence, IndexedCollection collection, int doc) {
+        if (hasAfter && (score > afterScore || (score == afterScore && sequence <= afterSequence))) {
+            return false; // Already returned on an earlier page
+        }
+
+        if (size < capacity) {
+            scores[size] = score;
+            sequences[size] = sequence;
+            docs[size] = doc;
+            collections[size] = collection;
+            siftUp(size++);
+            return true;
+        }
+
+        if (score < scores[0] || (score == scores[0] && sequence > sequences[0])) {
+            return false;
+        }
+
+        scores[0] = score;
+        sequences[0] = sequence;
+        docs[0] = doc;
+        collections[0] = collection;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Materialize the kept hits, best first
+     */
+    public List<SearchResult> toResults() {
+        int[] order = rankedSlots();
+        List<SearchResult> results = new ArrayList<>(size);
+        for (int slot : order) {
+            results.add(materialize(slot));
+        }
+        return results;
+    }
+
+    /**
+     * Heap slots ordered best first
+     */
+    private int[] rankedSlots() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        // Insertion sort on at most K slots: best score first, earlier sequence on ties
+        for (int i = 1; i < size; i++) {
+            int slot = order[i];
+            int j = i - 1;
+            while (j >= 0 && worse(order[j], slot)) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = slot;
+        }
+        return order;
+    }
+
+    private SearchResult materialize(int slot) {
+        SearchResult result = toResult(collections[slot], docs[slot], scores[slot]);
+        result.collectionVersion = collections[slot].version;
+        result.sequence = sequences[slot];
+        return result;
+    }
+
+    private static SearchResult toResult(IndexedCollection collection, int doc, double score) {
+        if (doc == COLLECTION_DOC) {
+            return new SearchResult(
+                collection.callsign,
+                collection.collectionName,
+                collection.title,
+                collection.description,
+                null,
+                null,
+                null,
+                null, // No file size for collections
+                "collection",
+                score
+            );
+        }
+
+        IndexedCollection.IndexedFile file = collection.files.get(doc);
+        return new SearchResult(
+            collection.callsign,
+            collection.collectionName,
+            collection.title,
+            collection.description,
+            file.path,
+            file.name,
+            file.type,
+            file.size,
+            "file",
+            score
+        );
+    }
+
+    /**
+     * True if slot a ranks below slot b
+     */
+    private boolean worse(int a, int b) {
+        if (scores[a] != scores[b]) {
+            return scores[a] < scores[b];
+        }
+        return sequences[a] > sequences[b];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int right = left + 1;
+            int smallest = right < size && worse(right, left) ? right : left;
+            if (!worse(smallest, i)) {
+                break;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        long sequence = sequences[a];
+        sequences[a] = sequences[b];
+        sequences[b] = sequence;
+        int doc = docs[a];
+        docs[a] = docs[b];
+        docs[b] = doc;
+        IndexedCollection collection = collections[a];
+        collections[a] = collections[b];
+        collections[b] = collection;
+    }
+}
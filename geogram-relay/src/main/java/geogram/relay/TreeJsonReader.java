@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+/**
+ * Streaming reader for extra/tree.json and extra/data.js
+ *
+ * Walks the top-level array token by token and hands each file entry to a
+ * handler as soon as it is read, so memory stays bounded by one entry
+ * instead of a DOM of the whole file. String values inside an entry's
+ * metadata object are joined into one searchable text; other unknown
+ * fields (hashes) are skipped without being materialized.
+ *
+ * @author brito
+ */
+public class TreeJsonReader {
+
+    /**
+     * Receives file entries in file order
+     */
+    public interface EntryHandler {
+        void onEntry(String path, String name, String type, Long size, String mimeType, String metadata);
+    }
+
+    private TreeJsonReader() {
+    }
+
+    /**
+     * Read data.js ({@code window.TREE_DATA = [...];}) by skipping the
+     * assignment and reading the array that follows
+     *
+     * @return Number of entries passed to the handler
+     */
+    public static int readScript(Reader source, EntryHandler handler) throws IOException {
+        PushbackReader pushback = new PushbackReader(source, 1);
+        int c;
+        while ((c = pushback.read()) != -1 && c != '[') {
+            // Skip "window.TREE_DATA =" and any leading comments
+        }
+        if (c == -1) {
+            return 0;
+        }
+        pushback.unread(c);
+        return read(pushback, handler);
+    }
+
+    /**
+     * Read a tree.json array, skipping entries without path or name
+     *
+     * @return Number of entries passed to the handler
+     */
+    public static int read(Reader source, EntryHandler handler) throws IOException {
+        JsonReader reader = new JsonReader(source);
+        reader.setLenient(true);
+
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+
+            String path = null;
+            String name = null;
+            String type = null;
+            Long size = null;
+            String mimeType = null;
+            StringBuilder metadata = new StringBuilder();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "path":
+                        path = nextString(reader);
+                        break;
+                    case "name":
+                        name = nextString(reader);
+                        break;
+                    case "type":
+                        type = nextString(reader);
+                        break;
+                    case "size":
+                        size = nextLong(reader);
+                        break;
+                    case "mimeType":
+                        mimeType = nextString(reader);
+                        break;
+                    case "description":
+                    case "metadata":
+                        appendText(reader, metadata);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (path != null && name != null) {
+                handler.onEntry(path, name, type, size, mimeType,
+                        metadata.length() > 0 ? metadata.toString() : null);
+                count++;
+            }
+        }
+        reader.endArray();
+        return count;
+    }
+
+    /**
+     * Append every string found in a value (recursing into objects and arrays)
+     */
+    private static void appendText(JsonReader reader, StringBuilder text) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+                String value = reader.nextString();
+                if (!value.isBlank()) {
+                    if (text.length() > 0) {
+                        text.append(' ');
+                    }
+                    text.append(value);
+                }
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    appendText(reader, text);
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    appendText(reader, text);
+                }
+                reader.endArray();
+                break;
+            default:
+                reader.skipValue(); // Numbers (views) and booleans are not searchable text
+        }
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static Long nextLong(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER) {
+            return reader.nextLong();
+        }
+        reader.skipValue();
+        return null;
+    }
+}
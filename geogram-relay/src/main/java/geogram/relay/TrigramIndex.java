@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Immutable trigram posting-list index over an array of lowercase texts
+ *
+ * Every distinct 3-character substring of a text becomes a posting for that
+ * text's document id. A substring query is answered by intersecting the
+ * posting lists of the query's trigrams, which yields a small candidate set
+ * that the caller verifies with {@link String#contains}.
+ *
+ * Postings are stored in CSR form using only primitive arrays:
+ * grams[i] is the i-th trigram (sorted), and its documents are
+ * postings[offsets[i] .. offsets[i + 1]), sorted ascending.
+ *
+ * @author brito
+ */
+public class TrigramIndex {
+
+    public static final int GRAM_LENGTH = 3;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final int docCount;
+    private final int[] grams;
+    private final int[] offsets;
+    private final int[] postings;
+
+    private TrigramIndex(int docCount, int[] grams, int[] offsets, int[] postings) {
+        this.docCount = docCount;
+        this.grams = grams;
+        this.offsets = offsets;
+        this.postings = postings;
+    }
+
+    /**
+     * Recreate an index from arrays previously obtained through the accessors below
+     */
+    static TrigramIndex fromArrays(int docCount, int[] grams, int[] offsets, int[] postings) {
+        return new TrigramIndex(docCount, grams, offsets, postings);
+    }
+
+    /**
+     * Build an index where document id i corresponds to texts[i]
+     * (null entries are allowed and never match)
+     */
+    public static TrigramIndex build(String[] texts) {
+        // Collect (gram << 32 | doc) pairs, sort them and fold into CSR arrays
+        long[] pairs = new long[64];
+        int pairCount = 0;
+
+        for (int doc = 0; doc < texts.length; doc++) {
+            String text = texts[doc];
+            if (text == null || text.length() < GRAM_LENGTH) {
+                continue;
+            }
+            for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+                if (pairCount == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                }
+                pairs[pairCount++] = ((long) gramAt(text, i) << 32) | doc;
+            }
+        }
+
+        Arrays.sort(pairs, 0, pairCount);
+
+        int[] grams = new int[16];
+        int[] offsets = new int[17];
+        int[] postings = new int[Math.max(1, pairCount)];
+        int gramCount = 0;
+        int postingCount = 0;
+        long previous = -1;
+
+        for (int i = 0; i < pairCount; i++) {
+            long pair = pairs[i];
+            if (pair == previous) {
+                continue; // Same trigram repeated within one text
+            }
+            int gram = (int) (pair >>> 32);
+            if (gramCount == 0 || grams[gramCount - 1] != gram) {
+                if (gramCount == grams.length) {
+                    grams = Arrays.copyOf(grams, gramCount * 2);
+                    offsets = Arrays.copyOf(offsets, gramCount * 2 + 1);
+                }
+                grams[gramCount] = gram;
+                offsets[gramCount] = postingCount;
+                gramCount++;
+            }
+            postings[postingCount++] = (int) pair;
+            previous = pair;
+        }
+        offsets[gramCount] = postingCount;
+
+        return new TrigramIndex(texts.length,
+                Arrays.copyOf(grams, gramCount),
+                Arrays.copyOf(offsets, gramCount + 1),
+                Arrays.copyOf(postings, postingCount));
+    }
+
+    /**
+     * Index over the next table of a diff, derived from the index over the
+     * previous one: kept postings are renumbered and merged with postings of
+     * the added entries, so only added texts are split into trigrams. The
+     * result equals {@link #build} over the next table's texts.
+     *
+     * @param texts Text of a doc of the next table (only asked for added docs)
+     * @throws IllegalArgumentException if the diff reorders kept entries
+     */
+    public static TrigramIndex patch(TrigramIndex previous, FileTableDiff diff, IntFunction<String> texts) {
+        if (!diff.ordered) {
+            throw new IllegalArgumentException("Kept entries must keep their order");
+        }
+
+        // (gram << 32 | doc) pairs of the added texts only
+        long[] pairs = new long[64];
+        int pairCount = 0;
+        for (int doc : diff.added) {
+            String text = texts.apply(doc);
+            if (text == null || text.length() < GRAM_LENGTH) {
+                continue;
+            }
+            for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+                if (pairCount == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                }
+                pairs[pairCount++] = ((long) gramAt(text, i) << 32) | doc;
+            }
+        }
+        Arrays.sort(pairs, 0, pairCount);
+
+        // Merge both sorted gram lists; renumbered kept docs stay ascending because the diff is ordered
+        int[] previousGrams = previous.grams;
+        int[] previousOffsets = previous.offsets;
+        int[] previousPostings = previous.postings;
+        int[] map = diff.previousToNext;
+        int[] grams = new int[previousGrams.length + pairCount];
+        int[] offsets = new int[grams.length + 1];
+        int[] postings = new int[previousPostings.length + pairCount];
+        int gramCount = 0;
+        int postingCount = 0;
+        int g = 0;
+        int p = 0;
+
+        while (g < previousGrams.length || p < pairCount) {
+            int gram = g == previousGrams.length ? (int) (pairs[p] >>> 32)
+                    : p == pairCount ? previousGrams[g]
+                    : Math.min(previousGrams[g], (int) (pairs[p] >>> 32));
+            int from = 0;
+            int to = 0;
+            if (g < previousGrams.length && previousGrams[g] == gram) {
+                from = previousOffsets[g];
+                to = previousOffsets[g + 1];
+                g++;
+            }
+            int start = postingCount;
+            int last = -1;
+            while (from < to || (p < pairCount && (int) (pairs[p] >>> 32) == gram)) {
+                int kept = -1;
+                while (from < to && (kept = map[previousPostings[from]]) < 0) {
+                    from++;
+                }
+                if (from == to) {
+                    kept = -1;
+                }
+                int fresh = p < pairCount && (int) (pairs[p] >>> 32) == gram ? (int) pairs[p] : -1;
+                int doc;
+                if (kept >= 0 && (fresh < 0 || kept < fresh)) {
+                    doc = kept;
+                    from++;
+                } else if (fresh >= 0) {
+                    doc = fresh;
+                    p++;
+                } else {
+                    break;
+                }
+                if (doc != last) { // Same trigram repeated within one added text
+                    postings[postingCount++] = doc;
+                    last = doc;
+                }
+            }
+            if (postingCount > start) {
+                grams[gramCount] = gram;
+                offsets[gramCount] = start;
+                gramCount++;
+            }
+        }
+        offsets[gramCount] = postingCount;
+
+        return new TrigramIndex(diff.nextToPrevious.length,
+                Arrays.copyOf(grams, gramCount),
+                Arrays.copyOf(offsets, gramCount + 1),
+                Arrays.copyOf(postings, postingCount));
+    }
+
+    /**
+     * Candidate documents that contain every trigram of the query, ascending.
+     * Returns null when the query is too short to use the index, meaning
+     * every document is a candidate. Candidates must still be verified.
+     */
+    public int[] candidates(String query) {
+        if (query.length() < GRAM_LENGTH) {
+            return null;
+        }
+
+        // Locate the posting range of each distinct query trigram
+        int rangeCount = query.length() - GRAM_LENGTH + 1;
+        int[] starts = new int[rangeCount];
+        int[] ends = new int[rangeCount];
+        int distinct = 0;
+
+        for (int i = 0; i < rangeCount; i++) {
+            int slot = Arrays.binarySearch(grams, gramAt(query, i));
+            if (slot < 0) {
+                return EMPTY; // A trigram that appears nowhere rules out every document
+            }
+            boolean seen = false;
+            for (int j = 0; j < distinct; j++) {
+                if (starts[j] == offsets[slot]) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) {
+                starts[distinct] = offsets[slot];
+                ends[distinct] = offsets[slot + 1];
+                distinct++;
+            }
+        }
+
+        // Intersect starting from the shortest list so the working set only shrinks
+        int shortest = 0;
+        for (int j = 1; j < distinct; j++) {
+            if (ends[j] - starts[j] < ends[shortest] - starts[shortest]) {
+                shortest = j;
+            }
+        }
+
+        int[] result = Arrays.copyOfRange(postings, starts[shortest], ends[shortest]);
+        int size = result.length;
+
+        for (int j = 0; j < distinct && size > 0; j++) {
+            if (j != shortest) {
+                size = intersect(result, size, postings, starts[j], ends[j]);
+            }
+        }
+
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Upper bound of {@link #candidates}' size without intersecting: the
+     * shortest posting list among the query's trigrams (every document when
+     * the query is too short to use the index)
+     */
+    public int estimate(String query) {
+        if (query.length() < GRAM_LENGTH) {
+            return docCount;
+        }
+        int shortest = docCount;
+        for (int i = 0; i + GRAM_LENGTH <= query.length(); i++) {
+            int slot = Arrays.binarySearch(grams, gramAt(query, i));
+            if (slot < 0) {
+                return 0;
+            }
+            shortest = Math.min(shortest, offsets[slot + 1] - offsets[slot]);
+        }
+        return shortest;
+    }
+
+    /**
+     * In-place intersection of result[0..size) with postings[from..to).
+     * Uses binary search probes, so a short working set skips through
+     * long posting lists in O(size * log(list)).
+     */
+    private static int intersect(int[] result, int size, int[] postings, int from, int to) {
+        int kept = 0;
+        int cursor = from;
+        for (int i = 0; i < size && cursor < to; i++) {
+            int doc = result[i];
+            if (postings[cursor] < doc) {
+                int found = Arrays.binarySearch(postings, cursor, to, doc);
+                cursor = found >= 0 ? found : -found - 1;
+            }
+            if (cursor < to && postings[cursor] == doc) {
+                result[kept++] = doc;
+                cursor++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Encode the trigram starting at position i as an int. Characters below
+     * U+0400 are packed losslessly into 30 bits; anything else is hashed into
+     * a disjoint range, so collisions can only add candidates, never lose them.
+     */
+    static int gramAt(String text, int i) {
+        char c0 = text.charAt(i);
+        char c1 = text.charAt(i + 1);
+        char c2 = text.charAt(i + 2);
+        if (c0 < 0x400 && c1 < 0x400 && c2 < 0x400) {
+            return (c0 << 20) | (c1 << 10) | c2;
+        }
+        int h = (c0 * 31 + c1) * 31 + c2;
+        h ^= h >>> 16;
+        return (h & 0x3FFFFFFF) | 0x40000000;
+    }
+
+    // Raw arrays for persistence (must not be modified)
+    int[] grams() {
+        return grams;
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    int[] postings() {
+        return postings;
+    }
+
+    public int getDocCount() {
+        return docCount;
+    }
+
+    public int getGramCount() {
+        return grams.length;
+    }
+
+    /**
+     * Approximate heap footprint of the posting arrays in bytes
+     */
+    public long getSizeInBytes() {
+        return 4L * (grams.length + offsets.length + postings.length);
+    }
+}
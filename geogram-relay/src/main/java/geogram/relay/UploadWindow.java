@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+/**
+ * Credit-based flow control for a request body streamed to a device
+ *
+ * The relay may have at most the granted number of body bytes in flight
+ * in HTTP_REQUEST_CHUNK messages. It starts with {@link #WINDOW_BYTES} and
+ * the device adds credit with HTTP_REQUEST_CREDIT as it consumes chunks,
+ * so a slow device throttles the HTTP client's upload instead of the body
+ * piling up in relay memory.
+ *
+ * Devices opt in through an {@code ["upload", "chunked"]} tag of their
+ * hello event; other devices keep receiving the whole body in one
+ * HTTP_REQUEST.
+ *
+ * @author brito
+ */
+public class UploadWindow {
+
+    public static final String UPLOAD_TAG = "upload";
+    public static final String UPLOAD_CHUNKED = "chunked";
+
+    public static final int CHUNK_BYTES = 64 * 1024;
+    public static final int WINDOW_BYTES = 1024 * 1024;
+
+    private long credit = WINDOW_BYTES;
+    private boolean closed;
+
+    /**
+     * Add credit granted by the device
+     */
+    public synchronized void grant(long bytes) {
+        if (bytes > 0) {
+            credit += bytes;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stop the upload, waking a sender waiting for credit
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Take credit for sending bytes, waiting until the device grants enough
+     *
+     * @return false if the window was closed or no credit came in time
+     */
+    public synchronized boolean acquire(int bytes, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (credit < bytes && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        if (closed) {
+            return false;
+        }
+        credit -= bytes;
+        return true;
+    }
+
+    public synchronized long getCredit() {
+        return credit;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Encoding and decoding of binary WebSocket frames
+ *
+ * @author brito
+ */
+class BinaryFrameTest {
+
+    private static final List<String> TYPES = List.of(
+            RelayMessage.TYPE_REGISTER,
+            RelayMessage.TYPE_HTTP_REQUEST,
+            RelayMessage.TYPE_HTTP_RESPONSE,
+            RelayMessage.TYPE_PING,
+            RelayMessage.TYPE_PONG,
+            RelayMessage.TYPE_ERROR,
+            RelayMessage.TYPE_COLLECTIONS_REQUEST,
+            RelayMessage.TYPE_COLLECTIONS_RESPONSE,
+            RelayMessage.TYPE_COLLECTION_FILE_REQUEST,
+            RelayMessage.TYPE_COLLECTION_FILE_RESPONSE,
+            RelayMessage.TYPE_HTTP_RESPONSE_START,
+            RelayMessage.TYPE_HTTP_RESPONSE_CHUNK,
+            RelayMessage.TYPE_HTTP_RESPONSE_END,
+            RelayMessage.TYPE_HTTP_REQUEST_CHUNK,
+            RelayMessage.TYPE_HTTP_REQUEST_END,
+            RelayMessage.TYPE_HTTP_REQUEST_CREDIT,
+            RelayMessage.TYPE_HTTP_RESPONSE_CREDIT);
+
+    // Every byte value, and text that is not ASCII
+    private static final byte[] BODY = body();
+
+    @Test
+    void everyTypeRoundTrips() {
+        for (int i = 0; i < TYPES.size(); i++) {
+            String type = TYPES.get(i);
+            for (boolean withMeta : new boolean[] {false, true}) {
+                for (boolean withBody : new boolean[] {false, true}) {
+                    RelayMessage message = message(type, withMeta);
+                    ByteBuffer frame = BinaryFrame.encode(message, withBody ? BODY : null);
+                    String label = type + (withMeta ? " with meta" : "") + (withBody ? " with body" : "");
+
+                    assertEquals(BinaryFrame.VERSION, frame.get(0), label);
+                    assertEquals(i + 1, frame.get(1), label);  // Wire codes never move
+                    assertEquals(withMeta, frame.getInt(8) > 0, label);
+                    assertEquals(withBody ? BODY.length : 0, frame.getInt(12), label);
+
+                    RelayMessage decoded = BinaryFrame.decode(frame);
+                    assertEquals(type, decoded.type, label);
+                    assertEquals(message.requestId, decoded.requestId, label);
+                    assertEquals(message.callsign, decoded.callsign, label);
+                    assertEquals(message.path, decoded.path, label);
+                    assertEquals(message.headers, decoded.headers, label);
+                    assertEquals(message.credit, decoded.credit, label);
+                    assertBody(type, withBody, decoded, label);
+                }
+            }
+        }
+    }
+
+    @Test
+    void statusCodeTravelsOnlyInHeader() {
+        for (String type : TYPES) {
+            RelayMessage message = new RelayMessage();
+            message.type = type;
+            message.requestId = "r1";
+            message.statusCode = 503;
+            ByteBuffer frame = BinaryFrame.encode(message, null);
+
+            boolean response = type.equals(RelayMessage.TYPE_HTTP_RESPONSE)
+                    || type.equals(RelayMessage.TYPE_HTTP_RESPONSE_START);
+            assertEquals(503, frame.getShort(2), type);
+            assertEquals(0, frame.getInt(8), type);  // No meta
+            assertEquals(response ? Integer.valueOf(503) : null, BinaryFrame.decode(frame).statusCode, type);
+        }
+
+        // Unsigned on the wire
+        RelayMessage message = new RelayMessage();
+        message.type = RelayMessage.TYPE_HTTP_RESPONSE;
+        message.statusCode = 40000;
+        assertEquals(40000, BinaryFrame.decode(BinaryFrame.encode(message, null)).statusCode);
+    }
+
+    @Test
+    void decodesFramesOutsideAHeapArray() {
+        RelayMessage message = message(RelayMessage.TYPE_HTTP_REQUEST, true);
+        ByteBuffer encoded = BinaryFrame.encode(message, BODY);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.remaining());
+        direct.put(encoded.duplicate()).flip();
+        assertEquals(message.path, BinaryFrame.decode(direct).path);
+
+        // A frame in the middle of a larger array
+        byte[] padded = new byte[encoded.remaining() + 10];
+        encoded.duplicate().get(padded, 7, encoded.remaining());
+        RelayMessage decoded = BinaryFrame.decode(ByteBuffer.wrap(padded, 7, encoded.remaining()).slice());
+        assertEquals(message.requestId, decoded.requestId);
+        assertEquals(message.path, decoded.path);
+        assertArrayEquals(BODY, decoded.rawBody);
+    }
+
+    @Test
+    void malformedFramesAreRejected() {
+        byte[] frame = bytes(BinaryFrame.encode(message(RelayMessage.TYPE_HTTP_REQUEST, true), BODY));
+
+        assertRejected(copy(frame, frame.length - 1), "lengths");
+        assertRejected(copy(frame, frame.length + 1), "lengths");
+        assertRejected(copy(frame, BinaryFrame.HEADER_LENGTH - 1), "shorter");
+        assertRejected(new byte[0], "shorter");
+
+        byte[] version = frame.clone();
+        version[0] = 2;
+        assertRejected(version, "version: 2");
+
+        byte[] unset = frame.clone();
+        unset[1] = 0;
+        assertRejected(unset, "type: 0");
+
+        byte[] unknown = frame.clone();
+        unknown[1] = (byte) 200;
+        assertRejected(unknown, "type: 200");
+
+        // Meta length claiming more than the frame holds
+        byte[] meta = frame.clone();
+        ByteBuffer.wrap(meta).putInt(8, Integer.MAX_VALUE);
+        assertRejected(meta, "lengths");
+
+        RelayMessage message = new RelayMessage();
+        message.type = "NOT_A_TYPE";
+        assertThrows(IllegalArgumentException.class, () -> BinaryFrame.encode(message, null));
+    }
+
+    private static void assertBody(String type, boolean withBody, RelayMessage decoded, String label) {
+        if (type.equals(RelayMessage.TYPE_COLLECTION_FILE_RESPONSE)) {
+            // Always text, empty rather than missing
+            assertEquals(withBody ? new String(BODY, StandardCharsets.UTF_8) : "", decoded.fileContent, label);
+            assertNull(decoded.rawBody, label);
+        } else if (withBody) {
+            assertArrayEquals(BODY, decoded.rawBody, label);
+            assertNull(decoded.fileContent, label);
+        } else {
+            assertNull(decoded.rawBody, label);
+        }
+    }
+
+    private static void assertRejected(byte[] frame, String reason) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> BinaryFrame.decode(ByteBuffer.wrap(frame)));
+        assertTrue(e.getMessage().contains(reason), e.getMessage());
+    }
+
+    private static RelayMessage message(String type, boolean withMeta) {
+        RelayMessage message = new RelayMessage();
+        message.type = type;
+        message.requestId = "réq-" + type.length();
+        if (withMeta) {
+            message.callsign = "X1TEST";
+            message.path = "/collections/photos?q=sun";
+            message.headers = "{\"Accept\":\"*/*\"}";
+            message.credit = 65536;
+        }
+        return message;
+    }
+
+    private static byte[] body() {
+        byte[] text = "Ünïcode body ✓".getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[256 + text.length];
+        for (int i = 0; i < 256; i++) {
+            body[i] = (byte) i;
+        }
+        System.arraycopy(text, 0, body, 256, text.length);
+        return body;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] copy(byte[] frame, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(frame, 0, copy, 0, Math.min(length, frame.length));
+        return copy;
+    }
+}
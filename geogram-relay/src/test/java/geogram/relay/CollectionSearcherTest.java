@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ranking and search-after pagination over collections on disk
+ *
+ * @author brito
+ */
+class CollectionSearcherTest {
+
+    private static final String[] WORDS = {"beach", "beaches", "sunbeach", "harbour", "sunset", "report", "gps"};
+
+    @TempDir
+    Path devices;
+
+    private CollectionSearcher searcher;
+
+    @BeforeEach
+    void createCollections() throws IOException {
+        Random random = new Random(11);
+        for (int device = 0; device < 4; device++) {
+            for (int collection = 0; collection < 5; collection++) {
+                List<String> names = new ArrayList<>();
+                for (int file = 0; file < 40; file++) {
+                    // Collection c0 only holds "beach" inside a longer word, so BM25 cannot rank it high
+                    names.add(collection == 0 ? "sunbeach harbour " + file + ".jpg"
+                            : WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+                                    + " " + file + ".jpg");
+                }
+                writeCollection("X1DEV" + device, "c" + collection, "Photos " + collection, names);
+            }
+        }
+        searcher = new CollectionSearcher(devices.toString());
+        searcher.loadIndex();
+    }
+
+    @Test
+    void smallPageEqualsTopOfFullRanking() {
+        List<SearchResult> all = searcher.search("beach", 10_000);
+        assertTrue(all.size() > 200);
+        for (int limit : new int[] {1, 5, 20}) {
+            assertEquals(keys(all.subList(0, limit)), keys(searcher.search("beach", limit)), "limit " + limit);
+        }
+    }
+
+    @Test
+    void pagesFollowFullRanking() {
+        List<SearchResult> all = searcher.search("beach", 10_000);
+
+        List<SearchResult> paged = new ArrayList<>();
+        String queryKey = new SearchRequest("beach", 7).queryKey();
+        String cursor = null;
+        do {
+            SearchRequest request = new SearchRequest("beach", 7);
+            if (cursor != null) {
+                request.after = SearchCursor.decode(cursor, queryKey);
+            }
+            List<SearchResult> page = searcher.search(request);
+            paged.addAll(page);
+            cursor = SearchCursor.next(page, request);
+        } while (cursor != null);
+
+        assertEquals(keys(all), keys(paged));
+    }
+
+    @Test
+    void deviceAddedBetweenPagesKeepsHitPositions() {
+        Map<String, Long> before = sequences(searcher.search("beach", 10_000));
+
+        // Sorts before every other device, so it takes the first position among the devices searched
+        List<String> names = new ArrayList<>();
+        for (int file = 0; file < 40; file++) {
+            names.add("beach " + file + ".jpg");
+        }
+        indexCollection("A0NEW", "c0", names);
+
+        Map<String, Long> after = sequences(searcher.search("beach", 10_000));
+        assertEquals(before.size() + 40, after.size());
+        before.forEach((hit, sequence) -> assertEquals(sequence, after.get(hit), hit));
+    }
+
+    @Test
+    void suggestionsRebuildWithoutLoadingPersistedDevices() {
+        CollectionSearcher persisted = new CollectionSearcher(devices.toString());
+        persisted.enablePersistence(4);
+        persisted.loadIndex();
+        persisted.shutdown();
+
+        // Restarted relay: devices are registered from the segments without being loaded
+        CollectionSearcher restarted = new CollectionSearcher(devices.toString());
+        restarted.enablePersistence(4);
+        List<String> loaded = new CopyOnWriteArrayList<>();
+        restarted.getIndex().setLoader(callsign -> {
+            loaded.add(callsign);
+            return List.of();
+        });
+        restarted.loadIndex();
+        restarted.rebuildSuggestIndex();
+
+        assertEquals(suggestions(persisted, "sunb"), suggestions(restarted, "sunb"));
+        assertEquals(suggestions(persisted, "photos"), suggestions(restarted, "photos"));
+        assertEquals(List.of(), loaded);
+        restarted.shutdown();
+    }
+
+    @Test
+    void truncatedPageHasNoCursor() {
+        SearchRequest request = new SearchRequest("beach", 7);
+        List<SearchResult> page = searcher.search(request);
+        assertNotNull(SearchCursor.next(page, request));
+
+        // Devices the deadline cut off could hold hits ranking before the page's last one
+        request.truncated = true;
+        assertNull(SearchCursor.next(page, request));
+    }
+
+    private static List<String> keys(List<SearchResult> results) {
+        List<String> keys = new ArrayList<>();
+        for (SearchResult result : results) {
+            keys.add(result.callsign + "/" + result.collectionName + "/" + result.filePath + " " + result.relevance);
+        }
+        return keys;
+    }
+
+    private static List<String> suggestions(CollectionSearcher searcher, String prefix) {
+        List<String> suggestions = new ArrayList<>();
+        for (SuggestIndex.Suggestion suggestion : searcher.suggest(prefix, 5)) {
+            suggestions.add(suggestion.text + " " + suggestion.count);
+        }
+        assertFalse(suggestions.isEmpty(), prefix);
+        return suggestions;
+    }
+
+    private static Map<String, Long> sequences(List<SearchResult> results) {
+        Map<String, Long> sequences = new HashMap<>();
+        for (SearchResult result : results) {
+            sequences.put(result.callsign + "/" + result.collectionName + "/" + result.filePath, result.sequence);
+        }
+        return sequences;
+    }
+
+    private void indexCollection(String callsign, String name, List<String> fileNames) {
+        searcher.indexCollectionFile(callsign, name, CollectionSearcher.COLLECTION_FILE, collectionJs(name, name));
+        searcher.indexCollectionFile(callsign, name, CollectionSearcher.TREE_FILE, treeJson(fileNames));
+    }
+
+    private void writeCollection(String callsign, String name, String title, List<String> fileNames)
+            throws IOException {
+        Path collection = devices.resolve(callsign).resolve("collections").resolve(name);
+        Files.createDirectories(collection.resolve("extra"));
+        Files.writeString(collection.resolve(CollectionSearcher.COLLECTION_FILE), collectionJs(name, title));
+        Files.writeString(collection.resolve(CollectionSearcher.TREE_FILE), treeJson(fileNames));
+    }
+
+    private static String collectionJs(String id, String title) {
+        return "window.COLLECTION_DATA = {\"collection\": {\"id\": \"" + id + "\", \"title\": \"" + title + "\"}};";
+    }
+
+    private static String treeJson(List<String> fileNames) {
+        StringBuilder tree = new StringBuilder("[");
+        for (String fileName : fileNames) {
+            if (tree.length() > 1) {
+                tree.append(',');
+            }
+            tree.append("{\"path\": \"").append(fileName).append("\", \"name\": \"").append(fileName)
+                    .append("\", \"type\": \"file\", \"size\": 10}");
+        }
+        return tree.append(']').toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * File list updates of a collection: patched indexes must equal a rebuild
+ *
+ * @author brito
+ */
+class IndexedCollectionTest {
+
+    // Small vocabulary so names and metadata often share terms
+    private static final String[] WORDS = {"beach", "sunset", "gps", "canon", "harbour", "report", "2024", "zürich"};
+
+    @Test
+    void patchedIndexesEqualRebuild() {
+        Random random = new Random(19);
+        IndexedCollection collection = IndexedCollection.restore("X1TEST", "photos", 0, true,
+                "c1", "Beach photos", "Photos of the beach", null, randomFiles(random, 400), null, null, null, null);
+
+        int patched = 0;
+        for (int round = 0; round < 200; round++) {
+            FileTable next = mutate(random, collection.files, 0.02 + random.nextDouble() * 0.08);
+            FileTableDiff diff = FileTableDiff.of(collection.files, next);
+            IndexedCollection updated = collection.withFiles(next);
+            IndexedCollection rebuilt = IndexedCollection.restore(collection.callsign, collection.collectionName, 0,
+                    true, collection.id, collection.title, collection.description, null, next,
+                    null, null, null, null);
+
+            assertSameIndex(rebuilt.fileIndex, updated.fileIndex, "name trigrams", round);
+            assertSameIndex(rebuilt.fileMetadataIndex, updated.fileMetadataIndex, "metadata trigrams", round);
+            assertSameIndex(rebuilt.termIndex, updated.termIndex, round);
+            if (!diff.isEmpty() && diff.ordered && diff.getChanges() * 4 <= next.size()) {
+                patched++;
+            }
+            collection = updated;
+        }
+        assertTrue(patched > 100, "only " + patched + " rounds were patched");
+    }
+
+    @Test
+    void unchangedFilesRecordIndexTime() {
+        IndexedCollection collection = IndexedCollection.restore("X1TEST", "photos", 0, true,
+                "c1", "Beach photos", "Photos of the beach", null, randomFiles(new Random(5), 50), null, null, null, null);
+
+        // A re-synced identical tree is newer on disk than the old indexedAt
+        IndexedCollection resynced = collection.withFiles(collection.files);
+        assertTrue(resynced.indexedAt > 0);
+        assertSame(collection.fileIndex, resynced.fileIndex);
+        assertSame(collection.termIndex, resynced.termIndex);
+
+        IndexedCollection remetadata = collection.withMetadata("c1", "Beach photos", "Photos of the beach", null);
+        assertTrue(remetadata.indexedAt > 0);
+        assertSame(collection.metadataIndex, remetadata.metadataIndex);
+    }
+
+    private static void assertSameIndex(TrigramIndex expected, TrigramIndex actual, String index, int round) {
+        String message = index + " after round " + round;
+        assertEquals(expected.getDocCount(), actual.getDocCount(), message);
+        assertArrayEquals(expected.grams(), actual.grams(), message);
+        assertArrayEquals(expected.offsets(), actual.offsets(), message);
+        assertArrayEquals(expected.postings(), actual.postings(), message);
+    }
+
+    private static void assertSameIndex(TermIndex expected, TermIndex actual, int round) {
+        String message = "terms after round " + round;
+        assertArrayEquals(expected.terms(), actual.terms(), message);
+        assertArrayEquals(expected.docFreqSums(), actual.docFreqSums(), message);
+        assertArrayEquals(expected.offsets(), actual.offsets(), message);
+        assertArrayEquals(expected.tokens(), actual.tokens(), message);
+    }
+
+    private static FileTable randomFiles(Random random, int count) {
+        FileTable.Builder files = new FileTable.Builder();
+        for (int i = 0; i < count; i++) {
+            addRandomFile(random, files, "file" + i);
+        }
+        return files.build();
+    }
+
+    /**
+     * Remove, change and add entries at the given rate, keeping the order of the rest
+     */
+    private static FileTable mutate(Random random, FileTable files, double rate) {
+        FileTable.Builder next = new FileTable.Builder();
+        for (int doc = 0; doc < files.size(); doc++) {
+            double x = random.nextDouble();
+            if (x < rate / 3) {
+                continue;
+            }
+            if (x < rate * 2 / 3) {
+                next.add(files.path(doc), files.name(doc) + " " + word(random), files.type(doc),
+                        files.size(doc), files.mimeType(doc), text(random));
+                continue;
+            }
+            next.add(files.path(doc), files.name(doc), files.type(doc), files.size(doc),
+                    files.mimeType(doc), files.metadata(doc));
+            if (x < rate) {
+                addRandomFile(random, next, "new" + random.nextInt(1_000_000));
+            }
+        }
+        return next.build();
+    }
+
+    private static void addRandomFile(Random random, FileTable.Builder files, String path) {
+        String name = word(random) + " " + word(random) + (random.nextBoolean() ? ".jpg" : ".txt");
+        files.add(path + "/" + name, name, "file", (long) random.nextInt(5000),
+                random.nextBoolean() ? "image/jpeg" : null, random.nextBoolean() ? text(random) : null);
+    }
+
+    private static String text(Random random) {
+        return word(random) + " " + word(random);
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fuzzy term matching against a brute-force edit distance over the whole dictionary
+ *
+ * @author brito
+ */
+class LevenshteinAutomatonTest {
+
+    // Few letters so that many terms are within reach; ü, ß and digits sort apart from ASCII letters
+    private static final char[] LETTERS = {'a', 'b', 'e', 'r', 's', 't', 'ü', 'ß', '1', '9'};
+
+    @Test
+    void acceptsExactlyTermsWithinEditDistance() {
+        Random random = new Random(29);
+        for (int round = 0; round < 50; round++) {
+            String[] dictionary = randomDictionary(random, 400);
+            for (int i = 0; i < 40; i++) {
+                String word = random.nextInt(3) == 0 ? dictionary[random.nextInt(dictionary.length)]
+                        : randomWord(random, 2, 8);
+                for (int maxEdits = 0; maxEdits <= LevenshteinAutomaton.MAX_EDITS; maxEdits++) {
+                    assertEquals(bruteForce(dictionary, word, maxEdits),
+                            intersect(dictionary, word, maxEdits), word + " within " + maxEdits);
+                }
+            }
+        }
+    }
+
+    @Test
+    void adjacentTranspositionIsOneEdit() {
+        String[] dictionary = {"baech", "beach", "beahc", "ebach", "hcaeb"};
+        assertEquals(List.of("baech 1", "beach 0", "beahc 1", "ebach 1"), intersect(dictionary, "beach", 1));
+        assertEquals(1, distance("beach", "beahc"));
+        // Not adjacent: two substitutions
+        assertEquals(2, distance("beach", "bhace"));
+    }
+
+    @Test
+    void tokenizedTermsSortBelowSkipBound() {
+        // Dead prefixes are skipped by a binary search for prefix + Character.MAX_VALUE,
+        // which passes over all extensions of the prefix when their characters sort below it
+        String text = "Zürich_2024 straße\uffffmap \ud83d\ude00smile x y \uff46\uff55\uff4c\uff4c";
+        List<String> tokens = TermIndex.tokenize(text.toLowerCase());
+        assertTrue(tokens.size() > 5, tokens.toString());
+        for (String token : tokens) {
+            for (int i = 0; i < token.length(); i++) {
+                assertTrue(Character.isLetterOrDigit(token.charAt(i)), token);
+                assertNotEquals(Character.MAX_VALUE, token.charAt(i), token);
+            }
+        }
+
+        // A prefix that dies early still finds the matches sorted after its extensions
+        String[] dictionary = new TreeSet<>(tokens).toArray(new String[0]);
+        assertEquals(bruteForce(dictionary, "strase", 1), intersect(dictionary, "strase", 1));
+
+        // Other terms are merely visited one by one instead of skipped
+        String[] raw = {"qq", "qqa", "qq\uffff", "qq\uffffa", "qq\uffff\uffff", "strasse", "stra\uffff"};
+        for (int maxEdits = 0; maxEdits <= LevenshteinAutomaton.MAX_EDITS; maxEdits++) {
+            assertEquals(bruteForce(raw, "strase", maxEdits), intersect(raw, "strase", maxEdits));
+        }
+    }
+
+    private static List<String> intersect(String[] dictionary, String word, int maxEdits) {
+        List<String> accepted = new ArrayList<>();
+        new LevenshteinAutomaton(word, maxEdits).intersect(dictionary,
+                (term, edits) -> accepted.add(dictionary[term] + " " + edits));
+        return accepted;
+    }
+
+    private static List<String> bruteForce(String[] dictionary, String word, int maxEdits) {
+        List<String> accepted = new ArrayList<>();
+        for (String term : dictionary) {
+            int edits = distance(word, term);
+            if (edits <= maxEdits) {
+                accepted.add(term + " " + edits);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Edit distance counting an adjacent transposition as one edit (optimal string alignment)
+     */
+    private static int distance(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length(); j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    private static String[] randomDictionary(Random random, int size) {
+        TreeSet<String> terms = new TreeSet<>();
+        while (terms.size() < size) {
+            terms.add(randomWord(random, 1, 9));
+        }
+        return terms.toArray(new String[0]);
+    }
+
+    private static String randomWord(Random random, int minLength, int maxLength) {
+        int length = minLength + random.nextInt(maxLength - minLength + 1);
+        StringBuilder word = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            word.append(LETTERS[random.nextInt(LETTERS.length)]);
+        }
+        return word.toString();
+    }
+}
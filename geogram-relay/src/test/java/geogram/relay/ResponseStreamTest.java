@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Holding a device back while the client of its streamed response reads
+ *
+ * @author brito
+ */
+class ResponseStreamTest {
+
+    private static final int CHUNK = 256 * 1024;
+
+    private final List<String> flow = new ArrayList<>();
+    private int granted;
+
+    private final ResponseStream.Flow recorder = new ResponseStream.Flow() {
+        @Override
+        public void grant(int bytes) {
+            granted += bytes;
+        }
+
+        @Override
+        public void pause() {
+            flow.add("pause");
+        }
+
+        @Override
+        public void resume() {
+            flow.add("resume");
+        }
+    };
+
+    @Test
+    void creditIsGrantedAsTheClientReads() throws Exception {
+        ResponseStream stream = new ResponseStream(true, recorder);
+        for (int i = 0; i < ResponseStream.BUFFER_BYTES / CHUNK; i++) {
+            assertTrue(stream.write(chunk(i)));
+        }
+        // Beyond the initial window without credit
+        assertFalse(stream.write(chunk(9)));
+
+        stream.end(null);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        stream.pipeTo(client, 1000);
+
+        assertEquals(ResponseStream.BUFFER_BYTES, client.size());
+        assertEquals(ResponseStream.BUFFER_BYTES, granted);
+        assertEquals(List.of(), flow);
+    }
+
+    @Test
+    void readsPauseWhileBufferIsFull() throws Exception {
+        ResponseStream stream = new ResponseStream(false, recorder);
+        int chunks = ResponseStream.BUFFER_BYTES / CHUNK + 2;
+        for (int i = 0; i < chunks; i++) {
+            // Never waits for the client, even past the buffer
+            assertTrue(stream.write(chunk(i)));
+        }
+        assertEquals(List.of("pause"), flow);
+
+        stream.end(null);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        stream.pipeTo(client, 1000);
+
+        assertEquals(List.of("pause", "resume"), flow);
+        assertEquals(0, granted);
+        byte[] body = client.toByteArray();
+        assertEquals(chunks * CHUNK, body.length);
+        for (int i = 0; i < chunks; i++) {
+            byte[] piece = new byte[CHUNK];
+            System.arraycopy(body, i * CHUNK, piece, 0, CHUNK);
+            assertArrayEquals(chunk(i), piece, "chunk " + i);
+        }
+    }
+
+    @Test
+    void abortResumesPausedReads() {
+        ResponseStream stream = new ResponseStream(false, recorder);
+        for (int i = 0; i <= ResponseStream.BUFFER_BYTES / CHUNK; i++) {
+            stream.write(chunk(i));
+        }
+        stream.abort();
+
+        assertEquals(List.of("pause", "resume"), flow);
+        assertEquals(0, stream.getBuffered());
+        assertFalse(stream.write(chunk(0)));
+    }
+
+    private static byte[] chunk(int i) {
+        byte[] chunk = new byte[CHUNK];
+        Arrays.fill(chunk, (byte) i);
+        return chunk;
+    }
+}
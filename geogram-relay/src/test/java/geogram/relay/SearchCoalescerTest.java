@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Identical concurrent searches: who waits for whom, and what a waiter gets
+ *
+ * @author brito
+ */
+class SearchCoalescerTest {
+
+    private static final String KEY = "beach";
+
+    private final SearchCoalescer coalescer = new SearchCoalescer();
+    private final CountDownLatch leaderStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseLeader = new CountDownLatch(1);
+
+    @Test
+    void waiterSharesOutcome() throws Exception {
+        CompletableFuture<List<SearchResult>> leader = lead(new SearchRequest("beach", 10).withTimeout(5_000));
+
+        SearchRequest waiter = new SearchRequest("beach", 10).withTimeout(10_000);
+        CompletableFuture<List<SearchResult>> shared = new CompletableFuture<>();
+        Thread waiting = new Thread(() -> shared.complete(coalescer.search(waiter, KEY, request -> result("own"))));
+        waiting.start();
+        while (waiting.getState() != Thread.State.TIMED_WAITING && !shared.isDone()) {
+            Thread.onSpinWait();
+        }
+        releaseLeader.countDown();
+
+        assertEquals("leader", shared.get(5, TimeUnit.SECONDS).get(0).filePath);
+        assertEquals("leader", leader.get(5, TimeUnit.SECONDS).get(0).filePath);
+        assertEquals(1, coalescer.getCoalesced());
+    }
+
+    @Test
+    void shorterDeadlineDoesNotWaitForLongerSearch() throws Exception {
+        CompletableFuture<List<SearchResult>> leader = lead(new SearchRequest("beach", 10).withTimeout(60_000));
+
+        SearchRequest request = new SearchRequest("beach", 10).withTimeout(1_000);
+        List<SearchResult> results = coalescer.search(request, KEY, own -> result("own"));
+
+        assertEquals("own", results.get(0).filePath);
+        assertFalse(request.truncated);
+        releaseLeader.countDown();
+        leader.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void waiterSearchesItselfWhenRunningSearchOverruns() throws Exception {
+        // Due to end before the waiter's deadline, but stuck past its own
+        CompletableFuture<List<SearchResult>> leader = lead(new SearchRequest("beach", 10).withTimeout(50));
+
+        SearchRequest request = new SearchRequest("beach", 10).withTimeout(5_000);
+        long start = System.nanoTime();
+        List<SearchResult> results = coalescer.search(request, KEY, own -> result("own"));
+
+        assertEquals("own", results.get(0).filePath);
+        assertFalse(request.truncated);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+        releaseLeader.countDown();
+        leader.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void streamingRequestDoesNotSearchForOthers() throws Exception {
+        SearchRequest streaming = new SearchRequest("beach", 10);
+        streaming.listener = batch -> { };
+        CompletableFuture<List<SearchResult>> leader = lead(streaming);
+
+        SearchRequest request = new SearchRequest("beach", 10).withTimeout(5_000);
+        List<SearchResult> results = coalescer.search(request, KEY, own -> result("own"));
+
+        assertEquals("own", results.get(0).filePath);
+        assertEquals(0, coalescer.getCoalesced());
+        releaseLeader.countDown();
+        leader.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Start a search that blocks until released, and wait until it runs
+     */
+    private CompletableFuture<List<SearchResult>> lead(SearchRequest request) throws InterruptedException {
+        Function<SearchRequest, List<SearchResult>> blocked = own -> {
+            leaderStarted.countDown();
+            try {
+                releaseLeader.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result("leader");
+        };
+        CompletableFuture<List<SearchResult>> leader = CompletableFuture.supplyAsync(
+                () -> coalescer.search(request, KEY, blocked));
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+        return leader;
+    }
+
+    private static List<SearchResult> result(String filePath) {
+        return List.of(new SearchResult("X1TEST", "photos", "Photos", null, filePath, filePath,
+                "file", 10L, "file", 1.0));
+    }
+}
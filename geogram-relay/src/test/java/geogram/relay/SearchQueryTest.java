@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Query parsing and plan evaluation against a brute-force evaluation of the
+ * same query over every file
+ *
+ * @author brito
+ */
+class SearchQueryTest {
+
+    private static final String[] WORDS = {"beach", "sun", "set", "gps", "harbour", "report", "canon"};
+    private static final String[] TYPES = {"file", "directory"};
+
+    @Test
+    void plansMatchBruteForce() {
+        Random random = new Random(23);
+        int evaluated = 0;
+        for (int round = 0; round < 20; round++) {
+            IndexedCollection collection = randomCollection(random);
+            for (int i = 0; i < 300; i++) {
+                Expr expr = randomExpr(random, 3);
+                String query = expr.render(0, random);
+                SearchQuery plan = SearchQuery.parse(SearchQuery.normalize(query));
+                if (plan == null) {
+                    continue;  // Plain words keep their single-substring meaning
+                }
+                evaluated++;
+
+                assertArrayEquals(expected(expr, collection), actual(plan, collection), query);
+                assertEquals(expr.collection(collection), plan.matchesCollection(collection), query);
+            }
+        }
+        assertTrue(evaluated > 3000, "only " + evaluated + " structured queries");
+    }
+
+    @Test
+    void andBindsTighterThanOr() {
+        IndexedCollection collection = randomCollection(new Random(3));
+        assertSameMatches(collection, "beach OR sun gps", "beach OR (sun AND gps)");
+        assertSameMatches(collection, "sun gps OR beach", "(sun AND gps) OR beach");
+        assertSameMatches(collection, "NOT sun gps", "(NOT sun) AND gps");
+        assertSameMatches(collection, "beach OR NOT sun", "beach OR (NOT sun)");
+        assertSameMatches(collection, "NOT NOT sun", "sun AND sun");
+    }
+
+    @Test
+    void notOnlyQueryKeepsTheOtherFiles() {
+        IndexedCollection collection = randomCollection(new Random(7));
+        int[] matching = actual(SearchQuery.parse("NOT beach"), collection);
+        int[] without = actual(SearchQuery.parse("beach AND beach"), collection);
+        assertEquals(collection.files.size(), matching.length + without.length);
+        for (int doc : without) {
+            assertTrue(Arrays.binarySearch(matching, doc) < 0, "doc " + doc);
+        }
+    }
+
+    @Test
+    void fieldPrefixTakesPhrase() {
+        SearchQuery query = SearchQuery.parse(SearchQuery.normalize("name:\"Sun Set\" title:beach -x"));
+        List<SearchQuery.Term> terms = query.getRankingTerms();
+        assertEquals(SearchQuery.Field.NAME, terms.get(0).field);
+        assertEquals("sun set", terms.get(0).text);
+        assertEquals(SearchQuery.Field.TITLE, terms.get(1).field);
+        assertEquals("-x", terms.get(2).text);
+    }
+
+    @Test
+    void rankingTermsSkipNegatedAndFilterTerms() {
+        SearchQuery query = SearchQuery.parse("beach NOT sun type:file callsign:x1test (gps OR \"set a\")");
+        List<String> texts = new ArrayList<>();
+        for (SearchQuery.Term term : query.getRankingTerms()) {
+            texts.add(term.text);
+        }
+        assertEquals(List.of("beach", "gps", "set a"), texts);
+    }
+
+    @Test
+    void plainQueryIsNotParsed() {
+        assertNull(SearchQuery.parse(SearchQuery.normalize("Beach Sunset and more")));
+    }
+
+    @Test
+    void malformedQueriesAreRejected() {
+        String[] malformed = {
+            "(beach", "beach)", "beach AND", "NOT", "OR beach", "beach OR OR sun", "()",
+            "\"beach", "\"\"", "name:", "name:\"\"", "title:\"sun", "beach (AND sun)"
+        };
+        for (String query : malformed) {
+            assertThrows(IllegalArgumentException.class, () -> SearchQuery.parse(query), query);
+        }
+    }
+
+    @Test
+    void normalizeKeepsOperatorsAndPhrases() {
+        assertEquals("beach AND \"sun set\" OR not", SearchQuery.normalize("  Beach AND \"Sun Set\" OR Not "));
+    }
+
+    private static void assertSameMatches(IndexedCollection collection, String query, String explicit) {
+        assertArrayEquals(actual(SearchQuery.parse(explicit), collection),
+                actual(SearchQuery.parse(query), collection), query);
+    }
+
+    private static int[] actual(SearchQuery plan, IndexedCollection collection) {
+        int[] files = plan.matchingFiles(collection);
+        if (files == null) {
+            files = new int[collection.files.size()];
+            for (int doc = 0; doc < files.length; doc++) {
+                files[doc] = doc;
+            }
+        }
+        return files;
+    }
+
+    private static int[] expected(Expr expr, IndexedCollection collection) {
+        List<Integer> docs = new ArrayList<>();
+        for (int doc = 0; doc < collection.files.size(); doc++) {
+            if (expr.file(collection, doc)) {
+                docs.add(doc);
+            }
+        }
+        return docs.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // ---- Brute-force reference ----
+
+    private abstract static class Expr {
+        abstract boolean file(IndexedCollection collection, int doc);
+
+        abstract boolean collection(IndexedCollection collection);
+
+        abstract int precedence();
+
+        abstract String text(Random random);
+
+        /**
+         * Query text with only the parentheses precedence requires, plus some redundant ones
+         */
+        String render(int parentPrecedence, Random random) {
+            String text = text(random);
+            return precedence() < parentPrecedence || random.nextInt(10) == 0 ? "(" + text + ")" : text;
+        }
+    }
+
+    private static class Leaf extends Expr {
+        final SearchQuery.Field field;
+        final String text;
+
+        Leaf(SearchQuery.Field field, String text) {
+            this.field = field;
+            this.text = text;
+        }
+
+        @Override
+        boolean file(IndexedCollection collection, int doc) {
+            FileTable files = collection.files;
+            String metadata = files.metadata(doc);
+            switch (field) {
+                case ANY:
+                    return files.name(doc).toLowerCase().contains(text)
+                            || (metadata != null && metadata.toLowerCase().contains(text));
+                case NAME:
+                    return files.name(doc).toLowerCase().contains(text);
+                case TYPE:
+                    return text.equals(files.type(doc));
+                default:
+                    return collection(collection);
+            }
+        }
+
+        @Override
+        boolean collection(IndexedCollection collection) {
+            switch (field) {
+                case ANY:
+                    return collection.title.toLowerCase().contains(text)
+                            || collection.description.toLowerCase().contains(text);
+                case TITLE:
+                    return collection.title.toLowerCase().contains(text);
+                case CALLSIGN:
+                    return collection.callsign.equalsIgnoreCase(text);
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        int precedence() {
+            return 4;
+        }
+
+        @Override
+        String text(Random random) {
+            String value = text.indexOf(' ') >= 0 || random.nextInt(4) == 0 ? "\"" + text + "\"" : text;
+            switch (field) {
+                case NAME:
+                    return "name:" + value;
+                case TITLE:
+                    return "title:" + value;
+                case TYPE:
+                    return "type:" + text;
+                case CALLSIGN:
+                    return "callsign:" + text;
+                default:
+                    return value;
+            }
+        }
+    }
+
+    private static class Not extends Expr {
+        final Expr child;
+
+        Not(Expr child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean file(IndexedCollection collection, int doc) {
+            return !child.file(collection, doc);
+        }
+
+        @Override
+        boolean collection(IndexedCollection collection) {
+            return !child.collection(collection);
+        }
+
+        @Override
+        int precedence() {
+            return 3;
+        }
+
+        @Override
+        String text(Random random) {
+            return "NOT " + child.render(3, random);
+        }
+    }
+
+    private static class Group extends Expr {
+        final boolean and;
+        final List<Expr> children;
+
+        Group(boolean and, List<Expr> children) {
+            this.and = and;
+            this.children = children;
+        }
+
+        @Override
+        boolean file(IndexedCollection collection, int doc) {
+            for (Expr child : children) {
+                if (child.file(collection, doc) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+
+        @Override
+        boolean collection(IndexedCollection collection) {
+            for (Expr child : children) {
+                if (child.collection(collection) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+
+        @Override
+        int precedence() {
+            return and ? 2 : 1;
+        }
+
+        @Override
+        String text(Random random) {
+            StringBuilder text = new StringBuilder();
+            for (Expr child : children) {
+                if (text.length() > 0) {
+                    // AND is also implicit between terms
+                    text.append(!and ? " OR " : random.nextBoolean() ? " AND " : " ");
+                }
+                text.append(child.render(precedence() + 1, random));
+            }
+            return text.toString();
+        }
+    }
+
+    private static Expr randomExpr(Random random, int depth) {
+        int kind = depth == 0 ? 0 : random.nextInt(5);
+        if (kind <= 1) {
+            return randomLeaf(random);
+        }
+        if (kind == 2) {
+            return new Not(randomExpr(random, depth - 1));
+        }
+        List<Expr> children = new ArrayList<>();
+        int count = 2 + random.nextInt(2);
+        for (int i = 0; i < count; i++) {
+            children.add(randomExpr(random, depth - 1));
+        }
+        return new Group(kind == 3, children);
+    }
+
+    private static Leaf randomLeaf(Random random) {
+        int field = random.nextInt(10);
+        if (field == 0) {
+            return new Leaf(SearchQuery.Field.TYPE, TYPES[random.nextInt(TYPES.length)]);
+        }
+        if (field == 1) {
+            return new Leaf(SearchQuery.Field.CALLSIGN, random.nextBoolean() ? "x1test" : "x1other");
+        }
+        String text = random.nextInt(5) == 0 ? word(random) + " " + word(random) : word(random);
+        if (field == 2) {
+            return new Leaf(SearchQuery.Field.TITLE, text);
+        }
+        if (field <= 4) {
+            return new Leaf(SearchQuery.Field.NAME, text);
+        }
+        return new Leaf(SearchQuery.Field.ANY, text);
+    }
+
+    private static IndexedCollection randomCollection(Random random) {
+        FileTable.Builder files = new FileTable.Builder();
+        int count = 20 + random.nextInt(60);
+        for (int i = 0; i < count; i++) {
+            String name = word(random) + " " + word(random) + (random.nextBoolean() ? ".jpg" : ".txt");
+            String metadata = random.nextBoolean() ? word(random) + " " + word(random) : null;
+            files.add("f" + i + "/" + name, name, TYPES[random.nextInt(TYPES.length)],
+                    (long) random.nextInt(5000), null, metadata);
+        }
+        String title = word(random) + " photos";
+        String description = "Photos of the " + word(random);
+        return IndexedCollection.restore("X1TEST", "photos", 0, true, "c1", title, description, null,
+                files.build(), null, null, null, null);
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Opening persisted index segments left by an older or broken run
+ *
+ * @author brito
+ */
+class SegmentStoreTest {
+
+    private static final int MAGIC = 0x47534547;
+    private static final String SEGMENT = "seg-00000001.seg";
+
+    @TempDir
+    Path devices;
+
+    @Test
+    void openDiscardsOlderFormatSegment() throws IOException {
+        writeSegment(emptySegment(1));
+
+        SegmentStore store = new SegmentStore(devices.toString(), 4);
+        store.open();
+
+        assertFalse(store.hasSegments());
+        assertFalse(Files.exists(indexDir().resolve(SEGMENT)));
+        assertFalse(Files.exists(indexDir().resolve("segments.json")));
+    }
+
+    @Test
+    void openDiscardsCorruptSegment() throws IOException {
+        writeSegment(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24});
+
+        SegmentStore store = new SegmentStore(devices.toString(), 4);
+        store.open();
+
+        assertFalse(store.hasSegments());
+        assertFalse(Files.exists(indexDir().resolve(SEGMENT)));
+    }
+
+    @Test
+    void persistenceRebuildsIndexOverOlderFormatSegment() throws IOException {
+        Path collection = devices.resolve("X1TEST").resolve("collections").resolve("photos");
+        Files.createDirectories(collection.resolve("extra"));
+        Files.writeString(collection.resolve(CollectionSearcher.COLLECTION_FILE),
+                "window.COLLECTION_DATA = {\"collection\": {\"id\": \"c1\", \"title\": \"Holiday photos\"}};");
+        Files.writeString(collection.resolve(CollectionSearcher.TREE_FILE),
+                "[{\"path\": \"beach.jpg\", \"name\": \"beach.jpg\", \"type\": \"file\", \"size\": 10}]");
+        writeSegment(emptySegment(1));
+
+        CollectionSearcher searcher = new CollectionSearcher(devices.toString());
+        searcher.enablePersistence(4);
+        searcher.loadIndex();
+
+        List<SearchResult> results = searcher.search("beach", 10);
+        assertEquals(1, results.size());
+        assertEquals("beach.jpg", results.get(0).fileName);
+
+        // The rebuilt index was written as a new base in the current format
+        SegmentStore reopened = new SegmentStore(devices.toString(), 4);
+        reopened.open();
+        assertTrue(reopened.hasSegments());
+        assertEquals(1, reopened.loadDevice("X1TEST").size());
+        searcher.shutdown();
+    }
+
+    private Path indexDir() {
+        return devices.resolve(SegmentStore.INDEX_DIR);
+    }
+
+    private void writeSegment(byte[] segment) throws IOException {
+        Files.createDirectories(indexDir());
+        Files.write(indexDir().resolve(SEGMENT), segment);
+        Files.writeString(indexDir().resolve("segments.json"), "[\"" + SEGMENT + "\"]");
+    }
+
+    /**
+     * A segment without entries: header, entry count, trailer
+     */
+    private static byte[] emptySegment(int formatVersion) {
+        return ByteBuffer.allocate(24)
+                .putInt(MAGIC).putInt(formatVersion)
+                .putInt(0)
+                .putLong(8).putInt(MAGIC)
+                .array();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Autocomplete counts as collections are added, replaced and removed
+ *
+ * @author brito
+ */
+class SuggestIndexTest {
+
+    @Test
+    void countsFollowCollectionUpdates() {
+        SuggestIndex.TermCounter counter = new SuggestIndex.TermCounter();
+        counter.put("X1AAA", "photos", terms("Holiday", "Beach.jpg", "beach.jpg", "Boat.jpg"));
+        counter.put("X1BBB", "photos", terms("Beach.jpg", null, " "));
+        assertEquals(List.of("Beach.jpg 3", "Boat.jpg 1"), suggest(counter.build(), "b"));
+
+        // Replacing a collection drops what it counted before
+        counter.put("X1AAA", "photos", terms("Holiday", "Boat.jpg", "Bridge.jpg"));
+        assertEquals(List.of("Beach.jpg 1", "Boat.jpg 1", "Bridge.jpg 1"), suggest(counter.build(), "b"));
+
+        counter.remove("X1BBB", "photos");
+        counter.put("X1AAA", "photos", List.of());
+        assertEquals(List.of(), suggest(counter.build(), "b"));
+
+        // Freed terms are reused with their new casing
+        counter.put("X1CCC", "docs", terms("BEACH.jpg", "beach.JPG"));
+        assertEquals(List.of("BEACH.jpg 2"), suggest(counter.build(), "b"));
+    }
+
+    @Test
+    void collectionCountsOnlyItsMostFrequentTerms() {
+        List<String> texts = new ArrayList<>();
+        texts.add("Holiday");
+        for (int i = 0; i < 10 * SuggestIndex.COLLECTION_TERMS; i++) {
+            texts.add("img" + i + ".jpg");
+        }
+        for (int i = 0; i < 3; i++) {
+            texts.add("Cover.jpg");
+        }
+
+        List<SuggestIndex.Suggestion> top = SuggestIndex.topTerms(texts);
+        assertEquals(SuggestIndex.COLLECTION_TERMS, top.size());
+        // Most frequent first, then in order of appearance
+        assertEquals("Cover.jpg", top.get(0).text);
+        assertEquals(3, top.get(0).count);
+        assertEquals("Holiday", top.get(1).text);
+        assertEquals("img0.jpg", top.get(2).text);
+
+        SuggestIndex.TermCounter counter = new SuggestIndex.TermCounter();
+        counter.put("X1AAA", "photos", top);
+        assertEquals(SuggestIndex.COLLECTION_TERMS, counter.build().getTermCount());
+    }
+
+    private static List<SuggestIndex.Suggestion> terms(String... texts) {
+        return SuggestIndex.topTerms(Arrays.asList(texts));
+    }
+
+    private static List<String> suggest(SuggestIndex index, String prefix) {
+        List<String> suggestions = new ArrayList<>();
+        for (SuggestIndex.Suggestion suggestion : index.suggest(prefix, 10)) {
+            suggestions.add(suggestion.text + " " + suggestion.count);
+        }
+        suggestions.sort(null);
+        return suggestions;
+    }
+}
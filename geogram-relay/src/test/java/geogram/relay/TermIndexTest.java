@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) geogram
+ * License: Apache-2.0
+ */
+package geogram.relay;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Document frequencies of the BM25F term index
+ *
+ * @author brito
+ */
+class TermIndexTest {
+
+    @Test
+    void termInNameAndMetadataCountsOncePerFile() {
+        String[] names = {"beach sunset.jpg", "beach.jpg", "beach beach.png", "harbour.jpg"};
+        String[] metadata = {"beach gps", "canon beach", "beach", "gps"};
+        TermIndex index = TermIndex.build(names, metadata, "holiday", null);
+
+        assertEquals(3, docFreq(index, "beach"));
+        assertEquals(2, docFreq(index, "gps"));
+        assertEquals(1, docFreq(index, "holiday"));
+    }
+
+    @Test
+    void collectionCountsOnceAcrossTitleAndDescription() {
+        String[] names = {"beach.jpg", "beach.png"};
+        String[] metadata = {"beach", null};
+        TermIndex index = TermIndex.build(names, metadata, "beach photos", "photos of the beach");
+
+        assertEquals(3, docFreq(index, "beach"));
+        assertEquals(1, docFreq(index, "photos"));
+    }
+
+    private static int docFreq(TermIndex index, String term) {
+        // Exact term only: the prefix range also covers longer terms
+        int start = index.rangeStart(term);
+        assertEquals(term, index.terms()[start]);
+        return index.docFreq(start, start + 1);
+    }
+}